@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks logins against salted PBKDF2 password hashes.
+ *
+ * Passwords are stored as {@code pbkdf2-sha256$iterations$salt$hash}, with
+ * the iteration count tunable through auth.pbkdf2Iterations. Rows written
+ * before hashing existed still hold the plain password; they are accepted
+ * and replaced by a hash on the first successful login, as are hashes
+ * made with fewer iterations than currently configured.
+ *
+ * A hash costs a noticeable amount of CPU on purpose, and mail clients log
+ * in again on every reconnect, so verified logins are remembered for
+ * auth.cacheTtlMs (0 turns the cache off) in a bounded LRU cache. The cache
+ * holds a keyed HMAC of the password, never the password itself. Identical
+ * logins that miss the cache at the same moment share one verification.
+ *
+ * Failed logins are counted per user and per client address within
+ * auth.failureWindowMs; past auth.maxFailures for a user, or
+ * auth.maxFailuresPerAddress for an address, logins are refused without
+ * looking at the password until the window has passed.
+ */
+public class Authenticator {
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final int ITERATIONS = Integer.getInteger("auth.pbkdf2Iterations", 600_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final long CACHE_TTL_MS = Long.getLong("auth.cacheTtlMs", 60_000L);
+    private static final int CACHE_SIZE = Integer.getInteger("auth.cacheSize", 1024);
+    private static final int MAX_FAILURES = Integer.getInteger("auth.maxFailures", 5);
+    private static final int MAX_FAILURES_PER_ADDRESS = Integer.getInteger("auth.maxFailuresPerAddress", 20);
+    private static final long FAILURE_WINDOW_MS = Long.getLong("auth.failureWindowMs", 5 * 60_000L);
+    private static final int TRACKED_FAILURES = Integer.getInteger("auth.trackedFailures", 10_000);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /** Where stored password hashes come from and go back to. */
+    public interface Credentials {
+        /** Stored hash (or legacy plain password) of a user, null if there is no such user. */
+        String credential(String username) throws IOException;
+
+        void update(String username, String credential) throws IOException;
+    }
+
+    private static class Verified {
+        final byte[] proof;
+        final long expires;
+
+        Verified(byte[] proof, long expires) {
+            this.proof = proof;
+            this.expires = expires;
+        }
+    }
+
+    private static class Failures {
+        final long windowStart;
+        int count;
+
+        Failures(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+
+    private final Credentials credentials;
+    // Per-process key for the cached proofs
+    private final SecretKeySpec proofKey;
+    private final ThreadLocal<Mac> proofMac;
+    // Hash checked for unknown users, so they take as long to refuse as known ones
+    private volatile String dummyCredential;
+    private final LinkedHashMap<String, Verified> verified = new LinkedHashMap<String, Verified>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final LinkedHashMap<String, Failures> failures = new LinkedHashMap<String, Failures>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failures> eldest) {
+            return size() > TRACKED_FAILURES;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> verifying = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong hashed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rehashed = new AtomicLong();
+
+    public Authenticator(Credentials credentials) {
+        this.credentials = credentials;
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        this.proofKey = new SecretKeySpec(key, "HmacSHA256");
+        this.proofMac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(proofKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        });
+    }
+
+    /** Salted hash of a password in the stored format. */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return SCHEME + "$" + ITERATIONS + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+    }
+
+    /** Checks a password against a stored hash, or against a legacy plain password. */
+    public static boolean verify(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Malformed password hash: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** True for plain passwords and hashes weaker than the current settings. */
+    static boolean needsRehash(String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(parts[1]) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Checks a login. {@code address} is the client's address for rate
+     * limiting, or null when there is none.
+     */
+    public boolean authenticate(String username, String password, String address) throws IOException {
+        logins.incrementAndGet();
+        long now = System.currentTimeMillis();
+        if (isThrottled("user:" + username, MAX_FAILURES, now)
+                || (address != null && isThrottled("addr:" + address, MAX_FAILURES_PER_ADDRESS, now))) {
+            throttled.incrementAndGet();
+            return false;
+        }
+
+        byte[] proof = proof(username, password);
+        if (CACHE_TTL_MS > 0 && isCached(username, proof, now)) {
+            cacheHits.incrementAndGet();
+            return true;
+        }
+
+        // Logins with the same name and password that miss the cache together are checked once
+        String key = username + "\0" + Base64.getEncoder().encodeToString(proof);
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = verifying.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        try {
+            boolean ok = check(username, password, proof, address);
+            mine.complete(ok);
+            return ok;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            verifying.remove(key, mine);
+        }
+    }
+
+    /** The expensive path: loads the stored hash and verifies the password against it. */
+    private boolean check(String username, String password, byte[] proof, String address) throws IOException {
+        String stored = credentials.credential(username);
+        hashed.incrementAndGet();
+        if (stored == null) {
+            verify(password, dummyCredential());
+            recordFailure(username, address);
+            return false;
+        }
+        if (!verify(password, stored)) {
+            recordFailure(username, address);
+            return false;
+        }
+
+        synchronized (failures) {
+            failures.remove("user:" + username);
+        }
+        if (needsRehash(stored)) {
+            try {
+                credentials.update(username, hash(password));
+                rehashed.incrementAndGet();
+            } catch (IOException e) {
+                // The login itself succeeded; the upgrade is tried again next time
+                System.err.println("Error upgrading password hash of " + username + ": " + e.getMessage());
+            }
+        }
+        if (CACHE_TTL_MS > 0) {
+            synchronized (verified) {
+                verified.put(username, new Verified(proof, System.currentTimeMillis() + CACHE_TTL_MS));
+            }
+        }
+        return true;
+    }
+
+    /** Drops a user's cached login, e.g. after the password changed. */
+    public void forget(String username) {
+        synchronized (verified) {
+            verified.remove(username);
+        }
+    }
+
+    private boolean isCached(String username, byte[] proof, long now) {
+        synchronized (verified) {
+            Verified entry = verified.get(username);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.expires <= now) {
+                verified.remove(username);
+                return false;
+            }
+            return MessageDigest.isEqual(entry.proof, proof);
+        }
+    }
+
+    private byte[] proof(String username, String password) {
+        Mac mac = proofMac.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String dummyCredential() {
+        String dummy = dummyCredential;
+        if (dummy == null) {
+            dummy = hash("");
+            dummyCredential = dummy;
+        }
+        return dummy;
+    }
+
+    private boolean isThrottled(String key, int limit, long now) {
+        synchronized (failures) {
+            Failures entry = failures.get(key);
+            if (entry == null) {
+                return false;
+            }
+            if (now - entry.windowStart >= FAILURE_WINDOW_MS) {
+                failures.remove(key);
+                return false;
+            }
+            return entry.count >= limit;
+        }
+    }
+
+    private void recordFailure(String username, String address) {
+        failed.incrementAndGet();
+        long now = System.currentTimeMillis();
+        synchronized (failures) {
+            countFailure("user:" + username, now);
+            if (address != null) {
+                countFailure("addr:" + address, now);
+            }
+        }
+    }
+
+    private void countFailure(String key, long now) {
+        Failures entry = failures.get(key);
+        if (entry == null || now - entry.windowStart >= FAILURE_WINDOW_MS) {
+            entry = new Failures(now);
+            failures.put(key, entry);
+        }
+        entry.count++;
+    }
+
+    public long getLoginCount() { return logins.get(); }
+    public long getCacheHitCount() { return cacheHits.get(); }
+    public long getSharedCount() { return shared.get(); }
+    public long getHashCount() { return hashed.get(); }
+    public long getFailedCount() { return failed.get(); }
+    public long getThrottledCount() { return throttled.get(); }
+    public long getRehashedCount() { return rehashed.get(); }
+
+    public String stats() {
+        int cached;
+        synchronized (verified) {
+            cached = verified.size();
+        }
+        return String.format("auth[logins=%d cacheHits=%d shared=%d hashed=%d failed=%d throttled=%d rehashed=%d cached=%d]",
+                getLoginCount(), getCacheHitCount(), getSharedCount(), getHashCount(), getFailedCount(),
+                getThrottledCount(), getRehashedCount(), cached);
+    }
+}
@@ -0,0 +1,267 @@
+import java.sql.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small fixed-size JDBC connection pool for the SQLite mail database.
+ *
+ * Connections are opened lazily up to {@code maxSize} and then kept open for
+ * the lifetime of the process. Each connection keeps its own LRU cache of
+ * prepared statements, so hot queries are compiled once per connection
+ * instead of once per call.
+ */
+public class ConnectionPool {
+    private final String url;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitedBorrows = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+
+    public ConnectionPool(String url, int maxSize, int statementCacheSize,
+                          long borrowTimeoutMillis, long validationIntervalMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.url = url;
+        this.maxSize = maxSize;
+        this.statementCacheSize = statementCacheSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if the pool has not
+     * reached its maximum size yet. Blocks up to the borrow timeout otherwise.
+     * The returned connection goes back to the pool when it is closed.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        borrows.incrementAndGet();
+
+        PooledConnection pooled = idle.pollFirst();
+        if (pooled == null) {
+            pooled = tryOpen();
+        }
+        if (pooled == null) {
+            long start = System.nanoTime();
+            try {
+                pooled = idle.pollFirst(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection");
+            }
+            long waited = System.nanoTime() - start;
+            waitedBorrows.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            if (pooled == null) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection");
+            }
+        }
+
+        pooled = validate(pooled);
+        int current = inUse.incrementAndGet();
+        peakInUse.accumulateAndGet(current, Math::max);
+        return pooled;
+    }
+
+    private PooledConnection tryOpen() throws SQLException {
+        while (true) {
+            int open = openConnections.get();
+            if (open >= maxSize) {
+                return null;
+            }
+            if (openConnections.compareAndSet(open, open + 1)) {
+                try {
+                    return new PooledConnection(DriverManager.getConnection(url));
+                } catch (SQLException e) {
+                    openConnections.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Health check for connections that sat idle longer than the validation
+     * interval. A connection that fails the check is replaced with a fresh one.
+     */
+    private PooledConnection validate(PooledConnection pooled) throws SQLException {
+        if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis) {
+            return pooled;
+        }
+        try (Statement stmt = pooled.connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT 1")) {
+            rs.next();
+            return pooled;
+        } catch (SQLException e) {
+            System.err.println("Discarding broken database connection: " + e.getMessage());
+            discard(pooled);
+            PooledConnection fresh = tryOpen();
+            if (fresh == null) {
+                throw new SQLException("Could not replace broken database connection");
+            }
+            return fresh;
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        inUse.decrementAndGet();
+        pooled.lastUsed = System.currentTimeMillis();
+        try {
+            if (closed || pooled.connection.isClosed()) {
+                discard(pooled);
+                return;
+            }
+            if (!pooled.connection.getAutoCommit()) {
+                // Never hand out a connection with a half-finished transaction.
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            discard(pooled);
+            return;
+        }
+        idle.offerFirst(pooled);
+    }
+
+    private void discard(PooledConnection pooled) {
+        discarded.incrementAndGet();
+        openConnections.decrementAndGet();
+        pooled.closeQuietly();
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            openConnections.decrementAndGet();
+            pooled.closeQuietly();
+        }
+    }
+
+    public int getMaxSize() { return maxSize; }
+    public int getOpenConnections() { return openConnections.get(); }
+    public int getIdleConnections() { return idle.size(); }
+    public int getInUse() { return inUse.get(); }
+    public int getPeakInUse() { return peakInUse.get(); }
+    public long getBorrowCount() { return borrows.get(); }
+    public long getWaitedBorrowCount() { return waitedBorrows.get(); }
+    public long getTimeoutCount() { return timeouts.get(); }
+    public long getDiscardedCount() { return discarded.get(); }
+    public long getStatementCacheHits() { return statementHits.get(); }
+    public long getStatementCacheMisses() { return statementMisses.get(); }
+
+    public double getAverageWaitMillis() {
+        long waited = waitedBorrows.get();
+        return waited == 0 ? 0.0 : totalWaitNanos.get() / (waited * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public String stats() {
+        return String.format("pool[size=%d open=%d idle=%d inUse=%d peak=%d borrows=%d waited=%d avgWait=%.2fms maxWait=%.2fms timeouts=%d discarded=%d stmtHits=%d stmtMisses=%d]",
+                maxSize, getOpenConnections(), getIdleConnections(), getInUse(), getPeakInUse(),
+                getBorrowCount(), getWaitedBorrowCount(), getAverageWaitMillis(), getMaxWaitMillis(),
+                getTimeoutCount(), getDiscardedCount(), getStatementCacheHits(), getStatementCacheMisses());
+    }
+
+    /**
+     * A pooled connection plus its prepared statement cache. Closing it
+     * returns it to the pool; the underlying JDBC connection stays open.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns a cached prepared statement for {@code sql}, compiling it on
+         * first use. The SQLite driver leaves a statement unusable after a
+         * failed execution, so cached statements are checked and re-prepared
+         * when needed.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt != null) {
+                try {
+                    pstmt.clearParameters();
+                    statementHits.incrementAndGet();
+                    return pstmt;
+                } catch (SQLException e) {
+                    statements.remove(sql);
+                    closeQuietly(pstmt);
+                }
+            }
+            statementMisses.incrementAndGet();
+            pstmt = connection.prepareStatement(sql);
+            statements.put(sql, pstmt);
+            if (statements.size() > statementCacheSize) {
+                Iterator<PreparedStatement> eldest = statements.values().iterator();
+                closeQuietly(eldest.next());
+                eldest.remove();
+            }
+            return pstmt;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        private void closeQuietly() {
+            for (PreparedStatement pstmt : statements.values()) {
+                closeQuietly(pstmt);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Connection is being thrown away anyway
+            }
+        }
+
+        private void closeQuietly(PreparedStatement pstmt) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                // Statement is being thrown away anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells interested sessions that new mail reached a mailbox.
+ *
+ * The ingest writer publishes every message it commits, so deliveries made
+ * by this process (IMAP APPEND, or SMTP and UDP when they share the process)
+ * are seen at once. SMTP, IMAP and UDP usually run as separate processes,
+ * though, so while anyone is subscribed a single watcher also asks the
+ * {@link ChangeSource} whether the database changed and, only then, reads
+ * every mailbox's UIDNEXT in one query. Sessions never poll themselves.
+ *
+ * Listeners run on the one "delivery-bus" thread and must not block for long.
+ */
+public class DeliveryBus {
+
+    public interface Listener {
+        /** New mail arrived; {@code uidNext} is the mailbox's UIDNEXT after it. */
+        void onDelivery(String username, long uidNext);
+    }
+
+    /** Lets the watcher notice deliveries stored by other processes. */
+    public interface ChangeSource {
+        /** Cheap check whether anything may have been written since the last call. */
+        boolean mayHaveChanged();
+
+        /** UIDNEXT of every mailbox. */
+        Map<String, Long> uidNexts() throws Exception;
+    }
+
+    private static class Event {
+        final String username;
+        final long uidNext;
+
+        Event(String username, long uidNext) {
+            this.username = username;
+            this.uidNext = uidNext;
+        }
+    }
+
+    private final ChangeSource source;
+    private final long watchIntervalMillis;
+    private final Map<String, Set<Listener>> listeners = new ConcurrentHashMap<>();
+    // Last UIDNEXT announced per mailbox, so the watcher only reports real changes
+    private final Map<String, Long> announced = new ConcurrentHashMap<>();
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private long lastWatch = 0;
+
+    // Metrics
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong watchScans = new AtomicLong();
+
+    public DeliveryBus(ChangeSource source, long watchIntervalMillis) {
+        this.source = source;
+        this.watchIntervalMillis = watchIntervalMillis;
+        Thread dispatcher = new Thread(this::run, "delivery-bus");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public void subscribe(String username, Listener listener) {
+        listeners.computeIfAbsent(username, u -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    public void unsubscribe(String username, Listener listener) {
+        listeners.computeIfPresent(username, (u, set) -> {
+            set.remove(listener);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /** Announces a delivery. Never blocks; listeners are called on the bus thread. */
+    public void publish(String username, long uidNext) {
+        published.incrementAndGet();
+        events.offer(new Event(username, uidNext));
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Event event = events.poll(watchIntervalMillis, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    dispatch(event.username, event.uidNext);
+                }
+                watch();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error dispatching delivery: " + e.getMessage());
+            }
+        }
+    }
+
+    private void dispatch(String username, long uidNext) {
+        Long previous = announced.get(username);
+        if (previous != null && previous >= uidNext) {
+            return;
+        }
+        announced.put(username, uidNext);
+        Set<Listener> subscribed = listeners.get(username);
+        if (subscribed == null) {
+            return;
+        }
+        for (Listener listener : subscribed) {
+            notifications.incrementAndGet();
+            listener.onDelivery(username, uidNext);
+        }
+    }
+
+    private void watch() {
+        long now = System.currentTimeMillis();
+        if (listeners.isEmpty() || now - lastWatch < watchIntervalMillis) {
+            return;
+        }
+        lastWatch = now;
+        if (!source.mayHaveChanged()) {
+            return;
+        }
+        watchScans.incrementAndGet();
+        try {
+            for (Map.Entry<String, Long> mailbox : source.uidNexts().entrySet()) {
+                if (listeners.containsKey(mailbox.getKey())) {
+                    dispatch(mailbox.getKey(), mailbox.getValue());
+                } else {
+                    announced.put(mailbox.getKey(), mailbox.getValue());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Error checking for new mail: " + e.getMessage());
+        }
+    }
+
+    public int getSubscribedMailboxes() { return listeners.size(); }
+    public long getPublishedCount() { return published.get(); }
+    public long getNotificationCount() { return notifications.get(); }
+    public long getWatchScanCount() { return watchScans.get(); }
+
+    public String stats() {
+        return String.format("deliveryBus[mailboxes=%d published=%d notifications=%d watchScans=%d]",
+                getSubscribedMailboxes(), getPublishedCount(), getNotificationCount(), getWatchScanCount());
+    }
+}
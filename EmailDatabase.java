@@ -1,174 +1,437 @@
-import java.sql.*;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The mail database the protocol servers talk to.
+ *
+ * Persistence is delegated to a {@link MailStorage}, picked with the
+ * mail.storage property ({@code sqlite} or {@code log}). In front of it
+ * this class keeps what every backend shares: the group-commit ingest
+ * queue, the mailbox and message caches, the delivery bus for IDLE, the
+ * garbage collector for MessageStore blobs and the password checks with
+ * their login cache.
+ */
 public class EmailDatabase {
+    private static final String STORAGE = System.getProperty("mail.storage", "sqlite");
+    private static final int INGEST_QUEUE_CAPACITY = Integer.getInteger("mail.db.ingestQueueCapacity", 10000);
+    private static final int INGEST_BATCH_SIZE = Integer.getInteger("mail.db.batchSize", 256);
+    private static final long INGEST_BATCH_DELAY_MS = Long.getLong("mail.db.batchDelayMs", 5L);
+    private static final int CACHE_MAX_MAILBOXES = Integer.getInteger("mail.cache.maxMailboxes", 1000);
+    private static final long CACHE_MAX_MESSAGES = Long.getLong("mail.cache.maxMessages", 1000000L);
+    private static final long MESSAGE_CACHE_BYTES = Long.getLong("mail.cache.messageBytes", 32L * 1024 * 1024);
+    private static final int MESSAGE_CACHE_MAX_BODY = Integer.getInteger("mail.cache.maxBodySize", 64 * 1024);
+    private static final boolean MESSAGE_CACHE_OFF_HEAP = Boolean.getBoolean("mail.cache.offHeap");
+    private static final long IDLE_WATCH_INTERVAL_MS = Long.getLong("mail.idle.watchIntervalMs", 500L);
+    private static final long BLOB_GC_INTERVAL_MS = Long.getLong("mail.store.gcIntervalMs", 10 * 60 * 1000L);
+    private static final long BLOB_GC_GRACE_MS = Long.getLong("mail.store.gcGraceMs", 10 * 60 * 1000L);
 
-    private static final String DB_URL = "jdbc:sqlite:SMTP_SERVER.db";
-    private static EmailDatabase instance;
+    private final MailStorage storage;
+    private final IngestQueue ingestQueue;
+    private final MailboxCache mailboxCache;
+    private final DeliveryBus deliveryBus;
+    private final MessageCache messageCache;
+    private final Authenticator authenticator;
+
+    // Blob garbage collection
+    private final AtomicLong blobGcRuns = new AtomicLong();
+    private final AtomicLong blobsCollected = new AtomicLong();
 
     private EmailDatabase() {
-        try {
-            Class.forName("org.sqlite.JDBC");
-        } catch (ClassNotFoundException e) {
-            System.err.println("SQLite JDBC driver not found.");
-            e.printStackTrace();
-        }
-        createTables();
+        storage = openStorage();
+        mailboxCache = new MailboxCache(new MailboxCache.Loader() {
+            public long uidNext(String username) throws IOException {
+                return storage.uidNext(username);
+            }
+
+            public void load(String username, long fromUid, MailboxCache.Mailbox into) throws IOException {
+                storage.list(username, fromUid, into);
+            }
+        }, CACHE_MAX_MAILBOXES, CACHE_MAX_MESSAGES);
+        authenticator = new Authenticator(new Authenticator.Credentials() {
+            public String credential(String username) throws IOException {
+                return storage.credential(username);
+            }
+
+            public void update(String username, String credential) throws IOException {
+                storage.setCredential(username, credential);
+            }
+        });
+        messageCache = new MessageCache(MESSAGE_CACHE_BYTES, MESSAGE_CACHE_MAX_BODY, MESSAGE_CACHE_OFF_HEAP);
+        deliveryBus = new DeliveryBus(new DeliveryBus.ChangeSource() {
+            private long lastStamp = 0;
+
+            public boolean mayHaveChanged() {
+                long stamp = storage.changeStamp();
+                boolean changed = stamp != lastStamp;
+                lastStamp = stamp;
+                return changed;
+            }
+
+            public Map<String, Long> uidNexts() throws IOException {
+                return storage.uidNexts();
+            }
+        }, IDLE_WATCH_INTERVAL_MS);
+        ingestQueue = new IngestQueue(this::writeBatch, INGEST_QUEUE_CAPACITY, INGEST_BATCH_SIZE, INGEST_BATCH_DELAY_MS);
+        startBlobCollector();
     }
 
-    public static synchronized EmailDatabase getInstance() {
-        if (instance == null) {
-            instance = new EmailDatabase();
+    private static MailStorage openStorage() {
+        switch (STORAGE) {
+            case "log":
+                return new LogStorage();
+            case "sqlite":
+                return new SqliteStorage();
+            default:
+                System.err.println("Unknown mail.storage " + STORAGE + ", using sqlite.");
+                return new SqliteStorage();
         }
-        return instance;
-    }
-
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection(DB_URL);
-    }
-
-    private void createTables() {
-        String emailTableSql = "CREATE TABLE IF NOT EXISTS SMTP_DB ( " +
-                             " IDmail    INTEGER PRIMARY KEY AUTOINCREMENT," +
-                             " MessageID TEXT    NOT NULL UNIQUE," +
-                             " MAIL_FROM TEXT    NOT NULL, " + 
-                             " RCPT_TO   TEXT    NOT NULL, " + 
-                             " HEADERS   TEXT, " + 
-                             " BODY      TEXT, " + 
-                             " DATE      DATETIME  default current_timestamp )";
-        
-        String userTableSql = "CREATE TABLE IF NOT EXISTS USERS ( " +
-                            " IDuser    INTEGER PRIMARY KEY AUTOINCREMENT," +
-                            " username  TEXT    NOT NULL UNIQUE," +
-                            " password  TEXT    NOT NULL )";
-
-        try (Connection conn = connect();
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(emailTableSql);
-            stmt.execute(userTableSql);
-        } catch (SQLException e) {
-            System.err.println("Error creating tables: " + e.getMessage());
+    }
+
+    private static class Holder {
+        private static final EmailDatabase INSTANCE = new EmailDatabase();
+    }
+
+    public static EmailDatabase getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public MailStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Stores an email and blocks until the group-commit batch that holds it is
+     * durable. Returns false if the message could not be stored.
+     */
+    public boolean saveEmail(String messageId, String from, String to, String headers, String body) {
+        return saveEmailAsync(messageId, from, to, headers, body).join();
+    }
+
+    /**
+     * Queues an email for storage. The future completes with true once the
+     * message is committed (or was already stored), false if storing failed.
+     */
+    public CompletableFuture<Boolean> saveEmailAsync(String messageId, String from, String to, String headers, String body) {
+        return ingestQueue.submit(messageId, from, to, headers, body, null, -1);
+    }
+
+    /** Like {@link #saveEmailAsync(String, String, String, String, String)}, for several local mailboxes at once. */
+    public CompletableFuture<Boolean> saveEmailAsync(String messageId, String from, List<String> recipients,
+                                                     String headers, String body) {
+        return ingestQueue.submit(messageId, from, recipients, headers, body, null, -1);
+    }
+
+    /**
+     * Queues an email whose body was already streamed into the MessageStore.
+     * Every recipient's row references the same stored body; a body no
+     * recipient ends up holding is left to the blob garbage collector.
+     */
+    public CompletableFuture<Boolean> saveStreamedEmailAsync(String messageId, String from, List<String> recipients,
+                                                             String headers, String bodyPath, long bodySize) {
+        return ingestQueue.submit(messageId, from, recipients, headers, null, bodyPath, bodySize);
+    }
+
+    public IngestQueue getIngestQueue() {
+        return ingestQueue;
+    }
+
+    public MailboxCache getMailboxCache() {
+        return mailboxCache;
+    }
+
+    public DeliveryBus getDeliveryBus() {
+        return deliveryBus;
+    }
+
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    private void writeBatch(List<IngestQueue.Pending> batch) throws IOException {
+        storage.deliver(batch);
+
+        // Only visible to IMAP once durable
+        for (IngestQueue.Pending email : batch) {
+            for (int i = 0; i < email.recipients.size(); i++) {
+                long mailId = email.mailIds[i];
+                if (mailId > 0) {
+                    String to = email.recipients.get(i);
+                    mailboxCache.onDelivered(to, mailId, utf8Length(email.headers),
+                            email.bodySize >= 0 ? email.bodySize : utf8Length(email.body));
+                    deliveryBus.publish(to, mailId + 1);
+                }
+            }
         }
     }
 
-    public synchronized void saveEmail(String messageId, String from, String to, String headers, String body) {
-        String sql = "INSERT INTO SMTP_DB(MessageID, MAIL_FROM, RCPT_TO, HEADERS, BODY) VALUES(?,?,?,?,?);";
+    private void startBlobCollector() {
+        Thread collector = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(BLOB_GC_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                collectGarbage();
+            }
+        }, "blob-gc");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Deletes stored bodies that no message references any more. Blobs
+     * younger than mail.store.gcGraceMs are kept, since a message sharing
+     * them may still be on its way through the ingest queue. Returns how
+     * many blobs were deleted.
+     */
+    public int collectGarbage() {
+        blobGcRuns.incrementAndGet();
+        Set<String> referenced;
+        try {
+            referenced = storage.referencedBlobs();
+        } catch (IOException e) {
+            System.err.println("Error listing referenced blobs: " + e.getMessage());
+            return 0;
+        }
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, messageId);
-            pstmt.setString(2, from);
-            pstmt.setString(3, to);
-            pstmt.setString(4, headers);
-            pstmt.setString(5, body);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            if (e.getErrorCode() == 19) { // UNIQUE constraint failed
-                System.err.println("Attempted to save a duplicate email. Message-ID: " + messageId);
-            } else {
-                System.err.println("Error saving email: " + e.getMessage());
+        int collected = 0;
+        for (String path : MessageStore.listBlobs()) {
+            if (referenced.contains(path) || MessageStore.age(path) < BLOB_GC_GRACE_MS) {
+                continue;
+            }
+            try {
+                if (storage.releaseBlob(path)) {
+                    MessageStore.delete(path);
+                    collected++;
+                }
+            } catch (IOException e) {
+                System.err.println("Error collecting blob " + path + ": " + e.getMessage());
             }
         }
+        blobsCollected.addAndGet(collected);
+        return collected;
     }
 
-    public synchronized boolean createUser(String username, String password) {
-        String sql = "INSERT INTO USERS(username, password) VALUES(?,?)";
+    public long getBlobGcRuns() { return blobGcRuns.get(); }
+    public long getBlobsCollected() { return blobsCollected.get(); }
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, password);
-            pstmt.executeUpdate();
-            System.out.println("User " + username + " created.");
-            return true;
-        } catch (SQLException e) {
-            if (e.getErrorCode() == 19) { 
+    public String blobStats() {
+        return String.format("%s gc[runs=%d collected=%d]", MessageStore.stats(), getBlobGcRuns(), getBlobsCollected());
+    }
+
+    private static long utf8Length(String text) {
+        return text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public boolean createUser(String username, String password) {
+        try {
+            if (!storage.createUser(username, Authenticator.hash(password))) {
                 System.err.println("Error creating user: " + username + " already exists.");
-            } else {
-                System.err.println("Error creating user: " + e.getMessage());
+                return false;
             }
+            System.out.println("User " + username + " created.");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error creating user: " + e.getMessage());
             return false;
         }
     }
 
-    public synchronized boolean authenticateUser(String username, String password) {
-        String sql = "SELECT password FROM USERS WHERE username = ?;";
-        
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
+    public boolean authenticateUser(String username, String password) {
+        return authenticateUser(username, password, null);
+    }
 
-            if (rs.next()) {
-                String storedPassword = rs.getString("password");
-                return storedPassword.equals(password);
-            }
-            return false; // User not found
-        } catch (SQLException e) {
+    /** Checks a login from a client address, which counts towards its failed-login limit. */
+    public boolean authenticateUser(String username, String password, String address) {
+        try {
+            return authenticator.authenticate(username, password, address);
+        } catch (IOException e) {
             System.err.println("Error authenticating user: " + e.getMessage());
             return false;
         }
     }
 
-    public synchronized int getEmailCountForUser(String username) {
-        String sql = "SELECT COUNT(*) AS count FROM SMTP_DB WHERE RCPT_TO = ?;";
-        
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
+    public int getEmailCountForUser(String username) {
+        MailboxCache.Snapshot mailbox = getMailbox(username);
+        return mailbox == null ? 0 : mailbox.size();
+    }
 
-            if (rs.next()) {
-                return rs.getInt("count");
-            }
-            return 0;
-        } catch (SQLException e) {
-            System.err.println("Error getting email count: " + e.getMessage());
-            return 0;
+    /** Lower bound for the next UID this user's mailbox will receive. */
+    public long getUidNext(String username) {
+        try {
+            return storage.uidNext(username);
+        } catch (IOException e) {
+            System.err.println("Error getting UIDNEXT: " + e.getMessage());
+            return 1;
         }
     }
 
-    public synchronized List<Long> getEmailIdsForUser(String username) {
-        List<Long> emailIds = new ArrayList<>();
-        String sql = "SELECT IDmail FROM SMTP_DB WHERE RCPT_TO = ? ORDER BY DATE ASC;";
+    /**
+     * Returns the shared, cached view of a user's mailbox for SELECT, or
+     * null if it could not be loaded.
+     */
+    public MailboxCache.Snapshot getMailbox(String username) {
+        return mailboxCache.get(username);
+    }
+
+    /** Same, after a delivery event that already told us the mailbox's UIDNEXT. */
+    public MailboxCache.Snapshot getMailbox(String username, long uidNext) {
+        return mailboxCache.get(username, uidNext);
+    }
+
+    /** Receives FETCH results one at a time, in mailbox order, with their zero-based position. */
+    public interface MessageConsumer {
+        void accept(int index, StoredMessage message) throws IOException;
+    }
+
+    /** Carries a consumer's own IOException through the storage, apart from read failures. */
+    private static class ConsumerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConsumerException(IOException cause) {
+            super(cause);
+        }
+    }
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
+    /**
+     * Streams the messages at positions first..last of a mailbox view to
+     * the consumer. Sizes are always available; headers and bodies only
+     * when asked for. Messages whose headers (and body, if needed) are in
+     * the MessageCache are served from it. Each run of misses is loaded
+     * with a single range read and then cached. Returns false if a
+     * read failed.
+     */
+    public boolean fetchMessages(String username, UidIndex uids, int first, int last, boolean withHeaders,
+                                 boolean withBody, MessageConsumer consumer) throws IOException {
+        // Only messages fetched with their headers are worth caching
+        boolean cached = withHeaders;
+        int index = first;
+        while (index <= last) {
+            if (cached) {
+                StoredMessage hit = messageCache.get(uids.uidAt(index), withBody);
+                if (hit != null) {
+                    consumer.accept(index, hit);
+                    index++;
+                    continue;
+                }
+            }
+            int end = cached ? index : last;
+            while (end < last && !messageCache.contains(uids.uidAt(end + 1), withBody)) {
+                end++;
+            }
 
-            while (rs.next()) {
-                emailIds.add(rs.getLong("IDmail"));
+            final int runEnd = end;
+            final int[] cursor = {index};
+            try {
+                storage.fetch(username, uids.uidAt(index), uids.uidAt(end), withHeaders, withBody, message -> {
+                    while (cursor[0] <= runEnd && uids.uidAt(cursor[0]) < message.getId()) {
+                        cursor[0]++;
+                    }
+                    if (cursor[0] <= runEnd && uids.uidAt(cursor[0]) == message.getId()) {
+                        try {
+                            consumer.accept(cursor[0], cached ? cache(message, withBody) : message);
+                        } catch (IOException e) {
+                            throw new ConsumerException(e);
+                        }
+                    }
+                });
+            } catch (ConsumerException e) {
+                throw (IOException) e.getCause();
+            } catch (IOException e) {
+                System.err.println("Error getting emails: " + e.getMessage());
+                return false;
             }
-        } catch (SQLException e) {
-            System.err.println("Error getting email IDs: " + e.getMessage());
+            index = end + 1;
         }
-        return emailIds;
+        return true;
     }
 
-    public synchronized Map<String, String> getEmail(long mailId) {
-        Map<String, String> email = new HashMap<>();
-        String sql = "SELECT HEADERS, BODY FROM SMTP_DB WHERE IDmail = ?;";
+    /** Adds a freshly loaded message to the MessageCache, reading small stored bodies into it. */
+    private StoredMessage cache(StoredMessage message, boolean withBody) {
+        String bodyPath = message.bodyPath();
+        if (withBody && bodyPath != null && message.bodySize() <= messageCache.getMaxBodySize()) {
+            try {
+                byte[] body = MessageStore.readBodyBytes(bodyPath);
+                messageCache.put(message, true, body);
+                return new StoredMessage(message.getId(), message.headers(), ByteBuffer.wrap(body), null,
+                        message.headerSize(), body.length);
+            } catch (IOException e) {
+                System.err.println("Error reading stored body: " + e.getMessage());
+            }
+        }
+        messageCache.put(message, withBody, null);
+        return message;
+    }
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /** UIDs of a user's messages that match compiled SEARCH criteria, in UID order. Null if the search failed. */
+    public UidIndex search(String username, MailSearch.Criteria criteria) {
+        try {
+            return storage.search(username, criteria);
+        } catch (IOException e) {
+            System.err.println("Error searching emails: " + e.getMessage());
+            return null;
+        }
+    }
 
-            pstmt.setLong(1, mailId);
-            ResultSet rs = pstmt.executeQuery();
+    /**
+     * Adds and removes MailStorage.FLAG_* bits on a message. Returns the
+     * resulting flags, or -1 if the message does not exist or storing failed.
+     */
+    public int setFlags(String username, long uid, int add, int remove) {
+        try {
+            int flags = storage.storeFlags(username, uid, add, remove);
+            if (flags >= 0) {
+                mailboxCache.onFlags(username, uid, flags);
+            }
+            return flags;
+        } catch (IOException e) {
+            System.err.println("Error storing flags: " + e.getMessage());
+            return -1;
+        }
+    }
 
-            if (rs.next()) {
-                email.put("headers", rs.getString("HEADERS"));
-                email.put("body", rs.getString("BODY"));
+    /**
+     * Removes a user's messages flagged \Deleted and returns their UIDs, or
+     * null if that failed. Cached mailbox entries only ever grow, so the
+     * user's entry is dropped and loaded again on the next SELECT; sessions
+     * keep the snapshots they already hold.
+     */
+    public UidIndex expunge(String username) {
+        UidIndex expunged;
+        try {
+            expunged = storage.expunge(username);
+        } catch (IOException e) {
+            System.err.println("Error expunging mailbox of " + username + ": " + e.getMessage());
+            return null;
+        }
+        if (expunged.size() > 0) {
+            mailboxCache.invalidate(username);
+            for (int i = 0; i < expunged.size(); i++) {
+                messageCache.remove(expunged.uidAt(i));
             }
-        } catch (SQLException e) {
+        }
+        return expunged;
+    }
+
+    public Map<String, String> getEmail(long mailId) {
+        try {
+            Map<String, String> email = storage.getEmail(mailId);
+            return email != null ? email : new HashMap<>();
+        } catch (IOException e) {
             System.err.println("Error getting email: " + e.getMessage());
+            return new HashMap<>();
         }
-        return email;
     }
 }
@@ -1,9 +1,36 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class IMAPServer {
     private static final int PORT = 143;
+    private static final int MAX_LINE_LENGTH = Integer.getInteger("imap.maxLineLength", 64 * 1024);
+    // Threads shared by all sessions for pipelined FETCH and SEARCH, and how many one session may run at once
+    private static final int COMMAND_THREADS = Integer.getInteger("imap.commandThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_PIPELINED = Integer.getInteger("imap.maxPipelined", 8);
+    // System flags, as stored in MailStorage.FLAG_* bits; keywords are not kept
+    private static final String[] FLAG_NAMES = {"\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft"};
+    private static final int[] FLAG_BITS = {MailStorage.FLAG_SEEN, MailStorage.FLAG_ANSWERED, MailStorage.FLAG_FLAGGED,
+            MailStorage.FLAG_DELETED, MailStorage.FLAG_DRAFT};
+    private static final int ALL_FLAGS = MailStorage.FLAG_SEEN | MailStorage.FLAG_ANSWERED | MailStorage.FLAG_FLAGGED
+            | MailStorage.FLAG_DELETED | MailStorage.FLAG_DRAFT;
+    private static ExecutorService commandPool;
 
     public static void main(String[] args) {
         // Create a default user for testing purposes
@@ -13,273 +40,1209 @@ public class IMAPServer {
 
     private static void startServer() {
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
+            // Accept through a channel so each Socket has a SocketChannel for FileChannel.transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT));
+            ServerSocket serverSocket = serverChannel.socket();
             System.out.println("IMAP Server started on port " + PORT);
+            Executor sessions = ServerThreads.sessionExecutor("imap");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New IMAP client connected: " + clientSocket.getInetAddress());
-                new Thread(new IMAPSessionHandler(clientSocket)).start();
+                sessions.execute(new IMAPSessionHandler(clientSocket, sessions));
             }
         } catch (IOException e) {
             System.err.println("Failed to start IMAP server: " + e.getMessage());
         }
     }
 
+    private static synchronized ExecutorService commandPool() {
+        if (commandPool == null) {
+            AtomicInteger counter = new AtomicInteger();
+            commandPool = Executors.newFixedThreadPool(COMMAND_THREADS, task -> {
+                Thread thread = new Thread(task, "imap-command-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return commandPool;
+    }
+
+    /**
+     * Holds IDLE sessions without a thread each. A parked session's socket
+     * is registered with one selector; when the client sends DONE (or goes
+     * away) the session is handed back to the session executor and carries
+     * on where it stopped. New-mail pushes meanwhile come from the
+     * DeliveryBus thread, so thousands of idle clients cost two threads.
+     */
+    /** FLAG_* bits as an IMAP flag list, without the parentheses. */
+    static String flagList(int flags) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if ((flags & FLAG_BITS[i]) != 0) {
+                if (list.length() > 0) {
+                    list.append(' ');
+                }
+                list.append(FLAG_NAMES[i]);
+            }
+        }
+        return list.toString();
+    }
+
+    /** FLAG_* bit of a system flag name, or 0 for a flag that cannot be stored. */
+    static int flagBit(String name) {
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if (FLAG_NAMES[i].equalsIgnoreCase(name)) {
+                return FLAG_BITS[i];
+            }
+        }
+        return 0;
+    }
+
+    static class IdleParking implements Runnable {
+        private static IdleParking instance;
+
+        private final Selector selector;
+        private final Queue<IMAPSessionHandler> pending = new ConcurrentLinkedQueue<>();
+
+        private IdleParking() throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, "imap-idle");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static synchronized IdleParking get() throws IOException {
+            if (instance == null) {
+                instance = new IdleParking();
+            }
+            return instance;
+        }
+
+        void park(IMAPSessionHandler session) {
+            pending.add(session);
+            selector.wakeup();
+        }
+
+        public void run() {
+            List<IMAPSessionHandler> ready = new ArrayList<>();
+            while (true) {
+                try {
+                    selector.select();
+                    IMAPSessionHandler session;
+                    while ((session = pending.poll()) != null) {
+                        try {
+                            session.socketChannel.register(selector, SelectionKey.OP_READ, session);
+                        } catch (ClosedChannelException e) {
+                            session.closeParked();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        key.cancel();
+                        ready.add((IMAPSessionHandler) key.attachment());
+                    }
+                    if (!ready.isEmpty()) {
+                        // Flush the cancelled keys so the channels can go back to blocking mode
+                        selector.selectNow();
+                        for (IMAPSessionHandler parked : ready) {
+                            parked.unpark();
+                        }
+                        ready.clear();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error in IMAP idle selector: " + e.getMessage());
+                }
+            }
+        }
+    }
+
     static class IMAPSessionHandler implements Runnable {
         private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+        private final Executor sessions;
+        private SocketChannel socketChannel;
+        private OutputStream rawOut;
+        // Set when the socket came from a ServerSocketChannel, which enables zero-copy literals
+        private WritableByteChannel channel;
+        private ProtocolCodec.LineReader in;
+        private final ProtocolCodec.ImapCommand command = new ProtocolCodec.ImapCommand();
         private boolean authenticated = false;
         private String loggedInUser = null;
-        private List<Long> messageIds = new ArrayList<>();
+        // Shared view of the selected mailbox from the MailboxCache
+        private MailboxCache.Snapshot selectedMailbox = null;
+        private UidIndex messageIds = null;
+
+        // Two locks rather than one monitor, so a session on a virtual thread is never
+        // pinned and nobody waits on session state while a body goes to the socket.
+        // stateLock guards the response queue and session state; writeLock guards the
+        // socket output (rawOut, channel, parked, broken) and is the only lock held
+        // during a write. A thread that decides under stateLock what goes out next
+        // takes writeLock before letting go of stateLock, so output leaves in the
+        // order it was decided. Nothing takes stateLock while holding writeLock.
+        // Writers are concurrent commands' responses and IDLE pushes from the
+        // DeliveryBus thread. While parked the socket is non-blocking and pushes go
+        // straight to the channel.
+        private final ReentrantLock stateLock = new ReentrantLock();
+        // Signalled when the last queued response has finished
+        private final Condition drained = stateLock.newCondition();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // Commands whose responses are not fully written yet, in the order they were read
+        private final ArrayDeque<Response> responses = new ArrayDeque<>();
+        private int running; // commands on the command pool
+        private boolean waitingForInput; // the session thread is about to block reading
+        private volatile boolean broken;
+        private final DeliveryBus.Listener idleListener = this::onDelivery;
+        private volatile String idleTag = null;
+        private boolean parked = false;
 
-        public IMAPSessionHandler(Socket socket) {
+        public IMAPSessionHandler(Socket socket, Executor sessions) {
             this.clientSocket = socket;
+            this.sessions = sessions;
         }
 
-        private void send(String response) {
-            out.println(response);
-            System.out.println("S: " + response);
-        }
+        /**
+         * The output of one command. Responses leave in the order the commands
+         * were read: the oldest unfinished command writes straight into the
+         * socket buffer, later ones (running concurrently) collect their output
+         * here until everything before them is out. Stored bodies are held as
+         * paths, so they still go from file to socket with transferTo.
+         *
+         * Nothing is flushed per line; the buffer goes out when the session has
+         * no more pipelined input to work through, or before waiting on the client.
+         */
+        private class Response extends OutputStream implements WritableByteChannel {
+            private final List<Object> held = new ArrayList<>(); // byte[] chunks and body paths
+            private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            // Guarded by stateLock and only ever set to true while writeLock is held as well,
+            // so once seen, writing just needs writeLock: whatever came before is out or in progress
+            private boolean direct;
+            private boolean finished;
+            private boolean concurrent;
 
-        public void run() {
-            try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            void send(String line) {
+                System.out.println("S: " + line);
+                byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+                write(bytes, 0, bytes.length);
+            }
+
+            /** Writes a FETCH literal: the header block, the body, or both. */
+            void literal(StoredMessage email, String part) throws IOException {
+                if (!part.equals("BODY[TEXT]")) {
+                    email.writeHeaders(this, this);
+                }
+                if (part.equals("BODY[HEADER]")) {
+                    return;
+                }
+                if (part.equals("BODY[]")) {
+                    write(SEPARATOR, 0, SEPARATOR.length);
+                }
+                String bodyPath = email.inlineBody() == null ? email.bodyPath() : null;
+                if (bodyPath == null) {
+                    email.writeBody(this, this);
+                    return;
+                }
+                stateLock.lock();
+                if (!direct) {
+                    try {
+                        hold();
+                        held.add(bodyPath);
+                    } finally {
+                        stateLock.unlock();
+                    }
+                    return;
+                }
+                stateLock.unlock();
+                writeLock.lock();
+                try {
+                    if (!broken) {
+                        transfer(bodyPath);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
 
-                send("* OK IMAP server ready");
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
 
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    System.out.println("C: " + inputLine);
-                    if (inputLine.trim().isEmpty()) {
-                        continue;
+            @Override
+            public void write(byte[] b, int off, int len) {
+                stateLock.lock();
+                if (!direct) {
+                    try {
+                        chunk.write(b, off, len);
+                    } finally {
+                        stateLock.unlock();
                     }
-                    String[] parts = inputLine.split(" ");
-                    String tag = parts[0];
-                    String command = parts[1].toUpperCase();
-
-                    if (command.equals("CAPABILITY")) {
-                        send("* CAPABILITY IMAP4rev1");
-                        send(tag + " OK CAPABILITY completed");
-                    } else if (command.equals("LOGIN")) {
-                        if (parts.length < 4) {
-                            send(tag + " BAD Invalid LOGIN command");
-                            continue;
-                        }
-                        String username = parts[2].replaceAll("\"", "");
-                        String password = parts[3].replaceAll("\"", "");
+                    return;
+                }
+                stateLock.unlock();
+                writeLock.lock();
+                try {
+                    if (!broken) {
+                        rawOut.write(b, off, len);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
 
-                        if (EmailDatabase.getInstance().authenticateUser(username, password)) {
-                            authenticated = true;
-                            loggedInUser = username;
-                            send(tag + " OK LOGIN successful");
-                        } else {
-                            send(tag + " NO LOGIN failed");
+            /** Off-heap cache entries arrive here and go to the socket channel without a copy. */
+            @Override
+            public int write(ByteBuffer source) {
+                int length = source.remaining();
+                if (channel == null) {
+                    byte[] bytes = new byte[length];
+                    source.get(bytes);
+                    write(bytes, 0, length);
+                    return length;
+                }
+                stateLock.lock();
+                if (!direct) {
+                    try {
+                        byte[] bytes = new byte[length];
+                        source.get(bytes);
+                        chunk.write(bytes, 0, length);
+                    } finally {
+                        stateLock.unlock();
+                    }
+                    return length;
+                }
+                stateLock.unlock();
+                writeLock.lock();
+                try {
+                    if (!broken) {
+                        rawOut.flush();
+                        while (source.hasRemaining()) {
+                            channel.write(source);
                         }
-                    } else if (command.equals("LOGOUT")) {
-                        send("* BYE IMAP server logging out");
-                        send(tag + " OK LOGOUT successful");
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    writeLock.unlock();
+                }
+                return length;
+            }
+
+            /** Pushes out what was written so far, if it is this command's turn. */
+            @Override
+            public void flush() {
+                stateLock.lock();
+                if (!direct) {
+                    stateLock.unlock();
+                    return;
+                }
+                stateLock.unlock();
+                writeLock.lock();
+                try {
+                    flushOutput();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            private void hold() {
+                if (chunk.size() > 0) {
+                    held.add(chunk.toByteArray());
+                    chunk.reset();
+                }
+            }
+
+            /**
+             * Hands everything held back to {@code parts} for writing and switches
+             * to writing directly. Caller holds stateLock.
+             */
+            private void release(List<Object> parts) {
+                hold();
+                parts.addAll(held);
+                held.clear();
+                direct = true;
+            }
+        }
+
+        private static final byte[] SEPARATOR = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        /** Writes held response parts in order. Caller holds writeLock. */
+        private void writeParts(List<Object> parts) {
+            try {
+                for (Object part : parts) {
+                    if (broken) {
                         break;
-                    } else if (authenticated) {
-                        if (command.equals("LIST") || command.equals("LSUB") || command.equals("SUBSCRIBE")) {
-                            send("* LIST (\\HasNoChildren) \"/\" \"INBOX\"");
-                            send(tag + " OK " + command + " completed");
-                        } else if (command.equals("CREATE")) {
-                            send(tag + " OK CREATE completed");
-                        } else if (command.equals("SELECT")) {
-                            if (parts.length < 3 || !parts[2].replaceAll("\"", "").equalsIgnoreCase("INBOX")) {
-                                send(tag + " NO No such mailbox");
-                                continue;
-                            }
-                            messageIds = EmailDatabase.getInstance().getEmailIdsForUser(loggedInUser);
-                            int emailCount = messageIds.size();
-                            send("* " + emailCount + " EXISTS");
-                            send("* 0 RECENT");
-                            send("* FLAGS (\\Seen)");
-                            send(tag + " OK [READ-WRITE] SELECT completed");
-                        } else if (command.equals("FETCH") || command.equals("UID")) {
-                            handleFetch(tag, inputLine);
-                        } else if (command.equals("APPEND")) {
-                            handleAppend(tag, inputLine);
-                        } else if (command.equals("NOOP")) {
-                            send(tag + " OK NOOP completed");
-                        } else {
-                            send(tag + " BAD Command not implemented");
-                        }
+                    }
+                    if (part instanceof byte[]) {
+                        rawOut.write((byte[]) part);
                     } else {
-                        send(tag + " BAD Please login first");
+                        transfer((String) part);
                     }
                 }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
 
+        /** Sends a stored body from file to socket. Caller holds writeLock. */
+        private void transfer(String bodyPath) throws IOException {
+            if (channel != null) {
+                rawOut.flush();
+                MessageStore.transferBody(bodyPath, channel);
+            } else {
+                MessageStore.copyBody(bodyPath, rawOut);
+            }
+        }
+
+        /** A write failed: drop further output and close the socket so the session ends. Caller holds writeLock. */
+        private void fail(IOException e) {
+            if (broken) {
+                return;
+            }
+            broken = true;
+            System.err.println("Error writing to IMAP client: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // Already going away
+            }
+        }
+
+        /** Starts the output of the next command, queued behind the ones still running. */
+        private Response begin() {
+            Response response = new Response();
+            stateLock.lock();
+            try {
+                response.direct = responses.isEmpty();
+                responses.add(response);
+            } finally {
+                stateLock.unlock();
+            }
+            return response;
+        }
+
+        /**
+         * Ends a command's output and lets the next ones write theirs. The
+         * socket buffer is flushed once nothing is left to write and the
+         * session is waiting for the client.
+         */
+        private void finish(Response response) {
+            List<Object> parts = null;
+            boolean flush = false;
+            stateLock.lock();
+            try {
+                response.finished = true;
+                Response head;
+                while ((head = responses.peek()) != null) {
+                    if (!head.direct) {
+                        if (parts == null) {
+                            parts = new ArrayList<>();
+                            writeLock.lock();
+                        }
+                        head.release(parts);
+                    }
+                    if (!head.finished) {
+                        break;
+                    }
+                    responses.poll();
+                }
+                if (responses.isEmpty()) {
+                    flush = waitingForInput;
+                    drained.signalAll();
+                }
+                if (parts == null) {
+                    if (!flush) {
+                        return;
+                    }
+                    writeLock.lock();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+            try {
+                if (parts != null) {
+                    writeParts(parts);
+                }
+                if (flush) {
+                    flushOutput();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** A one-line response outside any command, such as the greeting. */
+        private void reply(String line) {
+            Response response = begin();
+            response.send(line);
+            finish(response);
+        }
+
+        /** Caller holds writeLock. */
+        private void flushOutput() {
+            if (broken) {
+                return;
+            }
+            try {
+                rawOut.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /** Waits until every earlier command has finished and its output is written. */
+        private void awaitResponses() throws IOException {
+            stateLock.lock();
+            try {
+                while (!responses.isEmpty()) {
+                    try {
+                        drained.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for responses");
+                    }
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        /**
+         * Runs a read-only command. When the client has already pipelined more
+         * commands it goes to the command pool, so the session can read on and
+         * start the next one; RFC 3501 (5.5) allows this for commands that do
+         * not depend on each other. Otherwise it simply runs here.
+         */
+        private void runCommand(Response response, Runnable task) throws IOException {
+            boolean pooled = false;
+            if (in.hasBufferedInput()) {
+                stateLock.lock();
+                try {
+                    if (running < MAX_PIPELINED) {
+                        running++;
+                        pooled = true;
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+            }
+            if (!pooled) {
+                task.run();
+                return;
+            }
+            response.concurrent = true;
+            commandPool().execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    stateLock.lock();
+                    try {
+                        running--;
+                    } finally {
+                        stateLock.unlock();
+                    }
+                    finish(response);
+                }
+            });
+        }
+
+        public void run() {
+            boolean parkedNow = false;
+            try {
+                if (rawOut == null) {
+                    rawOut = new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024);
+                    socketChannel = clientSocket.getChannel();
+                    channel = socketChannel;
+                    in = new ProtocolCodec.LineReader(clientSocket.getInputStream(), MAX_LINE_LENGTH);
+
+                    reply("* OK IMAP server ready");
+                }
+                parkedNow = serve();
             } catch (IOException e) {
                 System.err.println("Error with IMAP client: " + e.getMessage());
             } finally {
+                if (!parkedNow) {
+                    close();
+                }
+            }
+        }
+
+        /** Reads the next command line, flushing pending output first if the client has sent nothing more. */
+        private int nextLine() throws IOException {
+            if (!in.hasBufferedInput()) {
+                boolean flush;
+                stateLock.lock();
                 try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing IMAP socket: " + e.getMessage());
+                    waitingForInput = true;
+                    flush = responses.isEmpty();
+                    if (flush) {
+                        writeLock.lock();
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+                if (flush) {
+                    try {
+                        flushOutput();
+                    } finally {
+                        writeLock.unlock();
+                    }
                 }
             }
+            int length = in.readLine();
+            stateLock.lock();
+            try {
+                waitingForInput = false;
+            } finally {
+                stateLock.unlock();
+            }
+            return length;
         }
 
-        private void handleFetch(String tag, String rawCommand) {
+        /** Runs commands until the client leaves (false) or the session is parked in IDLE (true). */
+        private boolean serve() throws IOException {
+            int length;
+            while ((length = nextLine()) != -1) {
+                byte[] line = in.line();
+                System.out.println("C: " + ProtocolCodec.decode(line, 0, length));
+                if (idleTag != null) {
+                    endIdle(line, length);
+                    continue;
+                }
+                if (!command.parse(line, 0, length)) {
+                    if (length > 0) {
+                        reply("* BAD Invalid command");
+                    }
+                    continue;
+                }
+                String tag = command.tag();
+                ProtocolCodec.ImapCommand.Verb verb = command.verb();
+
+                // Commands that change session or mailbox state wait for everything
+                // before them; read-only ones may overlap with earlier FETCH and SEARCH
+                if (!isReadOnly(command)) {
+                    awaitResponses();
+                }
+                Response out = begin();
+                boolean logout = false;
+
+                if (command.isUid() && verb != ProtocolCodec.ImapCommand.Verb.FETCH
+                        && verb != ProtocolCodec.ImapCommand.Verb.SEARCH && verb != ProtocolCodec.ImapCommand.Verb.STORE) {
+                    out.send(tag + " BAD Command not implemented");
+                } else if (verb == ProtocolCodec.ImapCommand.Verb.CAPABILITY) {
+                    out.send("* CAPABILITY IMAP4rev1 IDLE");
+                    out.send(tag + " OK CAPABILITY completed");
+                } else if (verb == ProtocolCodec.ImapCommand.Verb.LOGIN) {
+                    String username = command.nextAstring();
+                    String password = command.nextAstring();
+                    if (username == null || password == null) {
+                        out.send(tag + " BAD Invalid LOGIN command");
+                    } else if (EmailDatabase.getInstance().authenticateUser(username, password,
+                            clientSocket.getInetAddress().getHostAddress())) {
+                        authenticated = true;
+                        loggedInUser = username;
+                        out.send(tag + " OK LOGIN successful");
+                    } else {
+                        out.send(tag + " NO LOGIN failed");
+                    }
+                } else if (verb == ProtocolCodec.ImapCommand.Verb.LOGOUT) {
+                    out.send("* BYE IMAP server logging out");
+                    out.send(tag + " OK LOGOUT successful");
+                    logout = true;
+                } else if (authenticated) {
+                    switch (verb) {
+                        case LIST:
+                        case LSUB:
+                        case SUBSCRIBE:
+                            out.send("* LIST (\\HasNoChildren) \"/\" \"INBOX\"");
+                            out.send(tag + " OK " + verb + " completed");
+                            break;
+                        case CREATE:
+                            out.send(tag + " OK CREATE completed");
+                            break;
+                        case SELECT: {
+                            String mailbox = command.nextAstring();
+                            if (mailbox == null || !mailbox.equalsIgnoreCase("INBOX")) {
+                                out.send(tag + " NO No such mailbox");
+                                break;
+                            }
+                            MailboxCache.Snapshot selected = EmailDatabase.getInstance().getMailbox(loggedInUser);
+                            if (selected == null) {
+                                out.send(tag + " NO Mailbox could not be opened");
+                                break;
+                            }
+                            selectedMailbox = selected;
+                            messageIds = selected.uids();
+                            int emailCount = messageIds.size();
+                            out.send("* " + emailCount + " EXISTS");
+                            out.send("* 0 RECENT");
+                            out.send("* FLAGS (" + flagList(ALL_FLAGS) + ")");
+                            out.send("* OK [PERMANENTFLAGS (" + flagList(ALL_FLAGS) + ")] Flags permitted");
+                            out.send("* OK [UIDNEXT " + selected.uidNext() + "] Predicted next UID");
+                            out.send(tag + " OK [READ-WRITE] SELECT completed");
+                            break;
+                        }
+                        case FETCH: {
+                            // Concurrent commands work on the mailbox as it was when they were read
+                            boolean isUidFetch = command.isUid();
+                            String arguments = command.arguments();
+                            MailboxCache.Snapshot mailbox = selectedMailbox;
+                            if (marksSeen(arguments)) {
+                                // It changes flags, so it runs in order like STORE
+                                handleFetch(out, tag, isUidFetch, arguments, mailbox);
+                            } else {
+                                runCommand(out, () -> handleFetch(out, tag, isUidFetch, arguments, mailbox));
+                            }
+                            break;
+                        }
+                        case SEARCH: {
+                            boolean isUidSearch = command.isUid();
+                            MailboxCache.Snapshot mailbox = selectedMailbox;
+                            MailSearch.Criteria criteria = parseSearch(out, tag, mailbox);
+                            if (criteria != null) {
+                                runCommand(out, () -> handleSearch(out, tag, isUidSearch, criteria, mailbox));
+                            }
+                            break;
+                        }
+                        case STORE:
+                            handleStore(out, tag, command.isUid(), selectedMailbox);
+                            break;
+                        case EXPUNGE:
+                            handleExpunge(out, tag);
+                            break;
+                        case APPEND:
+                            handleAppend(out, tag, command.arguments());
+                            break;
+                        case NOOP:
+                            out.send(tag + " OK NOOP completed");
+                            break;
+                        case IDLE:
+                            if (selectedMailbox == null) {
+                                out.send(tag + " NO Select a mailbox first");
+                                break;
+                            }
+                            if (startIdle(out, tag)) {
+                                return true;
+                            }
+                            continue;
+                        default:
+                            out.send(tag + " BAD Command not implemented");
+                            break;
+                    }
+                } else {
+                    out.send(tag + " BAD Please login first");
+                }
+
+                if (!out.concurrent) {
+                    finish(out);
+                }
+                if (logout) {
+                    break;
+                }
+            }
+            // Let commands still on the pool answer before the connection closes
+            awaitResponses();
+            writeLock.lock();
             try {
-                String[] cmdParts = rawCommand.split(" ", 3);
-                boolean isUidFetch = cmdParts.length > 1 && cmdParts[1].equalsIgnoreCase("UID");
-                String upperCmd = rawCommand.toUpperCase();
-                
-                int fetchIndex = upperCmd.indexOf("FETCH");
-                if (fetchIndex == -1) {
-                    send(tag + " BAD Malformed FETCH command");
+                flushOutput();
+            } finally {
+                writeLock.unlock();
+            }
+            return false;
+        }
+
+        /** Commands that neither change the session nor the mailbox, and may overlap. */
+        private static boolean isReadOnly(ProtocolCodec.ImapCommand command) {
+            switch (command.verb()) {
+                case FETCH:
+                    // Reading a message part without PEEK sets \Seen
+                    return !marksSeen(command.arguments());
+                case CAPABILITY:
+                case LIST:
+                case LSUB:
+                case SEARCH:
+                case NOOP:
+                case UNKNOWN:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Enters IDLE. Returns true if the session was parked, in which case
+         * the calling thread must leave the session alone.
+         */
+        private boolean startIdle(Response out, String tag) throws IOException {
+            stateLock.lock();
+            try {
+                idleTag = tag;
+            } finally {
+                stateLock.unlock();
+            }
+            out.send("+ idling");
+            out.flush();
+            finish(out);
+            EmailDatabase.getInstance().getDeliveryBus().subscribe(loggedInUser, idleListener);
+            // Catch up with anything delivered between SELECT and subscribing
+            onDelivery(loggedInUser, Long.MAX_VALUE);
+            if (socketChannel == null || in.hasBufferedInput()) {
+                return false; // DONE is already here (or cannot be waited for off-thread)
+            }
+            writeLock.lock();
+            try {
+                parked = true;
+                socketChannel.configureBlocking(false);
+            } finally {
+                writeLock.unlock();
+            }
+            IdleParking.get().park(this);
+            return true;
+        }
+
+        private void endIdle(byte[] line, int length) {
+            EmailDatabase.getInstance().getDeliveryBus().unsubscribe(loggedInUser, idleListener);
+            String tag;
+            stateLock.lock();
+            try {
+                tag = idleTag;
+                idleTag = null;
+            } finally {
+                stateLock.unlock();
+            }
+            if (ProtocolCodec.decode(line, 0, length).trim().equalsIgnoreCase("DONE")) {
+                reply(tag + " OK IDLE terminated");
+            } else {
+                reply(tag + " BAD Expected DONE");
+            }
+        }
+
+        /** DeliveryBus callback: tells an idling client how many messages its mailbox now holds. */
+        private void onDelivery(String username, long uidNext) {
+            stateLock.lock();
+            MailboxCache.Snapshot latest;
+            try {
+                if (idleTag == null) {
                     return;
                 }
-                String commandBody = rawCommand.substring(fetchIndex + 5).trim();
+                latest = EmailDatabase.getInstance().getMailbox(loggedInUser, uidNext);
+                if (latest == null || latest.size() <= messageIds.size()) {
+                    return;
+                }
+                selectedMailbox = latest;
+                messageIds = latest.uids();
+                // Taken before idleTag can be cleared, so the push cannot overtake "OK IDLE terminated"
+                writeLock.lock();
+            } finally {
+                stateLock.unlock();
+            }
+            try {
+                push("* " + latest.size() + " EXISTS");
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Writes an untagged response during IDLE. Caller holds writeLock. */
+        private void push(String response) {
+            System.out.println("S: " + response);
+            byte[] bytes = (response + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            if (!parked) {
+                // Nothing else is being written while idling
+                if (!broken) {
+                    try {
+                        rawOut.write(bytes);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                    flushOutput();
+                }
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                // A few bytes into an idle connection's empty send buffer; a client
+                // that cannot take even that much is dropped rather than waited on
+                socketChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    throw new IOException("client is not reading");
+                }
+            } catch (IOException e) {
+                System.err.println("Error notifying idle IMAP client: " + e.getMessage());
+                closeParked();
+            }
+        }
+
+        /** Called by IdleParking when the client sent something: resume on a session thread. */
+        void unpark() {
+            try {
+                writeLock.lock();
+                try {
+                    socketChannel.configureBlocking(true);
+                    parked = false;
+                } finally {
+                    writeLock.unlock();
+                }
+            } catch (IOException e) {
+                System.err.println("Error resuming IMAP client: " + e.getMessage());
+                closeParked();
+                return;
+            }
+            sessions.execute(this);
+        }
+
+        void closeParked() {
+            writeLock.lock();
+            try {
+                parked = false;
+            } finally {
+                writeLock.unlock();
+            }
+            close();
+        }
+
+        private void close() {
+            if (idleTag != null) {
+                idleTag = null;
+                EmailDatabase.getInstance().getDeliveryBus().unsubscribe(loggedInUser, idleListener);
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing IMAP socket: " + e.getMessage());
+            }
+        }
+
+        private void handleFetch(Response out, String tag, boolean isUidFetch, String arguments,
+                                 MailboxCache.Snapshot mailbox) {
+            try {
+                String commandBody = arguments.trim();
                 
                 int openParenIndex = commandBody.indexOf('(');
                 int closeParenIndex = commandBody.lastIndexOf(')');
                 if (openParenIndex == -1 || closeParenIndex == -1 || openParenIndex > closeParenIndex) {
-                    send(tag + " BAD Malformed FETCH command: Missing parentheses");
+                    out.send(tag + " BAD Malformed FETCH command: Missing parentheses");
                     return;
                 }
 
-                String messageSet = commandBody.substring(0, openParenIndex).trim();
+                String setText = commandBody.substring(0, openParenIndex).trim();
                 String fetchAttributes = commandBody.substring(openParenIndex + 1, closeParenIndex).toUpperCase();
                 
-                if (messageIds == null) {
-                    send(tag + " NO Mailbox not selected");
+                if (mailbox == null) {
+                    out.send(tag + " NO Mailbox not selected");
+                    return;
+                }
+                UidIndex uids = mailbox.uids();
+                ProtocolCodec.MessageSet messageSet = new ProtocolCodec.MessageSet();
+                if (!messageSet.parse(setText)) {
+                    out.send(tag + " BAD Invalid message set");
                     return;
                 }
-                
-                List<Long> numbersToFetch = parseMessageSet(messageSet);
-
-                for (long number : numbersToFetch) {
-                    long dbId;
-                    int sequenceNum;
 
-                    if (isUidFetch) {
-                        dbId = number;
-                        int index = messageIds.indexOf(dbId);
-                        if (index == -1) continue;
-                        sequenceNum = index + 1;
-                    } else {
-                        sequenceNum = (int) number;
-                        if (sequenceNum <= 0 || sequenceNum > messageIds.size()) continue;
-                        dbId = messageIds.get(sequenceNum - 1);
-                    }
-                    
-                    Map<String, String> email = EmailDatabase.getInstance().getEmail(dbId);
-                    if (email.isEmpty()) continue;
-
-                    String headers = email.get("headers") != null ? email.get("headers") : "";
-                    String body = email.get("body") != null ? email.get("body") : "";
-                    String fullEmail = headers + "\r\n\r\n" + body;
-                    int emailSize = fullEmail.length();
-
-                    StringBuilder response = new StringBuilder();
-                    response.append("* ").append(sequenceNum).append(" FETCH (");
-
-                    List<String> responseParts = new ArrayList<>();
-                    
-                    // Per RFC 3501, UID MUST be sent in a UID FETCH response.
-                    if (isUidFetch) {
-                        responseParts.add("UID " + dbId);
-                    }
+                // Resolve the set to runs of mailbox positions, so the rows can be
+                // loaded with one query per run instead of one query per message.
+                List<int[]> runs = uids.resolve(messageSet, isUidFetch);
 
-                    if (fetchAttributes.contains("UID") && !isUidFetch) {
-                        responseParts.add("UID " + dbId);
-                    }
-                    if (fetchAttributes.contains("FLAGS")) {
-                        responseParts.add("FLAGS (\\Seen)");
-                    }
-                    if (fetchAttributes.contains("RFC822.SIZE")) {
-                        responseParts.add("RFC822.SIZE " + emailSize);
-                    }
+                String literalPart = fetchPart(fetchAttributes);
+                boolean markSeen = marksSeen(fetchAttributes);
+                // Only read the columns the requested attributes need
+                boolean withHeaders = "BODY[HEADER]".equals(literalPart) || "BODY[]".equals(literalPart);
+                boolean withBody = "BODY[TEXT]".equals(literalPart) || "BODY[]".equals(literalPart);
 
-                    response.append(String.join(" ", responseParts));
-
-                    String literalPart = null;
-                    String literalContent = null;
-                    
-                    if (fetchAttributes.contains("HEADER.FIELDS") || fetchAttributes.contains("BODY.PEEK[HEADER]") || fetchAttributes.contains("BODY[HEADER]")) {
-                        literalPart = "BODY[HEADER]";
-                        literalContent = headers;
-                    } else if (fetchAttributes.contains("BODY.PEEK[TEXT]") || fetchAttributes.contains("BODY[TEXT]")) {
-                        literalPart = "BODY[TEXT]";
-                        literalContent = body;
-                    } else if (fetchAttributes.contains("BODY[]") || java.util.Arrays.asList(fetchAttributes.split(" ")).contains("RFC822")) {
-                        literalPart = "BODY[]";
-                        literalContent = fullEmail;
+                if (literalPart == null) {
+                    // Metadata only: everything needed is in the cached mailbox
+                    for (int[] run : runs) {
+                        for (int index = run[0]; index <= run[1]; index++) {
+                            sendFetchResponse(out, index + 1, mailbox.metadata(index), isUidFetch, fetchAttributes, null,
+                                    mailbox.flags(index), false);
+                        }
                     }
+                    out.send(tag + " OK FETCH completed");
+                    return;
+                }
 
-                    if (literalPart != null) {
-                        if (!responseParts.isEmpty()) {
-                            response.append(" ");
-                        }
-                        response.append(literalPart).append(" {").append(literalContent.length()).append("}");
-                        send(response.toString());
-                        send(literalContent);
-                        send(")");
-                    } else {
-                        response.append(")");
-                        send(response.toString());
+                // Hot messages come from the MessageCache, the rest with one range
+                // query per run of misses; responses go out as the rows arrive
+                final String part = literalPart;
+                for (int[] run : runs) {
+                    boolean loaded = EmailDatabase.getInstance().fetchMessages(loggedInUser, uids, run[0], run[1],
+                            withHeaders, withBody,
+                            (index, email) -> {
+                                int flags = mailbox.flags(index);
+                                boolean changed = markSeen && (flags & MailStorage.FLAG_SEEN) == 0;
+                                if (changed) {
+                                    flags = markSeen(email.getId(), flags);
+                                }
+                                sendFetchResponse(out, index + 1, email, isUidFetch, fetchAttributes, part, flags, changed);
+                            });
+                    if (!loaded) {
+                        out.send(tag + " NO FETCH failed");
+                        return;
                     }
                 }
-                send(tag + " OK FETCH completed");
+                out.send(tag + " OK FETCH completed");
             } catch (Exception e) {
                 System.err.println("Error during FETCH: " + e.getMessage());
                 e.printStackTrace();
-                send(tag + " BAD Error during FETCH");
+                out.send(tag + " BAD Error during FETCH");
             }
         }
 
-        private List<Long> parseMessageSet(String set) {
-            List<Long> messageNumbers = new ArrayList<>();
-            String[] parts = set.split(",");
-            for (String part : parts) {
-                try {
-                    if (part.contains(":")) {
-                        String[] range = part.split(":");
-                        long start = range[0].equals("*") ? (messageIds.isEmpty() ? 0 : messageIds.get(messageIds.size() - 1)) : Long.parseLong(range[0]);
-                        long end = range[1].equals("*") ? (messageIds.isEmpty() ? 0 : messageIds.get(messageIds.size() - 1)) : Long.parseLong(range[1]);
-                        for (long i = start; i <= end; i++) {
-                            messageNumbers.add(i);
-                        }
-                    } else {
-                        long num = part.equals("*") ? (messageIds.isEmpty() ? 0 : messageIds.get(messageIds.size() - 1)) : Long.parseLong(part);
-                        if (num > 0) messageNumbers.add(num);
+        /** Compiles the SEARCH criteria while the command line is at hand; null once a response was sent. */
+        private MailSearch.Criteria parseSearch(Response out, String tag, MailboxCache.Snapshot mailbox) {
+            if (mailbox == null) {
+                out.send(tag + " NO Mailbox not selected");
+                return null;
+            }
+            try {
+                return MailSearch.parse(command, mailbox.uids(), new ProtocolCodec.MessageSet());
+            } catch (MailSearch.SyntaxException e) {
+                out.send(tag + " BAD " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void handleSearch(Response out, String tag, boolean isUidSearch, MailSearch.Criteria criteria,
+                                  MailboxCache.Snapshot mailbox) {
+            UidIndex matches = EmailDatabase.getInstance().search(loggedInUser, criteria);
+            if (matches == null) {
+                out.send(tag + " NO SEARCH failed");
+                return;
+            }
+
+            UidIndex uids = mailbox.uids();
+            StringBuilder response = new StringBuilder("* SEARCH");
+            for (int i = 0; i < matches.size(); i++) {
+                long uid = matches.uidAt(i);
+                int index = uids.indexOf(uid);
+                if (index == -1) {
+                    continue; // Arrived after SELECT, the client does not know it yet
+                }
+                response.append(' ').append(isUidSearch ? uid : index + 1);
+            }
+            out.send(response.toString());
+            out.send(tag + " OK SEARCH completed");
+        }
+
+        /** The message part FETCH attributes (upper case) ask for as a literal, or null for metadata only. */
+        private static String fetchPart(String fetchAttributes) {
+            if (fetchAttributes.contains("HEADER.FIELDS") || fetchAttributes.contains("BODY.PEEK[HEADER]") || fetchAttributes.contains("BODY[HEADER]")) {
+                return "BODY[HEADER]";
+            } else if (fetchAttributes.contains("BODY.PEEK[TEXT]") || fetchAttributes.contains("BODY[TEXT]")) {
+                return "BODY[TEXT]";
+            } else if (fetchAttributes.contains("BODY[]") || fetchAttributes.contains("BODY.PEEK[]") || java.util.Arrays.asList(fetchAttributes.split("[ ()]")).contains("RFC822")) {
+                return "BODY[]";
+            }
+            return null;
+        }
+
+        /** Whether a FETCH reads a message part without PEEK, which sets \Seen on it (RFC 3501). */
+        private static boolean marksSeen(String fetchArguments) {
+            String attributes = fetchArguments.toUpperCase(Locale.ROOT);
+            return fetchPart(attributes) != null && !attributes.contains("PEEK");
+        }
+
+        /** Sets \Seen on a message a FETCH read; returns its flags, unchanged if storing failed. */
+        private int markSeen(long uid, int flags) {
+            int stored = EmailDatabase.getInstance().setFlags(loggedInUser, uid, MailStorage.FLAG_SEEN, 0);
+            return stored >= 0 ? stored : flags;
+        }
+
+        /**
+         * One FETCH response. FLAGS is included when it was asked for, or
+         * when this FETCH changed them ({@code flagsChanged}).
+         */
+        private void sendFetchResponse(Response out, int sequenceNum, StoredMessage email, boolean isUidFetch,
+                                       String fetchAttributes, String literalPart, int flags,
+                                       boolean flagsChanged) throws IOException {
+            long dbId = email.getId();
+            StringBuilder response = new StringBuilder();
+            response.append("* ").append(sequenceNum).append(" FETCH (");
+
+            List<String> responseParts = new ArrayList<>();
+
+            // Per RFC 3501, UID MUST be sent in a UID FETCH response.
+            if (isUidFetch) {
+                responseParts.add("UID " + dbId);
+            }
+
+            if (fetchAttributes.contains("UID") && !isUidFetch) {
+                responseParts.add("UID " + dbId);
+            }
+            if (fetchAttributes.contains("FLAGS") || flagsChanged) {
+                responseParts.add("FLAGS (" + flagList(flags) + ")");
+            }
+            if (fetchAttributes.contains("RFC822.SIZE")) {
+                responseParts.add("RFC822.SIZE " + email.size());
+            }
+
+            response.append(String.join(" ", responseParts));
+
+            if (literalPart == null) {
+                response.append(")");
+                out.send(response.toString());
+                return;
+            }
+
+            long literalSize;
+            if (literalPart.equals("BODY[HEADER]")) {
+                literalSize = email.headerSize();
+            } else if (literalPart.equals("BODY[TEXT]")) {
+                literalSize = email.bodySize();
+            } else {
+                literalSize = email.size();
+            }
+            if (!responseParts.isEmpty()) {
+                response.append(" ");
+            }
+            response.append(literalPart).append(" {").append(literalSize).append("}");
+            out.send(response.toString());
+            // The literal goes out as raw bytes; stored bodies are sent from file to socket directly
+            out.literal(email, literalPart);
+            System.out.println("S: <" + literalSize + " byte literal>");
+            out.send(")");
+        }
+
+        /**
+         * STORE [FLAGS|+FLAGS|-FLAGS][.SILENT] with a list of system flags.
+         * Each message's flags are stored on their own; unless SILENT, the
+         * resulting flags are sent back as untagged FETCH responses.
+         */
+        private void handleStore(Response out, String tag, boolean isUidStore, MailboxCache.Snapshot mailbox) {
+            if (mailbox == null) {
+                out.send(tag + " NO Mailbox not selected");
+                return;
+            }
+            String setText = command.nextListToken();
+            String item = command.nextListToken();
+            ProtocolCodec.MessageSet messageSet = new ProtocolCodec.MessageSet();
+            if (setText == null || item == null || !messageSet.parse(setText)) {
+                out.send(tag + " BAD Invalid STORE command");
+                return;
+            }
+            item = item.toUpperCase(Locale.ROOT);
+            boolean silent = item.endsWith(".SILENT");
+            if (silent) {
+                item = item.substring(0, item.length() - ".SILENT".length());
+            }
+            if (!item.equals("FLAGS") && !item.equals("+FLAGS") && !item.equals("-FLAGS")) {
+                out.send(tag + " BAD Unsupported STORE item " + item);
+                return;
+            }
+
+            int flags = 0;
+            boolean inList = false;
+            String token;
+            while ((token = command.nextListToken()) != null) {
+                if (!command.wasQuoted() && token.equals("(") && !inList) {
+                    inList = true;
+                    continue;
+                }
+                if (!command.wasQuoted() && token.equals(")") && inList) {
+                    break;
+                }
+                int bit = flagBit(token);
+                if (bit == 0) {
+                    out.send(tag + " BAD Unsupported flag " + token);
+                    return;
+                }
+                flags |= bit;
+            }
+
+            int add = item.equals("-FLAGS") ? 0 : flags;
+            int remove = item.equals("+FLAGS") ? 0 : item.equals("-FLAGS") ? flags : ALL_FLAGS & ~flags;
+            UidIndex uids = mailbox.uids();
+            boolean failed = false;
+            for (int[] run : uids.resolve(messageSet, isUidStore)) {
+                for (int index = run[0]; index <= run[1]; index++) {
+                    long uid = uids.uidAt(index);
+                    int stored = EmailDatabase.getInstance().setFlags(loggedInUser, uid, add, remove);
+                    if (stored < 0) {
+                        failed = true; // Expunged by another session, or storage failed
+                        continue;
+                    }
+                    if (!silent) {
+                        out.send("* " + (index + 1) + " FETCH (" + (isUidStore ? "UID " + uid + " " : "")
+                                + "FLAGS (" + flagList(stored) + "))");
                     }
-                } catch (NumberFormatException e) {
-                    System.err.println("Could not parse message number: " + part);
                 }
             }
-            return messageNumbers;
+            out.send(tag + (failed ? " NO STORE failed for some messages" : " OK STORE completed"));
         }
 
-        private void handleAppend(String tag, String rawCommand) throws IOException {
+        /**
+         * Removes the messages flagged \Deleted and reports each one the
+         * session knows with its sequence number at that point, then moves
+         * the session to the mailbox as it is now.
+         */
+        private void handleExpunge(Response out, String tag) {
+            if (selectedMailbox == null) {
+                out.send(tag + " NO Mailbox not selected");
+                return;
+            }
+            UidIndex expunged = EmailDatabase.getInstance().expunge(loggedInUser);
+            if (expunged == null) {
+                out.send(tag + " NO EXPUNGE failed");
+                return;
+            }
+            // Both are in UID order, and each response renumbers the messages after it
+            int removed = 0;
+            for (int i = 0; i < expunged.size(); i++) {
+                int index = messageIds.indexOf(expunged.uidAt(i));
+                if (index != -1) {
+                    out.send("* " + (index - removed + 1) + " EXPUNGE");
+                    removed++;
+                }
+            }
+            MailboxCache.Snapshot latest = EmailDatabase.getInstance().getMailbox(loggedInUser);
+            if (latest == null) {
+                out.send(tag + " NO Mailbox could not be reloaded");
+                return;
+            }
+            int remaining = messageIds.size() - removed;
+            selectedMailbox = latest;
+            messageIds = latest.uids();
+            if (latest.size() != remaining) {
+                out.send("* " + latest.size() + " EXISTS");
+            }
+            out.send(tag + " OK EXPUNGE completed");
+        }
+
+        private void handleAppend(Response out, String tag, String rawCommand) throws IOException {
             try {
                 java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("\\{(\\d+)\\}").matcher(rawCommand);
                 if (!matcher.find()) {
-                    send(tag + " BAD APPEND command requires a literal size like {123}");
+                    out.send(tag + " BAD APPEND command requires a literal size like {123}");
                     return;
                 }
                 int size = Integer.parseInt(matcher.group(1));
 
-                send("+ Ready for literal data");
+                out.send("+ Ready for literal data");
+                out.flush();
 
-                char[] buffer = new char[size];
-                int bytesRead = 0;
-                while (bytesRead < size) {
-                    int result = in.read(buffer, bytesRead, size - bytesRead);
-                    if (result == -1) {
-                        send(tag + " BAD Client closed connection during literal transfer");
-                        return;
-                    }
-                    bytesRead += result;
+                // Literal sizes count octets, so read raw bytes rather than chars
+                byte[] buffer = new byte[size];
+                if (!in.readFully(buffer, 0, size)) {
+                    out.send(tag + " BAD Client closed connection during literal transfer");
+                    return;
                 }
 
-                String emailData = new String(buffer);
+                String emailData = new String(buffer, StandardCharsets.UTF_8);
 
                 String headers;
                 String body;
@@ -308,7 +1271,7 @@ public class IMAPServer {
                 }
 
                 if (recipient.isEmpty()) {
-                    send(tag + " NOAPPEND failed: Could not determine recipient from headers.");
+                    out.send(tag + " NOAPPEND failed: Could not determine recipient from headers.");
                     return;
                 }
 
@@ -318,17 +1281,20 @@ public class IMAPServer {
                     System.err.println("Warning: No Message-ID found in APPEND. Generated a new one: " + messageId);
                 }
 
-                EmailDatabase.getInstance().saveEmail(messageId, loggedInUser, recipient, headers, body);
-                send(tag + " OK APPEND completed");
+                if (EmailDatabase.getInstance().saveEmail(messageId, loggedInUser, recipient, headers, body)) {
+                    out.send(tag + " OK APPEND completed");
+                } else {
+                    out.send(tag + " NO APPEND failed: could not store message");
+                }
             } catch (NumberFormatException e) {
-                send(tag + " BAD Invalid literal size in APPEND command.");
+                out.send(tag + " BAD Invalid literal size in APPEND command.");
             } catch (IOException e) {
                 System.err.println("IOException in handleAppend: " + e.getMessage());
                 throw e;
             } catch (Exception e) {
                 System.err.println("Error during APPEND: " + e.getMessage());
                 e.printStackTrace();
-                send(tag + " BAD Error during APPEND");
+                out.send(tag + " BAD Error during APPEND");
             }
         }
 
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Group-commit queue for incoming mail.
+ *
+ * SMTP, UDP and IMAP APPEND hand their messages to this queue instead of
+ * inserting them one by one. A single writer thread drains the queue and
+ * stores everything it collected in one transaction, so many messages share
+ * one fsync. A batch closes when it reaches {@code maxBatchSize} messages or
+ * when {@code maxBatchDelayMillis} has passed since its first message.
+ *
+ * A message may have several local recipients. It is queued once and its
+ * body is stored once; the writer adds one mailbox row per recipient.
+ *
+ * Every submitted message gets a future that completes only after the
+ * transaction holding it has committed, so callers can still acknowledge
+ * delivery only once the message is durable.
+ */
+public class IngestQueue {
+
+    /** Stores a batch of messages. Called on the writer thread only. */
+    public interface BatchWriter {
+        void write(List<Pending> batch) throws IOException;
+    }
+
+    public static class Pending {
+        final String messageId;
+        final String from;
+        final List<String> recipients;
+        final String headers;
+        final String body;
+        // Set instead of body when the body was streamed into the MessageStore
+        final String bodyPath;
+        // Exact size in bytes of the stored body, or -1 to compute it from body
+        final long bodySize;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // Set by the BatchWriter when this message could not be stored even
+        // though the rest of the batch was.
+        boolean failed = false;
+        // IDmail assigned by the BatchWriter per recipient, 0 if no row was inserted (e.g. a duplicate)
+        final long[] mailIds;
+
+        Pending(String messageId, String from, List<String> recipients, String headers, String body, String bodyPath,
+                long bodySize) {
+            this.messageId = messageId;
+            this.from = from;
+            this.recipients = recipients;
+            this.mailIds = new long[recipients.size()];
+            this.headers = headers;
+            this.body = body;
+            this.bodyPath = bodyPath;
+            this.bodySize = bodySize;
+        }
+    }
+
+    private final BatchWriter writer;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    // Submitters hold the read side from checking running until their message is queued,
+    // so shutdown() cannot slip in between and leave a message behind the exiting writer
+    private final ReentrantReadWriteLock accepting = new ReentrantReadWriteLock();
+
+    // Metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+
+    public IngestQueue(BatchWriter writer, int capacity, int maxBatchSize, long maxBatchDelayMillis) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writerThread = new Thread(this::run, "ingest-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "ingest-shutdown"));
+    }
+
+    /**
+     * Queues a message for storage. Blocks while the queue is full, which
+     * pushes back on the protocol handlers instead of growing without bound.
+     */
+    public CompletableFuture<Boolean> submit(String messageId, String from, String to, String headers,
+                                             String body, String bodyPath, long bodySize) {
+        return submit(messageId, from, Collections.singletonList(to), headers, body, bodyPath, bodySize);
+    }
+
+    /** Queues one message for several mailboxes; the future completes once all of them hold it. */
+    public CompletableFuture<Boolean> submit(String messageId, String from, List<String> recipients, String headers,
+                                             String body, String bodyPath, long bodySize) {
+        Pending pending = new Pending(messageId, from, recipients, headers, body, bodyPath, bodySize);
+        accepting.readLock().lock();
+        try {
+            if (!running) {
+                pending.result.complete(false);
+                return pending.result;
+            }
+            // The writer keeps draining while we wait here, since shutdown() cannot clear running yet
+            queue.put(pending);
+            submitted.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.result.complete(false);
+        } finally {
+            accepting.readLock().unlock();
+        }
+        return pending.result;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            Pending first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue; // Keep draining until shutdown() clears the running flag
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            fillBatch(batch);
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void fillBatch(List<Pending> batch) {
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        boolean committed;
+        try {
+            writer.write(batch);
+            committed = true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error storing batch of " + batch.size() + " emails: " + e.getMessage());
+            committed = false;
+        }
+        batches.incrementAndGet();
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        for (Pending pending : batch) {
+            boolean ok = committed && !pending.failed;
+            if (ok) {
+                stored.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            pending.result.complete(ok);
+        }
+    }
+
+    /** Stops accepting messages and waits for everything already queued to be written. */
+    public void shutdown() {
+        accepting.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            accepting.writeLock().unlock();
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!writerThread.isAlive()) {
+            // Nothing can be queued any more, but never leave a caller waiting forever
+            List<Pending> leftover = new ArrayList<>();
+            queue.drainTo(leftover);
+            for (Pending pending : leftover) {
+                failed.incrementAndGet();
+                pending.result.complete(false);
+            }
+        }
+    }
+
+    public int getQueueDepth() { return queue.size(); }
+    public long getSubmittedCount() { return submitted.get(); }
+    public long getBatchCount() { return batches.get(); }
+    public long getStoredCount() { return stored.get(); }
+    public long getFailedCount() { return failed.get(); }
+    public long getLargestBatch() { return largestBatch.get(); }
+
+    public String stats() {
+        long batchCount = batches.get();
+        return String.format("ingest[queued=%d submitted=%d batches=%d avgBatch=%.1f largestBatch=%d stored=%d failed=%d]",
+                getQueueDepth(), getSubmittedCount(), batchCount,
+                batchCount == 0 ? 0.0 : (stored.get() + failed.get()) / (double) batchCount,
+                getLargestBatch(), getStoredCount(), getFailedCount());
+    }
+}
@@ -0,0 +1,865 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * MailStorage on append-only log segments with an in-memory index.
+ *
+ * Every change is appended to the newest segment in mail.log.dir as a
+ * record: a delivered message (one per recipient), a user's password hash
+ * (new, or replacing the one before), new flags or an expunge. Records are framed as
+ *
+ *   int length | int crc32 | byte type | payload
+ *
+ * where length and CRC-32 cover type and payload. A delivery batch is
+ * encoded into one buffer, written with one write and made durable with one
+ * force, so a group commit costs a single sequential append. Segments roll
+ * over at mail.log.segmentBytes and are never rewritten; space held by
+ * expunged messages is not reclaimed.
+ *
+ * The index (users, each mailbox's messages with sizes, flags and position
+ * in the log, the Message-IDs already delivered to each mailbox and blob
+ * reference counts) lives in memory and is rebuilt on startup by replaying
+ * the segments. Listing a mailbox never touches the disk; fetching headers
+ * or a body costs one positional read.
+ *
+ * Replay stops at the first record that is cut short or fails its CRC.
+ * When the last segment ends that way at startup, a crash tore the write
+ * of a batch that was never acknowledged, and the file is truncated there.
+ *
+ * SMTP, IMAP and UDP may each open the same log. Appends hold an exclusive
+ * lock on mail.log.dir/lock and first replay what other processes wrote, so
+ * UIDs stay unique; reads replay new records without the lock and leave a
+ * record another process is still writing for the next time.
+ *
+ * SEARCH walks the index entries of a mailbox and reads a message's record,
+ * and its stored body, only once a text key needs them. Message records end
+ * with their delivery time; records written before it was kept count as
+ * delivered at the epoch, so they match BEFORE but no SINCE.
+ */
+public class LogStorage implements MailStorage {
+    private static final File DIR = new File(System.getProperty("mail.log.dir", "mail_log"));
+    private static final long SEGMENT_BYTES = Long.getLong("mail.log.segmentBytes", 64L * 1024 * 1024);
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("mail.log.fsync", "true"));
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int FRAME_HEADER = 8;
+    private static final int REPLAY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte RECORD_USER = 1;
+    private static final byte RECORD_MESSAGE = 2;
+    private static final byte RECORD_FLAGS = 3;
+    private static final byte RECORD_EXPUNGE = 4;
+
+    private static class Segment {
+        final int id;
+        final FileChannel channel;
+
+        Segment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    /** Where one message of one mailbox lives in the log. */
+    private static class Entry {
+        final long uid;
+        final String username;
+        final String key;
+        final String bodyPath;
+        final long headerSize;
+        final long bodySize;
+        final Segment segment;
+        final long offset;
+        final int length;
+        // Delivery time in epoch milliseconds
+        final long received;
+        int flags;
+
+        Entry(long uid, String username, String key, String bodyPath, long headerSize, long bodySize,
+              Segment segment, long offset, int length, long received) {
+            this.uid = uid;
+            this.username = username;
+            this.key = key;
+            this.bodyPath = bodyPath;
+            this.headerSize = headerSize;
+            this.bodySize = bodySize;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.received = received;
+        }
+    }
+
+    private static class Mailbox {
+        final TreeMap<Long, Entry> messages = new TreeMap<>();
+        long uidNext = 1;
+    }
+
+    /** Message record fields past the ones the index keeps. */
+    private static class Content {
+        String from;
+        String headers;
+        byte[] body;
+    }
+
+    private final FileChannel lockChannel;
+    // Everything below is guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    // Records before this offset of the last segment (and all earlier segments) are indexed
+    private long replayOffset;
+    private ByteBuffer replayBuffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+    private long nextUid = 1;
+    private final Map<String, String> users = new HashMap<>();
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    private final Map<Long, Entry> messages = new HashMap<>();
+    // Recipient and Message-ID of every stored message
+    private final Set<String> messageKeys = new HashSet<>();
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+    private volatile int lastSegmentId;
+
+    // Metrics
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong recordsAppended = new AtomicLong();
+    private final AtomicLong bytesAppended = new AtomicLong();
+    private final AtomicLong recordsReplayed = new AtomicLong();
+    private final AtomicLong tornWrites = new AtomicLong();
+
+    @SuppressWarnings("try")
+    public LogStorage() {
+        try {
+            if (!DIR.isDirectory() && !DIR.mkdirs()) {
+                throw new IOException("Cannot create " + DIR);
+            }
+            lockChannel = FileChannel.open(new File(DIR, "lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            synchronized (this) {
+                // The lock is only held, never referenced, hence the "try" suppression
+                try (FileLock lock = lockChannel.lock()) {
+                    openFirstSegment();
+                    replay(true);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the mail log in " + DIR, e);
+        }
+        System.out.println("Mail log opened: " + segments.size() + " segments, " + messages.size() + " messages.");
+    }
+
+    private static File segmentFile(int id) {
+        return new File(DIR, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static Segment openSegment(int id) throws IOException {
+        return new Segment(id, FileChannel.open(segmentFile(id).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    private void openFirstSegment() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        String[] names = DIR.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ignoring unexpected file in mail log: " + name);
+                    }
+                }
+            }
+        }
+        // Replay moves on from the oldest segment to each next one
+        int first = ids.isEmpty() ? 1 : ids.stream().min(Integer::compare).get();
+        segments.add(openSegment(first));
+        lastSegmentId = first;
+    }
+
+    /**
+     * Indexes every record appended since the last replay, moving on to
+     * segments other processes started. A record that is incomplete or
+     * fails its CRC stops the replay: with the lock held it can only be a
+     * write torn by a crash and is truncated away, without the lock it may
+     * still be in progress and is retried next time.
+     */
+    private void replay(boolean locked) throws IOException {
+        while (true) {
+            Segment segment = segments.get(segments.size() - 1);
+            long size = segment.channel.size();
+            if (replayOffset < size && !replaySegment(segment, size)) {
+                boolean last = !segmentFile(segment.id + 1).exists();
+                if (!locked && last) {
+                    return;
+                }
+                tornWrites.incrementAndGet();
+                System.err.println("Mail log: dropping a torn record at " + segmentFile(segment.id).getName()
+                        + " offset " + replayOffset + " (" + (size - replayOffset) + " bytes)");
+                if (locked && last) {
+                    segment.channel.truncate(replayOffset);
+                    return;
+                }
+            }
+            if (!segmentFile(segment.id + 1).exists()) {
+                return;
+            }
+            segments.add(openSegment(segment.id + 1));
+            lastSegmentId = segment.id + 1;
+            replayOffset = 0;
+        }
+    }
+
+    /** Replays the records of a segment from replayOffset to size. Returns false if it stopped at a bad record. */
+    private boolean replaySegment(Segment segment, long size) throws IOException {
+        ByteBuffer buffer = replayBuffer;
+        buffer.clear();
+        long readPosition = replayOffset;
+        while (readPosition < size) {
+            if (!buffer.hasRemaining()) {
+                // A record bigger than the buffer
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int read = segment.channel.read(buffer, readPosition);
+            if (read <= 0) {
+                break;
+            }
+            readPosition += read;
+            buffer.flip();
+            while (buffer.remaining() >= FRAME_HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > size - replayOffset - FRAME_HEADER) {
+                    return false; // Garbage, or a record longer than what is on disk
+                }
+                if (buffer.remaining() < FRAME_HEADER + length) {
+                    break;
+                }
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(start + FRAME_HEADER).limit(start + FRAME_HEADER + length);
+                if (crc(payload) != buffer.getInt(start + 4)) {
+                    return false;
+                }
+                apply(payload.slice(), segment, replayOffset, FRAME_HEADER + length);
+                recordsReplayed.incrementAndGet();
+                replayOffset += FRAME_HEADER + length;
+                buffer.position(start + FRAME_HEADER + length);
+            }
+            buffer.compact();
+        }
+        // Keeps a grown buffer, but not one grown past the usual size for good
+        replayBuffer = buffer.capacity() <= REPLAY_BUFFER_SIZE * 4 ? buffer : ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+        return replayOffset == size;
+    }
+
+    private static int crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /** Applies one record to the index. */
+    private void apply(ByteBuffer record, Segment segment, long offset, int length) {
+        byte type = record.get();
+        switch (type) {
+            case RECORD_USER: {
+                String username = readString(record);
+                users.put(username, readString(record));
+                break;
+            }
+            case RECORD_MESSAGE: {
+                long uid = record.getLong();
+                long headerSize = record.getLong();
+                long bodySize = record.getLong();
+                String username = readString(record);
+                String messageId = readString(record);
+                String bodyPath = readString(record);
+                skipBytes(record); // sender
+                skipBytes(record); // headers
+                skipBytes(record); // body
+                // Records from before delivery times were kept end at the body
+                long received = record.remaining() >= Long.BYTES ? record.getLong() : 0;
+                String key = messageKey(username, messageId);
+                Entry entry = new Entry(uid, username, key, bodyPath, headerSize, bodySize, segment, offset, length,
+                        received);
+                messages.put(uid, entry);
+                Mailbox mailbox = mailboxes.computeIfAbsent(username, name -> new Mailbox());
+                mailbox.messages.put(uid, entry);
+                mailbox.uidNext = Math.max(mailbox.uidNext, uid + 1);
+                nextUid = Math.max(nextUid, uid + 1);
+                messageKeys.add(key);
+                if (bodyPath != null) {
+                    blobRefs.merge(bodyPath, 1, Integer::sum);
+                }
+                break;
+            }
+            case RECORD_FLAGS: {
+                Entry entry = messages.get(record.getLong());
+                if (entry != null) {
+                    entry.flags = record.getInt();
+                }
+                break;
+            }
+            case RECORD_EXPUNGE: {
+                Entry entry = messages.remove(record.getLong());
+                if (entry != null) {
+                    mailboxes.get(entry.username).messages.remove(entry.uid);
+                    messageKeys.remove(entry.key);
+                    if (entry.bodyPath != null) {
+                        blobRefs.computeIfPresent(entry.bodyPath, (path, refs) -> refs > 1 ? refs - 1 : null);
+                    }
+                }
+                break;
+            }
+            default:
+                System.err.println("Mail log: skipping a record of unknown type " + type);
+        }
+    }
+
+    /**
+     * Frames records and appends them to the newest segment with one write
+     * and one force, then indexes them. The caller holds this monitor and
+     * the file lock, and has replayed, so the segment ends at replayOffset.
+     * A failed write is truncated away and nothing is indexed.
+     */
+    private void append(List<byte[]> records) throws IOException {
+        Segment segment = segments.get(segments.size() - 1);
+        if (replayOffset >= SEGMENT_BYTES) {
+            segment = openSegment(segment.id + 1);
+            segments.add(segment);
+            lastSegmentId = segment.id;
+            replayOffset = 0;
+        }
+
+        int total = 0;
+        for (byte[] record : records) {
+            total += FRAME_HEADER + record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            crc.reset();
+            crc.update(record);
+            buffer.putInt(record.length).putInt((int) crc.getValue()).put(record);
+        }
+        buffer.flip();
+
+        long start = replayOffset;
+        try {
+            long position = start;
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+            if (FSYNC) {
+                segment.channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                segment.channel.truncate(start);
+            } catch (IOException ignored) {
+                // The torn tail is dropped by the next replay that holds the lock
+            }
+            throw e;
+        }
+
+        long offset = start;
+        for (byte[] record : records) {
+            apply(ByteBuffer.wrap(record), segment, offset, FRAME_HEADER + record.length);
+            offset += FRAME_HEADER + record.length;
+        }
+        replayOffset = offset;
+        appends.incrementAndGet();
+        recordsAppended.addAndGet(records.size());
+        bytesAppended.addAndGet(total);
+    }
+
+    /** Catches up with records other processes appended. */
+    private synchronized void refresh() throws IOException {
+        replay(false);
+    }
+
+    @SuppressWarnings("try")
+    public void deliver(List<IngestQueue.Pending> batch) throws IOException {
+        for (IngestQueue.Pending email : batch) {
+            try {
+                if (email.bodyPath != null) {
+                    // Records must never point at a body that is not on disk yet.
+                    MessageStore.sync(email.bodyPath);
+                }
+            } catch (IOException e) {
+                System.err.println("Error syncing stored body: " + e.getMessage());
+                email.failed = true;
+            }
+        }
+
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                List<byte[]> records = new ArrayList<>();
+                Set<String> batchKeys = new HashSet<>();
+                long uid = nextUid;
+                long received = System.currentTimeMillis();
+                for (IngestQueue.Pending email : batch) {
+                    if (email.failed) {
+                        continue;
+                    }
+                    byte[] body = email.body == null ? null : email.body.getBytes(StandardCharsets.UTF_8);
+                    long headerSize = email.headers == null ? 0 : email.headers.getBytes(StandardCharsets.UTF_8).length;
+                    long bodySize = email.bodySize >= 0 ? email.bodySize : body == null ? 0 : body.length;
+                    for (int i = 0; i < email.recipients.size(); i++) {
+                        String to = email.recipients.get(i);
+                        String key = messageKey(to, email.messageId);
+                        if (messageKeys.contains(key) || !batchKeys.add(key)) {
+                            System.err.println("Attempted to save a duplicate email. Message-ID: " + email.messageId
+                                    + ", recipient: " + to);
+                            continue;
+                        }
+                        email.mailIds[i] = uid;
+                        records.add(encodeMessage(uid++, headerSize, bodySize, to, email.messageId, email.bodyPath,
+                                email.from, email.headers, body, received));
+                    }
+                }
+                if (!records.isEmpty()) {
+                    append(records);
+                }
+            } catch (IOException e) {
+                for (IngestQueue.Pending email : batch) {
+                    Arrays.fill(email.mailIds, 0);
+                }
+                throw e;
+            }
+        }
+    }
+
+    public long uidNext(String username) throws IOException {
+        synchronized (this) {
+            refresh();
+            Mailbox mailbox = mailboxes.get(username);
+            return mailbox == null ? 1 : mailbox.uidNext;
+        }
+    }
+
+    public Map<String, Long> uidNexts() throws IOException {
+        Map<String, Long> uidNexts = new HashMap<>();
+        synchronized (this) {
+            refresh();
+            for (Map.Entry<String, Mailbox> mailbox : mailboxes.entrySet()) {
+                uidNexts.put(mailbox.getKey(), mailbox.getValue().uidNext);
+            }
+        }
+        return uidNexts;
+    }
+
+    public void list(String username, long fromUid, MailboxCache.Mailbox into) throws IOException {
+        synchronized (this) {
+            refresh();
+            Mailbox mailbox = mailboxes.get(username);
+            if (mailbox == null) {
+                return;
+            }
+            into.setUidNext(mailbox.uidNext);
+            for (Entry entry : mailbox.messages.tailMap(fromUid, true).values()) {
+                into.append(entry.uid, entry.headerSize, entry.bodySize, entry.flags);
+            }
+        }
+    }
+
+    public void fetch(String username, long firstUid, long lastUid, boolean withHeaders, boolean withBody,
+                      MessageVisitor visitor) throws IOException {
+        List<Entry> entries;
+        synchronized (this) {
+            refresh();
+            Mailbox mailbox = mailboxes.get(username);
+            if (mailbox == null || firstUid > lastUid) {
+                return;
+            }
+            entries = new ArrayList<>(mailbox.messages.subMap(firstUid, true, lastUid, true).values());
+        }
+        // Indexed records are never rewritten, so they are read without the lock
+        for (Entry entry : entries) {
+            if (!withHeaders && !withBody) {
+                visitor.accept(StoredMessage.metadata(entry.uid, entry.headerSize, entry.bodySize));
+                continue;
+            }
+            Content content = read(entry);
+            visitor.accept(new StoredMessage(entry.uid, withHeaders ? content.headers : null,
+                    withBody ? content.body : null, withBody ? entry.bodyPath : null,
+                    entry.headerSize, entry.bodySize));
+        }
+    }
+
+    public Map<String, String> getEmail(long mailId) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            refresh();
+            entry = messages.get(mailId);
+        }
+        if (entry == null) {
+            return null;
+        }
+        Content content = read(entry);
+        Map<String, String> email = new HashMap<>();
+        email.put("headers", content.headers);
+        email.put("body", content.body != null ? new String(content.body, StandardCharsets.UTF_8)
+                : entry.bodyPath != null ? MessageStore.readBody(entry.bodyPath) : null);
+        return email;
+    }
+
+    /** Reads a message record back with one positional read. */
+    private Content read(Entry entry) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(entry.length);
+        long position = entry.offset;
+        while (frame.hasRemaining()) {
+            int read = entry.segment.channel.read(frame, position);
+            if (read < 0) {
+                throw new IOException("Mail log record of message " + entry.uid + " is cut short");
+            }
+            position += read;
+        }
+        frame.flip();
+        ByteBuffer record = frame.duplicate();
+        record.position(FRAME_HEADER);
+        if (crc(record) != frame.getInt(4)) {
+            throw new IOException("Mail log record of message " + entry.uid + " fails its CRC");
+        }
+        record.get(); // type
+        record.position(record.position() + 3 * Long.BYTES);
+        readString(record); // recipient
+        readString(record); // Message-ID
+        readString(record); // body path
+        Content content = new Content();
+        content.from = readString(record);
+        content.headers = readString(record);
+        content.body = readBytes(record);
+        return content;
+    }
+
+    public UidIndex search(String username, MailSearch.Criteria criteria) throws IOException {
+        List<Candidate> candidates = new ArrayList<>();
+        synchronized (this) {
+            refresh();
+            Mailbox mailbox = mailboxes.get(username);
+            if (mailbox == null) {
+                return new UidIndex();
+            }
+            for (Entry entry : mailbox.messages.values()) {
+                candidates.add(new Candidate(entry, entry.flags));
+            }
+        }
+        UidIndex matches = new UidIndex();
+        for (Candidate candidate : candidates) {
+            if (matches(criteria, candidate)) {
+                matches.add(candidate.entry.uid);
+            }
+        }
+        return matches;
+    }
+
+    /** A message being searched, with its flags as they were when the search started. */
+    private class Candidate {
+        final Entry entry;
+        final int flags;
+        Content content;
+        String body;
+
+        Candidate(Entry entry, int flags) {
+            this.entry = entry;
+            this.flags = flags;
+        }
+
+        Content content() throws IOException {
+            if (content == null) {
+                content = read(entry);
+            }
+            return content;
+        }
+
+        /** As much of the body as SqliteStorage would index. */
+        String body() throws IOException {
+            if (body == null) {
+                Content content = content();
+                body = "";
+                if (content.body != null) {
+                    body = new String(content.body, StandardCharsets.UTF_8);
+                    if (body.length() > MailSearch.MAX_INDEXED_BODY) {
+                        body = body.substring(0, MailSearch.MAX_INDEXED_BODY);
+                    }
+                } else if (entry.bodyPath != null) {
+                    try {
+                        body = MessageStore.readBodyPrefix(entry.bodyPath, MailSearch.MAX_INDEXED_BODY);
+                    } catch (IOException e) {
+                        System.err.println("Error reading stored body for search: " + e.getMessage());
+                    }
+                }
+            }
+            return body;
+        }
+    }
+
+    /** Evaluates criteria against one message; the record is only read for text keys. */
+    private boolean matches(MailSearch.Criteria criteria, Candidate message) throws IOException {
+        Entry entry = message.entry;
+        switch (criteria.kind()) {
+            case ALL:
+                return true;
+            case NONE:
+                return false;
+            case AND:
+                for (MailSearch.Criteria child : criteria.children()) {
+                    if (!matches(child, message)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (MailSearch.Criteria child : criteria.children()) {
+                    if (matches(child, message)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !matches(criteria.children().get(0), message);
+            case TEXT: {
+                Content content = message.content();
+                return MailSearch.matches(criteria, content.from, entry.username, content.headers, message.body());
+            }
+            case SINCE:
+                return entry.received >= TimeUnit.DAYS.toMillis(criteria.value());
+            case BEFORE:
+                return entry.received < TimeUnit.DAYS.toMillis(criteria.value());
+            case LARGER:
+                return entry.headerSize + 4 + entry.bodySize > criteria.value();
+            case SMALLER:
+                return entry.headerSize + 4 + entry.bodySize < criteria.value();
+            case FLAG_SET:
+                return (message.flags & criteria.value()) != 0;
+            case FLAG_CLEAR:
+                return (message.flags & criteria.value()) == 0;
+            case UID_RANGES: {
+                long[] ranges = criteria.ranges();
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (entry.uid >= ranges[i] && entry.uid <= ranges[i + 1]) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown search criteria " + criteria.kind());
+        }
+    }
+
+    @SuppressWarnings("try")
+    public boolean createUser(String username, String credential) throws IOException {
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                if (users.containsKey(username)) {
+                    return false;
+                }
+                append(List.of(userRecord(username, credential)));
+                return true;
+            }
+        }
+    }
+
+    public String credential(String username) throws IOException {
+        synchronized (this) {
+            refresh();
+            return users.get(username);
+        }
+    }
+
+    @SuppressWarnings("try")
+    public void setCredential(String username, String credential) throws IOException {
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                if (users.containsKey(username)) {
+                    // A later user record replaces the earlier one on replay
+                    append(List.of(userRecord(username, credential)));
+                }
+            }
+        }
+    }
+
+    private static byte[] userRecord(String username, String credential) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_USER);
+        writeString(out, username);
+        writeString(out, credential);
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("try")
+    public int storeFlags(String username, long uid, int add, int remove) throws IOException {
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                Entry entry = messages.get(uid);
+                if (entry == null || !entry.username.equals(username)) {
+                    return -1;
+                }
+                int flags = (entry.flags | add) & ~remove;
+                if (flags != entry.flags) {
+                    ByteBuffer record = ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES);
+                    record.put(RECORD_FLAGS).putLong(uid).putInt(flags);
+                    append(List.of(record.array()));
+                }
+                return flags;
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    public UidIndex expunge(String username) throws IOException {
+        UidIndex expunged = new UidIndex();
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                Mailbox mailbox = mailboxes.get(username);
+                if (mailbox == null) {
+                    return expunged;
+                }
+                List<byte[]> records = new ArrayList<>();
+                for (Entry entry : mailbox.messages.values()) {
+                    if ((entry.flags & FLAG_DELETED) != 0) {
+                        expunged.add(entry.uid);
+                        ByteBuffer record = ByteBuffer.allocate(1 + Long.BYTES);
+                        record.put(RECORD_EXPUNGE).putLong(entry.uid);
+                        records.add(record.array());
+                    }
+                }
+                if (!records.isEmpty()) {
+                    append(records);
+                }
+            }
+        }
+        return expunged;
+    }
+
+    public Set<String> referencedBlobs() throws IOException {
+        synchronized (this) {
+            refresh();
+            return new HashSet<>(blobRefs.keySet());
+        }
+    }
+
+    @SuppressWarnings("try")
+    public boolean releaseBlob(String path) throws IOException {
+        synchronized (this) {
+            // The lock is only held, never referenced, hence the "try" suppression
+            try (FileLock lock = lockChannel.lock()) {
+                replay(true);
+                return !blobRefs.containsKey(path);
+            }
+        }
+    }
+
+    // Appends grow the newest segment; a new segment shows up as the next file
+    public long changeStamp() {
+        int id = lastSegmentId;
+        File last = segmentFile(id);
+        File next = segmentFile(id + 1);
+        return 31 * (31 * (31 * id + last.length()) + last.lastModified()) + (next.exists() ? next.length() + 1 : 0);
+    }
+
+    private static String messageKey(String username, String messageId) {
+        return username + '\0' + messageId;
+    }
+
+    private static byte[] encodeMessage(long uid, long headerSize, long bodySize, String to, String messageId,
+                                        String bodyPath, String from, String headers, byte[] body,
+                                        long received) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (body == null ? 0 : body.length)
+                + (headers == null ? 0 : headers.length()));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_MESSAGE);
+        // The index fields come first, so replay can skip the rest
+        out.writeLong(uid);
+        out.writeLong(headerSize);
+        out.writeLong(bodySize);
+        writeString(out, to);
+        writeString(out, messageId);
+        writeString(out, bodyPath);
+        writeString(out, from);
+        writeString(out, headers);
+        writeBytes(out, body);
+        // Last, so records from before it was kept still parse
+        out.writeLong(received);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] value = readBytes(in);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static void skipBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > 0) {
+            in.position(in.position() + length);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    public long getAppendCount() { return appends.get(); }
+    public long getRecordsAppended() { return recordsAppended.get(); }
+    public long getBytesAppended() { return bytesAppended.get(); }
+    public long getRecordsReplayed() { return recordsReplayed.get(); }
+    public long getTornWriteCount() { return tornWrites.get(); }
+
+    public synchronized String stats() {
+        return String.format("log[dir=%s segments=%d messages=%d appends=%d records=%d bytes=%dKB replayed=%d torn=%d]",
+                DIR, segments.size(), messages.size(), getAppendCount(), getRecordsAppended(),
+                getBytesAppended() / 1024, getRecordsReplayed(), getTornWriteCount());
+    }
+}
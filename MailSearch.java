@@ -0,0 +1,452 @@
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * IMAP SEARCH criteria, parsed into a tree that each MailStorage evaluates
+ * its own way.
+ *
+ * SqliteStorage compiles the tree into one SQL predicate over SMTP_DB and
+ * answers text keys from SEARCH_INDEX, an FTS3 table (SQLite's built-in
+ * inverted index) with one document per message, docid = IDmail, and the
+ * columns FROM_ADDR, TO_ADDR, SUBJECT and BODY. LogStorage walks its
+ * in-memory index and tests text keys with {@link #matches}, which reads
+ * the same fields the same way. Either way text keys match whole words and
+ * word prefixes, case-insensitively, the way FTS tokenizes them; a key with
+ * no word characters at all falls back to a substring scan of the indexed
+ * text. Dates compare
+ * the delivery time in UTC and sizes the stored byte counts.
+ *
+ * Keys can be grouped in parentheses (RFC 3501), e.g.
+ * {@code OR (FROM alice SINCE 1-Jan-2024) FLAGGED}; a group matches when
+ * all of its keys do. Flag keys test the FLAGS bits stored with each
+ * message ({@link MailStorage#FLAG_SEEN} and friends), so a message is
+ * UNSEEN until something sets \Seen on it. \Recent is not tracked: no
+ * message is RECENT or NEW, and every message is OLD.
+ */
+public class MailSearch {
+    private static final DateTimeFormatter IMAP_DATE = DateTimeFormatter.ofPattern("d-MMM-yyyy", Locale.ENGLISH);
+    // Bytes of a stored body that BODY and TEXT keys look at
+    static final int MAX_INDEXED_BODY = Integer.getInteger("mail.search.maxIndexedBody", 1024 * 1024);
+
+    /** The message fields text keys search; TEXT is all of them. */
+    public enum Field { FROM, TO, SUBJECT, BODY, TEXT }
+
+    /**
+     * A parsed search: one node of the criteria tree. AND, OR and NOT
+     * combine their children; the other kinds are leaves.
+     */
+    public static class Criteria {
+        public enum Kind {
+            ALL, NONE, AND, OR, NOT,
+            // field() holds text()
+            TEXT,
+            // Delivered on or after / before the day date(), in UTC
+            SINCE, BEFORE,
+            // Full size (headers, blank line, body) above / below value()
+            LARGER, SMALLER,
+            // The FLAG_* bit value() is set / clear
+            FLAG_SET, FLAG_CLEAR,
+            // UID within one of the inclusive ranges(), stored as low, high pairs
+            UID_RANGES
+        }
+
+        private final Kind kind;
+        private final List<Criteria> children;
+        private final Field field;
+        private final String text;
+        private final long value;
+        private final long[] ranges;
+
+        private Criteria(Kind kind, List<Criteria> children, Field field, String text, long value, long[] ranges) {
+            this.kind = kind;
+            this.children = children;
+            this.field = field;
+            this.text = text;
+            this.value = value;
+            this.ranges = ranges;
+        }
+
+        static Criteria of(Kind kind) {
+            return new Criteria(kind, Collections.<Criteria>emptyList(), null, null, 0, null);
+        }
+
+        static Criteria of(Kind kind, long value) {
+            return new Criteria(kind, Collections.<Criteria>emptyList(), null, null, value, null);
+        }
+
+        static Criteria of(Kind kind, List<Criteria> children) {
+            return new Criteria(kind, children, null, null, 0, null);
+        }
+
+        static Criteria text(Field field, String text) {
+            return new Criteria(Kind.TEXT, Collections.<Criteria>emptyList(), field, text, 0, null);
+        }
+
+        static Criteria uids(long[] ranges) {
+            return new Criteria(Kind.UID_RANGES, Collections.<Criteria>emptyList(), null, null, 0, ranges);
+        }
+
+        public Kind kind() { return kind; }
+        public List<Criteria> children() { return children; }
+        public Field field() { return field; }
+        public String text() { return text; }
+        public long value() { return value; }
+        public long[] ranges() { return ranges; }
+
+        /** The day of a SINCE or BEFORE node. */
+        public LocalDate date() {
+            return LocalDate.ofEpochDay(value);
+        }
+    }
+
+    /** Thrown for criteria we cannot parse; the session answers BAD. */
+    public static class SyntaxException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    private final ProtocolCodec.ImapCommand command;
+    private final UidIndex mailbox;
+    private final ProtocolCodec.MessageSet messageSet;
+    private String pending;
+    private boolean pendingQuoted;
+    // Whether the token next() returned last was a quoted string
+    private boolean quoted;
+
+    private MailSearch(ProtocolCodec.ImapCommand command, UidIndex mailbox, ProtocolCodec.MessageSet messageSet) {
+        this.command = command;
+        this.mailbox = mailbox;
+        this.messageSet = messageSet;
+    }
+
+    /**
+     * Parses the arguments of a SEARCH command still unread in
+     * {@code command}. Sequence sets are resolved against {@code mailbox}.
+     */
+    public static Criteria parse(ProtocolCodec.ImapCommand command, UidIndex mailbox,
+                                 ProtocolCodec.MessageSet messageSet) throws SyntaxException {
+        MailSearch parser = new MailSearch(command, mailbox, messageSet);
+        String first = parser.next();
+        if (first != null && first.equalsIgnoreCase("CHARSET")) {
+            String charset = parser.next();
+            if (charset == null || !(charset.equalsIgnoreCase("UTF-8") || charset.equalsIgnoreCase("US-ASCII"))) {
+                throw new SyntaxException("[BADCHARSET (UTF-8 US-ASCII)] Unsupported charset");
+            }
+            first = parser.next();
+        }
+        if (first == null) {
+            throw new SyntaxException("Missing search criteria");
+        }
+        parser.pending = first;
+        parser.pendingQuoted = parser.quoted;
+
+        List<Criteria> keys = new ArrayList<>();
+        while (parser.peek() != null) {
+            keys.add(parser.key());
+        }
+        return keys.size() == 1 ? keys.get(0) : Criteria.of(Criteria.Kind.AND, keys);
+    }
+
+    private String next() {
+        if (pending != null) {
+            String token = pending;
+            quoted = pendingQuoted;
+            pending = null;
+            return token;
+        }
+        String token = command.nextListToken();
+        quoted = command.wasQuoted();
+        return token;
+    }
+
+    private String peek() {
+        if (pending == null) {
+            pending = command.nextListToken();
+            pendingQuoted = command.wasQuoted();
+        }
+        return pending;
+    }
+
+    /** True if the token next() returned last is the given parenthesis rather than a quoted string. */
+    private boolean isParen(String token, String paren) {
+        return !quoted && token.equals(paren);
+    }
+
+    private String argument(String key) throws SyntaxException {
+        String value = next();
+        if (value == null || isParen(value, "(") || isParen(value, ")")) {
+            throw new SyntaxException("Missing argument to " + key);
+        }
+        return value;
+    }
+
+    /** Keys up to the closing parenthesis, all of which must match. */
+    private Criteria group() throws SyntaxException {
+        List<Criteria> keys = new ArrayList<>();
+        while (true) {
+            if (peek() == null) {
+                throw new SyntaxException("Missing ) in search criteria");
+            }
+            if (!pendingQuoted && pending.equals(")")) {
+                next();
+                break;
+            }
+            keys.add(key());
+        }
+        if (keys.isEmpty()) {
+            throw new SyntaxException("Empty search key group");
+        }
+        return keys.size() == 1 ? keys.get(0) : Criteria.of(Criteria.Kind.AND, keys);
+    }
+
+    private static Criteria flag(int flag, boolean set) {
+        return Criteria.of(set ? Criteria.Kind.FLAG_SET : Criteria.Kind.FLAG_CLEAR, flag);
+    }
+
+    /** One search key. */
+    private Criteria key() throws SyntaxException {
+        String key = next();
+        if (isParen(key, "(")) {
+            return group();
+        }
+        if (isParen(key, ")")) {
+            throw new SyntaxException("Unexpected ) in search criteria");
+        }
+        switch (key.toUpperCase(Locale.ROOT)) {
+            case "ALL":
+            case "OLD":
+                return Criteria.of(Criteria.Kind.ALL);
+            case "NEW":
+            case "RECENT":
+                return Criteria.of(Criteria.Kind.NONE);
+            case "SEEN":
+                return flag(MailStorage.FLAG_SEEN, true);
+            case "UNSEEN":
+                return flag(MailStorage.FLAG_SEEN, false);
+            case "ANSWERED":
+                return flag(MailStorage.FLAG_ANSWERED, true);
+            case "UNANSWERED":
+                return flag(MailStorage.FLAG_ANSWERED, false);
+            case "DELETED":
+                return flag(MailStorage.FLAG_DELETED, true);
+            case "UNDELETED":
+                return flag(MailStorage.FLAG_DELETED, false);
+            case "DRAFT":
+                return flag(MailStorage.FLAG_DRAFT, true);
+            case "UNDRAFT":
+                return flag(MailStorage.FLAG_DRAFT, false);
+            case "FLAGGED":
+                return flag(MailStorage.FLAG_FLAGGED, true);
+            case "UNFLAGGED":
+                return flag(MailStorage.FLAG_FLAGGED, false);
+            case "FROM":
+                return Criteria.text(Field.FROM, argument(key));
+            case "TO":
+                return Criteria.text(Field.TO, argument(key));
+            case "SUBJECT":
+                return Criteria.text(Field.SUBJECT, argument(key));
+            case "BODY":
+                return Criteria.text(Field.BODY, argument(key));
+            case "TEXT":
+                return Criteria.text(Field.TEXT, argument(key));
+            case "SINCE":
+            case "SENTSINCE":
+                return Criteria.of(Criteria.Kind.SINCE, date(argument(key)).toEpochDay());
+            case "BEFORE":
+            case "SENTBEFORE":
+                return Criteria.of(Criteria.Kind.BEFORE, date(argument(key)).toEpochDay());
+            case "ON":
+            case "SENTON": {
+                long day = date(argument(key)).toEpochDay();
+                return Criteria.of(Criteria.Kind.AND,
+                        Arrays.asList(Criteria.of(Criteria.Kind.SINCE, day), Criteria.of(Criteria.Kind.BEFORE, day + 1)));
+            }
+            case "LARGER":
+                return Criteria.of(Criteria.Kind.LARGER, number(argument(key)));
+            case "SMALLER":
+                return Criteria.of(Criteria.Kind.SMALLER, number(argument(key)));
+            case "UID":
+                return set(argument(key), true);
+            case "NOT":
+                return Criteria.of(Criteria.Kind.NOT, Collections.singletonList(key()));
+            case "OR": {
+                Criteria left = key();
+                Criteria right = key();
+                return Criteria.of(Criteria.Kind.OR, Arrays.asList(left, right));
+            }
+            default:
+                if (!key.isEmpty() && (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*')) {
+                    return set(key, false);
+                }
+                throw new SyntaxException("Unsupported search key " + key);
+        }
+    }
+
+    /**
+     * Whether a message matches a TEXT node, the way SqliteStorage's
+     * SEARCH_INDEX lookup and substring fallback would answer it. {@code body}
+     * is as much of the body as the index holds ({@link #MAX_INDEXED_BODY}).
+     */
+    static boolean matches(Criteria criteria, String from, String to, String headers, String body) {
+        String value = criteria.text();
+        String indexed = indexed(criteria.field(), from, to, headers, body);
+        List<String> query = words(value);
+        if (query.isEmpty()) {
+            return value.isEmpty() || containsIgnoreCase(indexed, value);
+        }
+        List<String> words = words(indexed);
+        for (int i = 0; i < query.size() - 1; i++) {
+            if (!words.contains(query.get(i))) {
+                return false;
+            }
+        }
+        String last = query.get(query.size() - 1);
+        for (String word : words) {
+            if (word.startsWith(last)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** What SqliteStorage puts in the SEARCH_INDEX column for a field; every column for TEXT. */
+    static String indexed(Field field, String from, String to, String headers, String body) {
+        switch (field) {
+            case FROM:
+                return from + " " + headerValue(headers, "From");
+            case TO:
+                return to + " " + headerValue(headers, "To") + " " + headerValue(headers, "Cc");
+            case SUBJECT:
+                return headerValue(headers, "Subject");
+            case BODY:
+                return body;
+            default:
+                return indexed(Field.FROM, from, to, headers, body) + " " + indexed(Field.TO, from, to, headers, body)
+                        + " " + indexed(Field.SUBJECT, from, to, headers, body) + " " + body;
+        }
+    }
+
+    private static boolean containsIgnoreCase(String text, String value) {
+        for (int i = 0; i + value.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, value, 0, value.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * FTS query for a search string: every word must occur in the column,
+     * the last one as a prefix. Null when the string has no words.
+     */
+    static String matchQuery(String column, String value) {
+        List<String> words = words(value);
+        if (words.isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < words.size(); i++) {
+            if (i > 0) {
+                query.append(' ');
+            }
+            if (column != null) {
+                query.append(column).append(':');
+            }
+            query.append(words.get(i));
+            if (i == words.size() - 1) {
+                query.append('*');
+            }
+        }
+        return query.toString();
+    }
+
+    /** Splits text the way FTS3's simple tokenizer does: runs of letters and digits, lower-cased. */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && isWordChar(text.charAt(i));
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 128 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private Criteria set(String text, boolean uid) throws SyntaxException {
+        if (!messageSet.parse(text)) {
+            throw new SyntaxException("Invalid message set " + text);
+        }
+        List<int[]> runs = mailbox.resolve(messageSet, uid);
+        if (runs.isEmpty()) {
+            return Criteria.of(Criteria.Kind.NONE);
+        }
+        long[] ranges = new long[runs.size() * 2];
+        for (int i = 0; i < runs.size(); i++) {
+            ranges[2 * i] = mailbox.uidAt(runs.get(i)[0]);
+            ranges[2 * i + 1] = mailbox.uidAt(runs.get(i)[1]);
+        }
+        return Criteria.uids(ranges);
+    }
+
+    private static LocalDate date(String text) throws SyntaxException {
+        try {
+            return LocalDate.parse(text, IMAP_DATE);
+        } catch (DateTimeParseException e) {
+            throw new SyntaxException("Invalid date " + text);
+        }
+    }
+
+    private static long number(String text) throws SyntaxException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new SyntaxException("Invalid number " + text);
+        }
+    }
+
+    /**
+     * Values of one header in a header block, unfolded and joined with
+     * spaces. Used to fill the index columns at ingest and to match text keys.
+     */
+    public static String headerValue(String headers, String name) {
+        if (headers == null) {
+            return "";
+        }
+        StringBuilder value = new StringBuilder();
+        boolean inHeader = false;
+        for (String line : headers.split("\r?\n")) {
+            if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                if (inHeader) {
+                    value.append(' ').append(line.trim());
+                }
+                continue;
+            }
+            inHeader = line.length() > name.length() && line.charAt(name.length()) == ':'
+                    && line.regionMatches(true, 0, name, 0, name.length());
+            if (inHeader) {
+                if (value.length() > 0) {
+                    value.append(' ');
+                }
+                value.append(line.substring(name.length() + 1).trim());
+            }
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where mail, mailboxes and users are kept.
+ *
+ * EmailDatabase sits in front of a MailStorage and keeps everything that is
+ * independent of the on-disk format: the group-commit queue, the mailbox and
+ * message caches, the delivery bus and the blob garbage collector. The
+ * implementation is chosen with the mail.storage property:
+ * {@code sqlite} (the default, {@link SqliteStorage}) or {@code log}
+ * ({@link LogStorage}). The two keep separate data and nothing is carried
+ * over when switching.
+ *
+ * UIDs are global: every delivered message gets an ID larger than any
+ * before it, whatever the mailbox, and it doubles as its IMAP UID.
+ * Implementations must be safe to use from several threads, and from
+ * several processes, since SMTP, IMAP and UDP usually run apart.
+ */
+public interface MailStorage {
+
+    int FLAG_SEEN = 1;
+    int FLAG_ANSWERED = 2;
+    int FLAG_FLAGGED = 4;
+    int FLAG_DELETED = 8;
+    int FLAG_DRAFT = 16;
+
+    /** Receives messages one at a time, in UID order. */
+    interface MessageVisitor {
+        void accept(StoredMessage message) throws IOException;
+    }
+
+    /**
+     * Stores a batch of messages durably, one mailbox entry per recipient.
+     * Fills in {@code mailIds} for every entry stored (0 for duplicates)
+     * and sets {@code failed} on messages that could not be stored while
+     * the rest of the batch was. Throws if the batch as a whole failed, in
+     * which case nothing of it is stored. Called on the ingest writer
+     * thread only.
+     */
+    void deliver(List<IngestQueue.Pending> batch) throws IOException;
+
+    /** Current UIDNEXT of a mailbox, 1 for one that never received mail. */
+    long uidNext(String username) throws IOException;
+
+    /** UIDNEXT of every mailbox. */
+    Map<String, Long> uidNexts() throws IOException;
+
+    /** Appends every message of a mailbox with a UID of at least {@code fromUid}, with its flags, to {@code into}, in UID order. */
+    void list(String username, long fromUid, MailboxCache.Mailbox into) throws IOException;
+
+    /**
+     * Reads the messages of a mailbox whose UID lies between firstUid and
+     * lastUid. Headers and bodies are only loaded when asked for; stored
+     * bodies are passed on by path and never opened here.
+     */
+    void fetch(String username, long firstUid, long lastUid, boolean withHeaders, boolean withBody,
+               MessageVisitor visitor) throws IOException;
+
+    /** Headers and body of any message by its ID, or null if there is none. */
+    Map<String, String> getEmail(long mailId) throws IOException;
+
+    /**
+     * UIDs of a mailbox's messages matching parsed SEARCH criteria. Every
+     * implementation must answer the same way; see {@link MailSearch}.
+     */
+    UidIndex search(String username, MailSearch.Criteria criteria) throws IOException;
+
+    /**
+     * Adds a user with a password hash from {@link Authenticator#hash}.
+     * Returns false if the user already exists.
+     */
+    boolean createUser(String username, String credential) throws IOException;
+
+    /** Stored password hash of a user (a plain password for old rows), or null if there is no such user. */
+    String credential(String username) throws IOException;
+
+    /** Replaces a user's stored password hash. */
+    void setCredential(String username, String credential) throws IOException;
+
+    /**
+     * Adds and then removes FLAG_* bits on a message. Returns the flags it
+     * ends up with, or -1 if the mailbox holds no such message.
+     */
+    int storeFlags(String username, long uid, int add, int remove) throws IOException;
+
+    /** Permanently removes a mailbox's messages flagged \Deleted and returns their UIDs. */
+    UidIndex expunge(String username) throws IOException;
+
+    /** Paths of every MessageStore blob a stored message still references. */
+    Set<String> referencedBlobs() throws IOException;
+
+    /**
+     * Called by the garbage collector before it deletes a blob that was
+     * unreferenced when it looked. Returns false if a message started
+     * referencing it since, in which case the blob must be kept.
+     */
+    boolean releaseBlob(String path) throws IOException;
+
+    /**
+     * Cheap value that changes whenever anything may have been written,
+     * by this process or another; lets the delivery bus skip polling
+     * storage while nothing happens.
+     */
+    long changeStamp();
+
+    String stats();
+}
@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide cache of mailbox metadata, keyed by user.
+ *
+ * Each entry holds a mailbox's UIDs together with the header and body size
+ * and the flags of every message, plus its UIDNEXT, so SELECT and
+ * metadata-only FETCHes are answered without loading the mailbox again. Every session of a user
+ * shares one entry. Mail stored by this process is appended to the entry by
+ * the ingest writer right after it commits. SMTP, IMAP and UDP may run as
+ * separate processes, so a hit also compares the stored UIDNEXT with the
+ * cached one and only reads the messages that arrived since.
+ *
+ * Flags are the one thing that changes in place: STORE updates the cached
+ * entry through {@link #onFlags} once storage has them, and every snapshot
+ * of that entry sees the new value. Flags are only changed by the IMAP
+ * server, so no other process can leave them stale. EXPUNGE drops the
+ * entry instead, as entries otherwise only grow.
+ *
+ * Memory is bounded by the number of mailboxes and by the total number of
+ * messages held; the least recently used mailboxes are evicted first.
+ * Sessions keep working on the snapshots they already took.
+ */
+public class MailboxCache {
+
+    /** Reads mailbox metadata from storage. */
+    public interface Loader {
+        /** Current UIDNEXT of a mailbox in storage. */
+        long uidNext(String username) throws IOException;
+
+        /** Appends every message with a UID of at least {@code fromUid}, with its flags, to {@code into}, in UID order. */
+        void load(String username, long fromUid, Mailbox into) throws IOException;
+    }
+
+    /**
+     * Metadata of one mailbox. Entries are only ever appended, so a
+     * snapshot can share the arrays: it simply never looks past its count.
+     * Flags are the exception; snapshots read them through the entry.
+     * Guarded by a ReentrantLock rather than the monitor, so a session
+     * waiting for a load does not pin its carrier under virtual threads.
+     */
+    public static class Mailbox {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition settled = lock.newCondition();
+        private long[] uids = new long[16];
+        private int[] headerSizes = new int[16];
+        private long[] bodySizes = new long[16];
+        private int[] flags = new int[16];
+        private int count;
+        private long uidNext = 1;
+        private boolean loaded;
+        private boolean failed;
+
+        /** Adds a message with no flags set, as delivered. */
+        public boolean append(long uid, long headerSize, long bodySize) {
+            return append(uid, headerSize, bodySize, 0);
+        }
+
+        /** Adds a message. Returns false if the UID is not newer than the ones already held. */
+        public boolean append(long uid, long headerSize, long bodySize, int flags) {
+            lock.lock();
+            try {
+                if (count > 0 && uid <= uids[count - 1]) {
+                    return false;
+                }
+                if (count == uids.length) {
+                    int capacity = count * 2;
+                    uids = Arrays.copyOf(uids, capacity);
+                    headerSizes = Arrays.copyOf(headerSizes, capacity);
+                    bodySizes = Arrays.copyOf(bodySizes, capacity);
+                    this.flags = Arrays.copyOf(this.flags, capacity);
+                }
+                uids[count] = uid;
+                headerSizes[count] = (int) headerSize;
+                bodySizes[count] = bodySize;
+                this.flags[count] = flags;
+                count++;
+                uidNext = Math.max(uidNext, uid + 1);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Replaces the flags of a held message; false if the entry does not hold it. */
+        boolean setFlags(long uid, int flags) {
+            lock.lock();
+            try {
+                int index = Arrays.binarySearch(uids, 0, count, uid);
+                if (index < 0) {
+                    return false;
+                }
+                this.flags[index] = flags;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int flagsAt(int index) {
+            lock.lock();
+            try {
+                return flags[index];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void setUidNext(long uidNext) {
+            lock.lock();
+            try {
+                this.uidNext = Math.max(this.uidNext, uidNext);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long uidNext() {
+            lock.lock();
+            try {
+                return uidNext;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isLoaded() {
+            lock.lock();
+            try {
+                return loaded;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Appends what a refresh read; returns how many messages were new. */
+        private int appendAll(Mailbox fresh) {
+            lock.lock();
+            fresh.lock.lock();
+            try {
+                int added = 0;
+                for (int i = 0; i < fresh.count; i++) {
+                    if (append(fresh.uids[i], fresh.headerSizes[i], fresh.bodySizes[i], fresh.flags[i])) {
+                        added++;
+                    }
+                }
+                uidNext = Math.max(uidNext, fresh.uidNext);
+                return added;
+            } finally {
+                fresh.lock.unlock();
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Swaps in what the loader read. Messages delivered while the load
+         * was running were appended to this entry and are replayed on top;
+         * the ones the load already saw are dropped as duplicates.
+         */
+        private void finishLoad(Mailbox fresh) {
+            lock.lock();
+            try {
+                long[] pendingUids = uids;
+                int[] pendingHeaders = headerSizes;
+                long[] pendingBodies = bodySizes;
+                int[] pendingFlags = flags;
+                int pending = count;
+                fresh.lock.lock();
+                try {
+                    uids = fresh.uids;
+                    headerSizes = fresh.headerSizes;
+                    bodySizes = fresh.bodySizes;
+                    flags = fresh.flags;
+                    count = fresh.count;
+                    uidNext = Math.max(uidNext, fresh.uidNext);
+                } finally {
+                    fresh.lock.unlock();
+                }
+                for (int i = 0; i < pending; i++) {
+                    append(pendingUids[i], pendingHeaders[i], pendingBodies[i], pendingFlags[i]);
+                }
+                loaded = true;
+                settled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void failLoad() {
+            lock.lock();
+            try {
+                failed = true;
+                settled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Waits for the entry to be loaded and returns a consistent view of it, or null if loading failed. */
+        private Snapshot awaitSnapshot() throws InterruptedException {
+            lock.lock();
+            try {
+                while (!loaded && !failed) {
+                    settled.await();
+                }
+                if (failed) {
+                    return null;
+                }
+                return new Snapshot(this, UidIndex.view(uids, count), headerSizes, bodySizes, uidNext);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A view of a mailbox as a session sees it after SELECT: the messages
+     * and their sizes as they were, with their flags as they are now.
+     */
+    public static class Snapshot {
+        private final Mailbox entry;
+        private final UidIndex uids;
+        private final int[] headerSizes;
+        private final long[] bodySizes;
+        private final long uidNext;
+
+        private Snapshot(Mailbox entry, UidIndex uids, int[] headerSizes, long[] bodySizes, long uidNext) {
+            this.entry = entry;
+            this.uids = uids;
+            this.headerSizes = headerSizes;
+            this.bodySizes = bodySizes;
+            this.uidNext = uidNext;
+        }
+
+        public UidIndex uids() {
+            return uids;
+        }
+
+        public int size() {
+            return uids.size();
+        }
+
+        public long uidNext() {
+            return uidNext;
+        }
+
+        /** Size-only message at a zero-based index, enough for UID and RFC822.SIZE. */
+        public StoredMessage metadata(int index) {
+            return StoredMessage.metadata(uids.uidAt(index), headerSizes[index], bodySizes[index]);
+        }
+
+        /** Current MailStorage.FLAG_* bits of the message at a zero-based index. */
+        public int flags(int index) {
+            return entry.flagsAt(index);
+        }
+    }
+
+    private final Loader loader;
+    private final int maxMailboxes;
+    private final long maxMessages;
+    private final LinkedHashMap<String, Mailbox> mailboxes = new LinkedHashMap<>(16, 0.75f, true);
+    // Messages held by the entries currently in the map; guarded by this
+    private long cachedMessages;
+
+    // Metrics, guarded by this
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long loadFailures;
+    private long deliveries;
+    private long refreshes;
+
+    public MailboxCache(Loader loader, int maxMailboxes, long maxMessages) {
+        this.loader = loader;
+        this.maxMailboxes = maxMailboxes;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Returns a snapshot of a user's mailbox, loading it on a miss. Sessions
+     * that ask for a mailbox while another one is loading it wait for that
+     * load instead of running their own query. Returns null if it could not
+     * be loaded.
+     */
+    public Snapshot get(String username) {
+        return get(username, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #get(String)}, for callers that already know the stored
+     * UIDNEXT (from a delivery event): a cached entry that has caught up
+     * with it is returned without asking storage.
+     */
+    public Snapshot get(String username, long knownUidNext) {
+        Mailbox mailbox;
+        boolean load = false;
+        synchronized (this) {
+            mailbox = mailboxes.get(username);
+            if (mailbox == null) {
+                mailbox = new Mailbox();
+                mailboxes.put(username, mailbox);
+                misses++;
+                load = true;
+            } else {
+                hits++;
+            }
+        }
+
+        if (load) {
+            Mailbox fresh = new Mailbox();
+            try {
+                loader.load(username, 0, fresh);
+            } catch (IOException e) {
+                System.err.println("Error loading mailbox of " + username + ": " + e.getMessage());
+                synchronized (this) {
+                    if (mailboxes.remove(username, mailbox)) {
+                        cachedMessages -= mailbox.size();
+                    }
+                    loadFailures++;
+                }
+                mailbox.failLoad();
+                return null;
+            }
+            synchronized (this) {
+                int before = mailbox.size();
+                mailbox.finishLoad(fresh);
+                if (mailboxes.get(username) == mailbox) {
+                    cachedMessages += mailbox.size() - before;
+                }
+                evict();
+            }
+        } else if (mailbox.isLoaded() && mailbox.uidNext() < knownUidNext) {
+            refresh(username, mailbox, knownUidNext);
+        }
+
+        try {
+            return mailbox.awaitSnapshot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Catches a cached mailbox up with mail another process stored. Costs a
+     * single UIDNEXT lookup when nothing changed. A failed check keeps
+     * serving the cached entry.
+     */
+    private void refresh(String username, Mailbox mailbox, long knownUidNext) {
+        try {
+            long cachedUidNext = mailbox.uidNext();
+            long storedUidNext = knownUidNext != Long.MAX_VALUE ? knownUidNext : loader.uidNext(username);
+            if (storedUidNext <= cachedUidNext) {
+                return;
+            }
+            Mailbox fresh = new Mailbox();
+            loader.load(username, cachedUidNext, fresh);
+            synchronized (this) {
+                int added = mailbox.appendAll(fresh);
+                if (mailboxes.get(username) == mailbox) {
+                    cachedMessages += added;
+                    refreshes++;
+                    evict();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error refreshing mailbox of " + username + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a committed message to its mailbox if that mailbox is cached.
+     * Called by the ingest writer after each commit.
+     */
+    public synchronized void onDelivered(String username, long uid, long headerSize, long bodySize) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox != null && mailbox.append(uid, headerSize, bodySize)) {
+            cachedMessages++;
+            deliveries++;
+            evict();
+        }
+    }
+
+    /** Records a message's new flags in its cached mailbox, if that is cached. Called once storage holds them. */
+    public synchronized void onFlags(String username, long uid, int flags) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox != null && !mailbox.setFlags(uid, flags) && !mailbox.isLoaded()) {
+            // A load still running may have read the old flags; the next lookup loads afresh
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Forgets a cached mailbox after messages were removed from it, so the
+     * next lookup loads it again. Snapshots already handed out stay valid.
+     */
+    public synchronized void invalidate(String username) {
+        Mailbox mailbox = mailboxes.remove(username);
+        if (mailbox != null) {
+            cachedMessages -= mailbox.size();
+        }
+    }
+
+    /** Drops least recently used mailboxes until both limits hold again. Caller holds the lock. */
+    private void evict() {
+        Iterator<Map.Entry<String, Mailbox>> it = mailboxes.entrySet().iterator();
+        while (it.hasNext() && (mailboxes.size() > maxMailboxes || cachedMessages > maxMessages)) {
+            Mailbox eldest = it.next().getValue();
+            if (mailboxes.size() == 1) {
+                break; // Always keep the mailbox that was just used
+            }
+            cachedMessages -= eldest.size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int getMailboxCount() { return mailboxes.size(); }
+    public synchronized long getCachedMessages() { return cachedMessages; }
+    public synchronized long getHitCount() { return hits; }
+    public synchronized long getMissCount() { return misses; }
+    public synchronized long getEvictionCount() { return evictions; }
+    public synchronized long getLoadFailureCount() { return loadFailures; }
+    public synchronized long getDeliveryCount() { return deliveries; }
+    public synchronized long getRefreshCount() { return refreshes; }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("mailboxCache[mailboxes=%d messages=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d loadFailures=%d deliveries=%d refreshes=%d]",
+                mailboxes.size(), cachedMessages, hits, misses,
+                lookups == 0 ? 0.0 : hits * 100.0 / lookups, evictions, loadFailures, deliveries, refreshes);
+    }
+}
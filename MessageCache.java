@@ -0,0 +1,172 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of encoded messages for FETCH, keyed by IDmail.
+ *
+ * Clients keep asking for the headers of the same recent messages from
+ * every session and device. An entry holds a message's header block as it
+ * goes on the wire and, when the body is small, the body too; large stored
+ * bodies are only remembered by path since they already go from the page
+ * cache to the socket with transferTo. Messages never change once stored,
+ * so entries are never invalidated, only evicted.
+ *
+ * The memory budget counts header and body bytes, and the least recently
+ * used entries go first. With {@code offHeap} the bytes live in direct
+ * buffers outside the Java heap and are written to the socket channel
+ * without being copied back.
+ */
+public class MessageCache {
+
+    private static class Entry {
+        final ByteBuffer data; // header block followed by the body, when cached
+        final int headerLength;
+        final boolean hasBody;
+        final String bodyPath;
+        final long bodySize;
+
+        Entry(ByteBuffer data, int headerLength, boolean hasBody, String bodyPath, long bodySize) {
+            this.data = data;
+            this.headerLength = headerLength;
+            this.hasBody = hasBody;
+            this.bodyPath = bodyPath;
+            this.bodySize = bodySize;
+        }
+
+        int cost() {
+            return data.capacity();
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxBodySize;
+    private final boolean offHeap;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes; // guarded by this
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MessageCache(long maxBytes, int maxBodySize, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.maxBodySize = maxBodySize;
+        this.offHeap = offHeap;
+    }
+
+    /** Largest body kept in the cache; bigger ones are served from the MessageStore. */
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Returns a cached message, or null on a miss. With {@code needBody} an
+     * entry only counts if it can also serve the body.
+     */
+    public StoredMessage get(long id, boolean needBody) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+        }
+        if (entry == null || (needBody && !entry.hasBody)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        ByteBuffer data = entry.data.duplicate();
+        data.limit(entry.headerLength);
+        ByteBuffer headers = data.slice();
+        ByteBuffer body = null;
+        if (entry.hasBody && entry.bodyPath == null) {
+            data.limit(entry.data.capacity()).position(entry.headerLength);
+            body = data.slice();
+        }
+        return new StoredMessage(id, headers, body, entry.hasBody ? entry.bodyPath : null, entry.headerLength, entry.bodySize);
+    }
+
+    public synchronized boolean contains(long id, boolean needBody) {
+        Entry entry = entries.get(id);
+        return entry != null && (!needBody || entry.hasBody);
+    }
+
+    /** Drops a message that no longer exists. */
+    public synchronized void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            usedBytes -= entry.cost();
+        }
+    }
+
+    /**
+     * Caches a message loaded from storage. {@code message} must carry its
+     * headers; its body is cached if it is inline, otherwise {@code body}
+     * may hold the bytes of a small stored body. Without either, only the
+     * body path is remembered.
+     */
+    public void put(StoredMessage message, boolean hasBody, byte[] body) {
+        ByteBuffer headers = message.headers();
+        if (headers == null) {
+            return;
+        }
+        ByteBuffer inline = message.inlineBody();
+        int bodyLength = 0;
+        if (hasBody) {
+            bodyLength = inline != null ? inline.remaining() : body != null ? body.length : 0;
+        }
+        if (bodyLength > maxBodySize) {
+            bodyLength = 0;
+            inline = null;
+            body = null;
+        }
+        int headerLength = headers.remaining();
+        if (headerLength + bodyLength > maxBytes) {
+            return;
+        }
+
+        ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(headerLength + bodyLength)
+                                  : ByteBuffer.allocate(headerLength + bodyLength);
+        data.put(headers);
+        if (inline != null) {
+            data.put(inline);
+        } else if (body != null) {
+            data.put(body);
+        }
+        data.flip();
+        // A stored body that was too big (or not read) is served from its file
+        String bodyPath = inline != null || body != null ? null : message.bodyPath();
+        boolean servesBody = hasBody && (inline != null || body != null || bodyPath != null || message.bodySize() == 0);
+        Entry entry = new Entry(data, headerLength, servesBody, bodyPath, message.bodySize());
+
+        synchronized (this) {
+            Entry previous = entries.put(message.getId(), entry);
+            if (previous != null) {
+                usedBytes -= previous.cost();
+            }
+            usedBytes += entry.cost();
+            Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                usedBytes -= it.next().getValue().cost();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized int getEntryCount() { return entries.size(); }
+    public synchronized long getUsedBytes() { return usedBytes; }
+    public long getMaxBytes() { return maxBytes; }
+    public long getHitCount() { return hits.get(); }
+    public long getMissCount() { return misses.get(); }
+    public long getEvictionCount() { return evictions.get(); }
+
+    public String stats() {
+        long lookups = hits.get() + misses.get();
+        return String.format("messageCache[entries=%d used=%dKB max=%dKB offHeap=%b hits=%d misses=%d hitRate=%.1f%% evictions=%d]",
+                getEntryCount(), getUsedBytes() / 1024, maxBytes / 1024, offHeap, hits.get(), misses.get(),
+                lookups == 0 ? 0.0 : hits.get() * 100.0 / lookups, evictions.get());
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk storage for message bodies.
+ *
+ * Bodies are streamed into a temporary file while the client is still
+ * sending them and only moved into the store once the whole message has
+ * arrived, so a session never needs the complete body in memory. SMTP_DB
+ * rows point at the stored file through their BODY_PATH column.
+ *
+ * The store is content-addressed: a body is named after the SHA-256 of its
+ * bytes, so the same newsletter delivered again (or to many users) is kept
+ * once and every row references the same blob. Blobs that compress well
+ * are kept deflated ({@code <hash>.z}: the raw length, then a deflate
+ * stream); the rest stay raw ({@code <hash>.body}) and are still sent to
+ * sockets with transferTo. Bodies stored before content addressing keep
+ * their random names.
+ *
+ * Blobs are never deleted on the delivery path, since another message may
+ * share them. The database counts references in its BLOBS table and its
+ * garbage collector deletes blobs nothing references any more.
+ *
+ * SMTP, IMAP and UDP run as separate processes on the same store, so each
+ * process streams into its own {@code tmp/<pid>} directory and holds a lock
+ * on {@code tmp/<pid>.lock} while it runs. On startup a process only clears
+ * the directories whose lock it can take, i.e. those of processes that died
+ * in the middle of a message.
+ */
+public class MessageStore {
+    private static final File ROOT = new File(System.getProperty("mail.store.dir", "mail_store"));
+    private static final File TMP_ROOT = new File(ROOT, "tmp");
+    private static final File TMP = new File(TMP_ROOT, Long.toString(ProcessHandle.current().pid()));
+    private static final String LOCK_SUFFIX = ".lock";
+    // Files directly in tmp come from versions without per-process directories
+    private static final long LEGACY_TMP_AGE_MS = 60 * 60 * 1000L;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("mail.store.compress", "true"));
+    private static final int COMPRESS_MIN_SIZE = Integer.getInteger("mail.store.compressMinSize", 1024);
+    // A compressed blob is only kept if it saves at least this share of the raw size
+    private static final double COMPRESS_MIN_SAVING = 0.1;
+    private static final String RAW_SUFFIX = ".body";
+    private static final String COMPRESSED_SUFFIX = ".z";
+
+    // Metrics
+    private static final AtomicLong blobsWritten = new AtomicLong();
+    private static final AtomicLong blobsDeduplicated = new AtomicLong();
+    private static final AtomicLong blobsCompressed = new AtomicLong();
+    private static final AtomicLong bytesReceived = new AtomicLong();
+    private static final AtomicLong bytesStored = new AtomicLong();
+
+    // Held until the process exits, so no other process clears our temp directory
+    private static FileChannel tmpLock;
+
+    static {
+        if (!TMP_ROOT.isDirectory() && !TMP_ROOT.mkdirs()) {
+            System.err.println("Could not create message store directory " + TMP_ROOT.getAbsolutePath());
+        }
+        try {
+            tmpLock = FileChannel.open(new File(TMP_ROOT, TMP.getName() + LOCK_SUFFIX).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            tmpLock.lock();
+        } catch (IOException e) {
+            System.err.println("Could not lock temp directory " + TMP.getAbsolutePath() + ": " + e.getMessage());
+        }
+        // Whatever is in our own directory was left by an earlier process with the same pid
+        deleteTree(TMP);
+        if (!TMP.mkdirs()) {
+            System.err.println("Could not create message store directory " + TMP.getAbsolutePath());
+        }
+        clearAbandonedTmp();
+    }
+
+    private MessageStore() {
+    }
+
+    /** Deletes the temp directories of processes that are gone, skipping every live one. */
+    private static void clearAbandonedTmp() {
+        File[] entries = TMP_ROOT.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - LEGACY_TMP_AGE_MS;
+        for (File entry : entries) {
+            if (entry.equals(TMP) || entry.getName().endsWith(LOCK_SUFFIX)) {
+                continue;
+            }
+            if (!entry.isDirectory()) {
+                if (entry.lastModified() < cutoff) {
+                    entry.delete();
+                }
+                continue;
+            }
+            File lockFile = new File(TMP_ROOT, entry.getName() + LOCK_SUFFIX);
+            if (!lockFile.exists()) {
+                continue; // Not one of ours
+            }
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE);
+                 FileLock lock = channel.tryLock()) {
+                if (lock != null) {
+                    deleteTree(entry);
+                }
+            } catch (IOException | OverlappingFileLockException e) {
+                System.err.println("Could not clear temp directory " + entry.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public static Writer newWriter() throws IOException {
+        return new Writer();
+    }
+
+    /** Stores a body that is already in memory. Returns its store path. */
+    public static String store(byte[] body) throws IOException {
+        Writer writer = new Writer();
+        try {
+            writer.write(body, 0, body.length);
+            return writer.commit();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static boolean isCompressed(String path) {
+        return path.endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /** Opens a stored body for reading, inflating it if it is compressed. */
+    private static InputStream open(String path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(new File(ROOT, path).toPath()), WRITE_BUFFER_SIZE);
+        if (!isCompressed(path)) {
+            return in;
+        }
+        DataInputStream data = new DataInputStream(in);
+        data.readLong(); // raw length
+        return new InflaterInputStream(data);
+    }
+
+    /** Reads a stored body back as text. */
+    public static String readBody(String path) throws IOException {
+        return new String(readBodyBytes(path), StandardCharsets.UTF_8);
+    }
+
+    /** Reads a stored body back as raw bytes. */
+    public static byte[] readBodyBytes(String path) throws IOException {
+        if (!isCompressed(path)) {
+            return Files.readAllBytes(new File(ROOT, path).toPath());
+        }
+        try (InputStream in = open(path)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Reads at most {@code maxBytes} of a stored body as text, e.g. for indexing. */
+    public static String readBodyPrefix(String path, int maxBytes) throws IOException {
+        if (isCompressed(path)) {
+            try (InputStream in = open(path)) {
+                return new String(in.readNBytes(maxBytes), StandardCharsets.UTF_8);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(new File(ROOT, path).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), maxBytes));
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // Keep reading until the prefix is complete
+            }
+            return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Size of the body as sent to clients, whether or not it is stored compressed. */
+    public static long size(String path) {
+        if (!isCompressed(path)) {
+            return new File(ROOT, path).length();
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(new File(ROOT, path).toPath()))) {
+            return in.readLong();
+        } catch (IOException e) {
+            System.err.println("Error reading size of stored body " + path + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Bytes the blob takes on disk. */
+    public static long storedSize(String path) {
+        return new File(ROOT, path).length();
+    }
+
+    /**
+     * Sends a stored body to a socket. Raw blobs go with
+     * {@link FileChannel#transferTo}, which lets the kernel copy file pages
+     * straight to the socket; compressed ones are inflated on the way.
+     */
+    public static void transferBody(String path, WritableByteChannel target) throws IOException {
+        if (isCompressed(path)) {
+            try (InputStream in = open(path)) {
+                byte[] chunk = new byte[WRITE_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(new File(ROOT, path).toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    /** Copies a stored body to a stream, for clients without a socket channel. */
+    public static void copyBody(String path, OutputStream out) throws IOException {
+        if (isCompressed(path)) {
+            try (InputStream in = open(path)) {
+                in.transferTo(out);
+            }
+            return;
+        }
+        Files.copy(new File(ROOT, path).toPath(), out);
+    }
+
+    /**
+     * Forces a stored body to disk. The ingest writer calls this for every
+     * body in a batch before committing the rows that point at them.
+     */
+    public static void sync(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(ROOT, path).toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    public static void delete(String path) {
+        if (path != null && !new File(ROOT, path).delete()) {
+            System.err.println("Could not delete stored body " + path);
+        }
+    }
+
+    /** Names of every blob in the store, for the garbage collector. */
+    public static List<String> listBlobs() {
+        List<String> names = new ArrayList<>();
+        File[] files = ROOT.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    /** Milliseconds since a blob was last written or shared by a new message. */
+    public static long age(String path) {
+        return System.currentTimeMillis() - new File(ROOT, path).lastModified();
+    }
+
+    /** An existing blob with this content hash, or null. */
+    private static String find(String hash) {
+        if (new File(ROOT, hash + RAW_SUFFIX).isFile()) {
+            return hash + RAW_SUFFIX;
+        }
+        if (new File(ROOT, hash + COMPRESSED_SUFFIX).isFile()) {
+            return hash + COMPRESSED_SUFFIX;
+        }
+        return null;
+    }
+
+    /**
+     * Deflates a finished temporary body next to itself. Returns the
+     * compressed file, or null when it would not save enough to give up
+     * zero-copy sends.
+     */
+    private static File compress(File source, long size) throws IOException {
+        File packed = new File(TMP, source.getName() + COMPRESSED_SUFFIX);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (InputStream in = Files.newInputStream(source.toPath());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packed), WRITE_BUFFER_SIZE))) {
+            out.writeLong(size);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, WRITE_BUFFER_SIZE);
+            in.transferTo(deflated);
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        if (packed.length() > size * (1 - COMPRESS_MIN_SAVING)) {
+            packed.delete();
+            return null;
+        }
+        return packed;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static long getBlobsWritten() { return blobsWritten.get(); }
+    public static long getBlobsDeduplicated() { return blobsDeduplicated.get(); }
+    public static long getBlobsCompressed() { return blobsCompressed.get(); }
+    public static long getBytesReceived() { return bytesReceived.get(); }
+    public static long getBytesStored() { return bytesStored.get(); }
+
+    public static String stats() {
+        long received = bytesReceived.get();
+        return String.format("messageStore[written=%d deduplicated=%d compressed=%d received=%dKB stored=%dKB saved=%.1f%%]",
+                blobsWritten.get(), blobsDeduplicated.get(), blobsCompressed.get(), received / 1024,
+                bytesStored.get() / 1024, received == 0 ? 0.0 : (received - bytesStored.get()) * 100.0 / received);
+    }
+
+    /**
+     * Streams one body to disk through a fixed-size buffer, hashing it on
+     * the way. Call {@link #commit()} once the body is complete or
+     * {@link #abort()} to throw it away.
+     */
+    public static class Writer {
+        private final File tempFile;
+        private final OutputStream out;
+        private final MessageDigest digest;
+        private long size = 0;
+        private boolean finished = false;
+
+        private Writer() throws IOException {
+            this.tempFile = new File(TMP, UUID.randomUUID().toString() + RAW_SUFFIX);
+            this.out = new BufferedOutputStream(new FileOutputStream(tempFile), WRITE_BUFFER_SIZE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                out.close();
+                tempFile.delete();
+                throw new IOException("SHA-256 is not available", e);
+            }
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            digest.update(bytes, offset, length);
+            size += length;
+        }
+
+        public void write(String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Flushes the body to disk and moves it into the store, unless a blob
+         * with the same content is already there. Returns its store path.
+         */
+        public String commit() throws IOException {
+            finished = true;
+            out.close();
+            bytesReceived.addAndGet(size);
+            String hash = hex(digest.digest());
+            String existing = find(hash);
+            if (existing != null) {
+                tempFile.delete();
+                // Fresh again, so the garbage collector's grace period covers the new reference
+                new File(ROOT, existing).setLastModified(System.currentTimeMillis());
+                blobsDeduplicated.incrementAndGet();
+                return existing;
+            }
+
+            File source = tempFile;
+            String name = hash + RAW_SUFFIX;
+            if (COMPRESS && size >= COMPRESS_MIN_SIZE) {
+                File packed = compress(tempFile, size);
+                if (packed != null) {
+                    tempFile.delete();
+                    source = packed;
+                    name = hash + COMPRESSED_SUFFIX;
+                    blobsCompressed.incrementAndGet();
+                }
+            }
+            bytesStored.addAndGet(source.length());
+            Files.move(source.toPath(), new File(ROOT, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            blobsWritten.incrementAndGet();
+            return name;
+        }
+
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleting it anyway
+            }
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector-based SMTP front end.
+ *
+ * One acceptor thread hands new connections round-robin to a small, fixed
+ * number of event-loop threads. Each loop multiplexes its connections with a
+ * {@link Selector} and drives one {@link SmtpSession} per connection, so the
+ * thread count no longer grows with the number of clients.
+ *
+ * Replies to pipelined commands are queued while the read buffer still
+ * holds input and go out together in one gathering write per batch. BDAT
+ * chunk bytes are passed to the session straight from the read buffer.
+ *
+ * The loops never block on the disk: the session hands message bodies to
+ * its store threads and answers the end of DATA with a future, whose reply
+ * is posted back to the loop once the message is durable.
+ *
+ * Backpressure: a connection stops being read while it waits for a DATA
+ * reply (the message is being committed), while its session still has too
+ * much body data waiting to be written, or while it has more unsent output
+ * than {@code smtp.maxPendingOutput} bytes. Connections beyond
+ * {@code smtp.maxConnections} are answered with 421 and closed.
+ */
+public class NioSmtpServer {
+    private static final int EVENT_LOOPS = Integer.getInteger("smtp.eventLoops",
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int MAX_CONNECTIONS = Integer.getInteger("smtp.maxConnections", 1000);
+    private static final int MAX_PENDING_OUTPUT = Integer.getInteger("smtp.maxPendingOutput", 64 * 1024);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("smtp.idleTimeoutMs", 5 * 60 * 1000L);
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final AtomicInteger openConnections = new AtomicInteger();
+
+    public static void start(int port) {
+        EventLoop[] loops = new EventLoop[EVENT_LOOPS];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                Thread thread = new Thread(loops[i], "smtp-loop-" + i);
+                thread.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to start SMTP event loops: " + e.getMessage());
+            return;
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("SMTP Server started on port " + port + " (NIO, " + loops.length + " event loops, max "
+                    + MAX_CONNECTIONS + " connections)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (openConnections.incrementAndGet() > MAX_CONNECTIONS) {
+                    openConnections.decrementAndGet();
+                    rejectBusy(channel);
+                    continue;
+                }
+                System.out.println("New client connected: " + channel.socket().getInetAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
+        }
+    }
+
+    public static int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    private static void rejectBusy(SocketChannel channel) {
+        System.err.println("Connection limit reached, rejecting " + channel.socket().getInetAddress());
+        try {
+            channel.write(ByteBuffer.wrap(("421 " + SMTPServer.DOMAIN + " Too many connections, try again later\r\n")
+                    .getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private final int id;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        /** Runs {@code task} on this loop's thread. Safe to call from any thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, key);
+                    key.attach(connection);
+                    connection.start();
+                } catch (IOException e) {
+                    System.err.println("Error registering client: " + e.getMessage());
+                    openConnections.decrementAndGet();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to do
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("SMTP event loop " + id + " task failed: " + e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid() || connection == null) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            System.err.println("Error with client: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= 1000) {
+                        lastIdleCheck = now;
+                        closeIdleConnections(now);
+                    }
+                } catch (IOException e) {
+                    System.err.println("SMTP event loop " + id + " error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && !connection.closeAfterFlush && now - connection.lastActivity > IDLE_TIMEOUT_MS) {
+                    System.out.println("Closing idle SMTP connection " + connection.channel.socket().getInetAddress());
+                    connection.sendLine("421 " + SMTPServer.DOMAIN + " Idle timeout, closing connection");
+                    connection.closeAfterFlush = true;
+                    connection.updateInterest();
+                }
+            }
+        }
+    }
+
+    /** Per-connection buffers plus the SMTP state machine. Only touched by its event loop. */
+    static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SmtpSession session = new SmtpSession();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private int pendingOutputBytes = 0;
+        private boolean awaitingReply = false;
+        private boolean closeAfterFlush = false;
+        private boolean closed = false;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            // Start in read mode with an empty buffer
+            this.readBuffer.flip();
+        }
+
+        void start() throws IOException {
+            sendLine(session.greeting());
+            onWritable();
+        }
+
+        void onReadable() throws IOException {
+            readBuffer.compact();
+            int read = channel.read(readBuffer);
+            readBuffer.flip();
+            if (read == -1) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            processInput();
+        }
+
+        /** Feeds complete lines to the session until input runs out or a reply is pending. */
+        private void processInput() throws IOException {
+            while (!awaitingReply && !closeAfterFlush && readBuffer.hasRemaining()) {
+                byte[] chunk = readBuffer.array();
+                int start = readBuffer.arrayOffset() + readBuffer.position();
+                int limit = readBuffer.arrayOffset() + readBuffer.limit();
+                long chunkBytes = session.pendingChunkBytes();
+                if (chunkBytes > 0) {
+                    int length = (int) Math.min(chunkBytes, limit - start);
+                    readBuffer.position(readBuffer.position() + length);
+                    handleReply(session.onChunk(chunk, start, length));
+                    continue;
+                }
+                // Copy up to the next newline straight out of the read buffer
+                int newline = ProtocolCodec.indexOf(chunk, start, limit, (byte) '\n');
+                int end = newline == -1 ? limit : newline;
+                if (lineLength + (end - start) > SMTPServer.MAX_LINE_LENGTH) {
+                    sendLine("500 Line too long");
+                    closeAfterFlush = true;
+                    break;
+                }
+                appendToLine(chunk, start, end - start);
+                readBuffer.position(readBuffer.position() + (end - start));
+                if (newline == -1) {
+                    break;
+                }
+
+                readBuffer.get(); // the newline itself
+                int length = lineLength;
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                lineLength = 0;
+                handleLine(length);
+            }
+            updateInterest();
+            // While a DATA/BDAT reply is pending, the replies before it wait and
+            // leave with it, rather than as a lone small write
+            if (pendingOutputBytes > 0 && !awaitingReply) {
+                onWritable();
+            }
+        }
+
+        private void appendToLine(byte[] src, int off, int len) {
+            if (lineLength + len > line.length) {
+                byte[] grown = new byte[Math.max(line.length * 2, lineLength + len)];
+                System.arraycopy(line, 0, grown, 0, lineLength);
+                line = grown;
+            }
+            System.arraycopy(src, off, line, lineLength, len);
+            lineLength += len;
+        }
+
+        private void handleLine(int length) {
+            handleReply(session.onLine(line, 0, length));
+        }
+
+        private void handleReply(CompletableFuture<String> reply) {
+            if (reply.isDone()) {
+                deliver(reply.join());
+                return;
+            }
+            // Stop reading until the message is durable (or the body spool has caught up);
+            // the loop picks up again afterwards.
+            awaitingReply = true;
+            reply.whenComplete((response, error) -> loop.execute(() -> {
+                awaitingReply = false;
+                deliver(error == null ? response : "451 Requested action aborted: local error in processing");
+                try {
+                    processInput();
+                } catch (IOException e) {
+                    System.err.println("Error with client: " + e.getMessage());
+                    close();
+                }
+            }));
+        }
+
+        private void deliver(String response) {
+            if (response != null) {
+                sendLine(response);
+            }
+            if (session.isClosed()) {
+                closeAfterFlush = true;
+            }
+        }
+
+        void sendLine(String line) {
+            byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+            output.add(ByteBuffer.wrap(bytes));
+            pendingOutputBytes += bytes.length;
+        }
+
+        void onWritable() throws IOException {
+            if (!output.isEmpty()) {
+                // Every queued reply in one write
+                long written = channel.write(output.toArray(new ByteBuffer[0]));
+                pendingOutputBytes -= (int) written;
+                while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                    output.poll();
+                }
+                // Anything left means the socket buffer is full: wait for OP_WRITE
+            }
+            if (output.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            boolean outputBacklogged = pendingOutputBytes > MAX_PENDING_OUTPUT;
+            if (!awaitingReply && !closeAfterFlush && !outputBacklogged) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty() && !awaitingReply) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openConnections.decrementAndGet();
+            session.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level line codec shared by the SMTP, IMAP and UDP servers.
+ *
+ * Commands are recognised straight from the receive buffer with ASCII
+ * case-insensitive comparisons, so the hot path does not build a String,
+ * upper-case it and split it for every line. Parsed commands are mutable
+ * objects that each session reuses; Strings are only created for the parts
+ * a handler actually needs (addresses, tags, arguments).
+ */
+public class ProtocolCodec {
+
+    private ProtocolCodec() {
+    }
+
+    private static byte upper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+    }
+
+    /** ASCII case-insensitive prefix test against an upper-case pattern. */
+    public static boolean startsWithIgnoreCase(byte[] buf, int off, int len, byte[] upperPattern) {
+        if (len < upperPattern.length) {
+            return false;
+        }
+        for (int i = 0; i < upperPattern.length; i++) {
+            if (upper(buf[off + i]) != upperPattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** ASCII case-insensitive equality against an upper-case pattern. */
+    public static boolean equalsIgnoreCase(byte[] buf, int off, int len, byte[] upperPattern) {
+        return len == upperPattern.length && startsWithIgnoreCase(buf, off, len, upperPattern);
+    }
+
+    /** Index of the first case-insensitive occurrence of {@code upperPattern} in the range, or -1. */
+    public static int indexOfIgnoreCase(byte[] buf, int from, int to, byte[] upperPattern) {
+        for (int i = from; i + upperPattern.length <= to; i++) {
+            if (startsWithIgnoreCase(buf, i, to - i, upperPattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static String decode(byte[] buf, int off, int len) {
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    /** Length of the range once trailing spaces and tabs are dropped. */
+    private static int trimmedLength(byte[] buf, int off, int len) {
+        while (len > 0 && (buf[off + len - 1] == ' ' || buf[off + len - 1] == '\t')) {
+            len--;
+        }
+        return len;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads CRLF- or LF-terminated lines from a stream into a reusable
+     * buffer. The line stays valid until the next call.
+     */
+    public static class LineReader {
+        private final InputStream in;
+        private final int maxLineLength;
+        private final byte[] buffer = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+        private byte[] line = new byte[256];
+
+        public LineReader(InputStream in, int maxLineLength) {
+            this.in = in;
+            this.maxLineLength = maxLineLength;
+        }
+
+        public byte[] line() {
+            return line;
+        }
+
+        /** Reads the next line without its terminator. Returns its length, or -1 at end of stream. */
+        public int readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (position == limit && !fill()) {
+                    return length > 0 ? stripCr(length) : -1;
+                }
+                int newline = indexOf(buffer, position, limit, (byte) '\n');
+                int end = newline == -1 ? limit : newline;
+                int chunk = end - position;
+                if (length + chunk > maxLineLength) {
+                    throw new IOException("Line too long");
+                }
+                if (length + chunk > line.length) {
+                    byte[] grown = new byte[Math.max(line.length * 2, length + chunk)];
+                    System.arraycopy(line, 0, grown, 0, length);
+                    line = grown;
+                }
+                System.arraycopy(buffer, position, line, length, chunk);
+                length += chunk;
+                position = end;
+                if (newline != -1) {
+                    position++;
+                    return stripCr(length);
+                }
+            }
+        }
+
+        private int stripCr(int length) {
+            return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+        }
+
+        /** Reads exactly {@code len} raw bytes (an IMAP literal, for example). Returns false at end of stream. */
+        public boolean readFully(byte[] dst, int off, int len) throws IOException {
+            while (len > 0) {
+                if (position == limit && !fill()) {
+                    return false;
+                }
+                int chunk = Math.min(len, limit - position);
+                System.arraycopy(buffer, position, dst, off, chunk);
+                position += chunk;
+                off += chunk;
+                len -= chunk;
+            }
+            return true;
+        }
+
+        /**
+         * Reads up to {@code len} raw bytes, whatever is buffered or arrives
+         * next (a BDAT chunk, for example). Returns the count, or -1 at end of stream.
+         */
+        public int read(byte[] dst, int off, int len) throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int chunk = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, dst, off, chunk);
+            position += chunk;
+            return chunk;
+        }
+
+        /** True when more input is already buffered, i.e. the client pipelined commands. */
+        public boolean hasBufferedInput() throws IOException {
+            return position < limit || in.available() > 0;
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+    }
+
+    /** A parsed SMTP command line. Also used for the SMTP-style envelope of UDP packets. */
+    public static class SmtpCommand {
+        public enum Verb { HELO, EHLO, MAIL, RCPT, DATA, BDAT, RSET, NOOP, QUIT, UNKNOWN }
+
+        private static final byte[] HELO = ascii("HELO");
+        private static final byte[] EHLO = ascii("EHLO");
+        private static final byte[] MAIL_FROM = ascii("MAIL FROM:");
+        private static final byte[] RCPT_TO = ascii("RCPT TO:");
+        private static final byte[] DATA = ascii("DATA");
+        private static final byte[] BDAT = ascii("BDAT ");
+        private static final byte[] RSET = ascii("RSET");
+        private static final byte[] NOOP = ascii("NOOP");
+        private static final byte[] QUIT = ascii("QUIT");
+        private static final byte[] SIZE_PARAM = ascii(" SIZE=");
+        private static final byte[] BODY_PARAM = ascii(" BODY=");
+        private static final byte[] LAST = ascii(" LAST");
+
+        private Verb verb = Verb.UNKNOWN;
+        private byte[] buf;
+        private int off;
+        private int len;
+
+        public SmtpCommand parse(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+            int trimmed = trimmedLength(buf, off, len);
+            if (startsWithIgnoreCase(buf, off, len, HELO)) {
+                verb = Verb.HELO;
+            } else if (startsWithIgnoreCase(buf, off, len, EHLO)) {
+                verb = Verb.EHLO;
+            } else if (startsWithIgnoreCase(buf, off, len, MAIL_FROM)) {
+                verb = Verb.MAIL;
+            } else if (startsWithIgnoreCase(buf, off, len, RCPT_TO)) {
+                verb = Verb.RCPT;
+            } else if (equalsIgnoreCase(buf, off, trimmed, DATA)) {
+                verb = Verb.DATA;
+            } else if (startsWithIgnoreCase(buf, off, len, BDAT)) {
+                verb = Verb.BDAT;
+            } else if (equalsIgnoreCase(buf, off, trimmed, RSET)) {
+                verb = Verb.RSET;
+            } else if (startsWithIgnoreCase(buf, off, trimmed, NOOP)
+                    && (trimmed == NOOP.length || buf[off + NOOP.length] == ' ')) {
+                verb = Verb.NOOP;
+            } else if (equalsIgnoreCase(buf, off, trimmed, QUIT)) {
+                verb = Verb.QUIT;
+            } else {
+                verb = Verb.UNKNOWN;
+            }
+            return this;
+        }
+
+        public Verb verb() {
+            return verb;
+        }
+
+        /** The address between angle brackets, or null if there is none. */
+        public String address() {
+            int start = indexOf(buf, off, off + len, (byte) '<');
+            if (start == -1) {
+                return null;
+            }
+            int end = indexOf(buf, start + 1, off + len, (byte) '>');
+            if (end == -1) {
+                return null;
+            }
+            return decode(buf, start + 1, end - start - 1).trim();
+        }
+
+        /** Value of a SIZE= parameter after the address, or 0 when there is none. */
+        public long sizeParameter() {
+            int close = indexOf(buf, off, off + len, (byte) '>');
+            int index = indexOfIgnoreCase(buf, close == -1 ? off : close, off + len, SIZE_PARAM);
+            if (index == -1) {
+                return 0;
+            }
+            long size = number(index + SIZE_PARAM.length);
+            return size == -1 ? 0 : size;
+        }
+
+        /** Value of a BODY= parameter after the address (7BIT, 8BITMIME, ...), or null when there is none. */
+        public String bodyParameter() {
+            int close = indexOf(buf, off, off + len, (byte) '>');
+            int index = indexOfIgnoreCase(buf, close == -1 ? off : close, off + len, BODY_PARAM);
+            if (index == -1) {
+                return null;
+            }
+            int start = index + BODY_PARAM.length;
+            int end = indexOf(buf, start, off + len, (byte) ' ');
+            return decode(buf, start, (end == -1 ? off + len : end) - start).toUpperCase();
+        }
+
+        /** Size of a BDAT chunk, or -1 when it is missing or malformed. */
+        public long chunkSize() {
+            return number(off + BDAT.length);
+        }
+
+        /** True for "BDAT n LAST", the final chunk of a message. */
+        public boolean isLastChunk() {
+            int trimmed = trimmedLength(buf, off, len);
+            return trimmed >= BDAT.length + LAST.length
+                    && equalsIgnoreCase(buf, off + trimmed - LAST.length, LAST.length, LAST);
+        }
+
+        /** Decimal number starting at {@code from}; -1 without digits, Long.MAX_VALUE on overflow. */
+        private long number(int from) {
+            long value = -1;
+            for (int i = from; i < off + len && buf[i] >= '0' && buf[i] <= '9'; i++) {
+                if (value > Long.MAX_VALUE / 10) {
+                    return Long.MAX_VALUE;
+                }
+                value = Math.max(value, 0) * 10 + (buf[i] - '0');
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return decode(buf, off, len);
+        }
+    }
+
+    /** A parsed IMAP command line: tag, verb and the raw argument text. */
+    public static class ImapCommand {
+        public enum Verb { CAPABILITY, LOGIN, LOGOUT, LIST, LSUB, SUBSCRIBE, CREATE, SELECT, FETCH, SEARCH, STORE, EXPUNGE, APPEND, NOOP, IDLE, UNKNOWN }
+
+        private static final Verb[] VERBS = Verb.values();
+        private static final byte[][] VERB_NAMES = new byte[VERBS.length][];
+        private static final byte[] UID = ascii("UID");
+
+        static {
+            for (int i = 0; i < VERBS.length; i++) {
+                VERB_NAMES[i] = ascii(VERBS[i].name());
+            }
+        }
+
+        private String tag;
+        private Verb verb;
+        private boolean uid;
+        private byte[] buf;
+        private int argStart;
+        private int end;
+        private int cursor;
+        private boolean quoted;
+
+        /** Parses a command line. Returns false if it does not even have a tag and a command. */
+        public boolean parse(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.end = off + len;
+            int tagEnd = indexOf(buf, off, end, (byte) ' ');
+            if (tagEnd <= off) {
+                return false;
+            }
+            tag = decode(buf, off, tagEnd - off);
+
+            int verbStart = tagEnd + 1;
+            int verbEnd = tokenEnd(verbStart);
+            if (verbEnd == verbStart) {
+                return false;
+            }
+            uid = equalsIgnoreCase(buf, verbStart, verbEnd - verbStart, UID);
+            if (uid) {
+                verbStart = verbEnd + 1;
+                verbEnd = tokenEnd(verbStart);
+            }
+            verb = lookup(verbStart, verbEnd - verbStart);
+            argStart = Math.min(verbEnd + 1, end);
+            cursor = argStart;
+            return true;
+        }
+
+        private int tokenEnd(int from) {
+            if (from >= end) {
+                return end;
+            }
+            int space = indexOf(buf, from, end, (byte) ' ');
+            return space == -1 ? end : space;
+        }
+
+        private Verb lookup(int off, int len) {
+            for (int i = 0; i < VERBS.length - 1; i++) {
+                if (equalsIgnoreCase(buf, off, len, VERB_NAMES[i])) {
+                    return VERBS[i];
+                }
+            }
+            return Verb.UNKNOWN;
+        }
+
+        public String tag() {
+            return tag;
+        }
+
+        public Verb verb() {
+            return verb;
+        }
+
+        /** True for the UID variant of a command, e.g. UID FETCH. */
+        public boolean isUid() {
+            return uid;
+        }
+
+        /** Everything after the command name. */
+        public String arguments() {
+            return decode(buf, argStart, end - argStart);
+        }
+
+        /** Next atom or quoted string from the arguments, or null when there are none left. */
+        public String nextAstring() {
+            while (cursor < end && buf[cursor] == ' ') {
+                cursor++;
+            }
+            if (cursor >= end) {
+                return null;
+            }
+            quoted = buf[cursor] == '"';
+            if (!quoted) {
+                int stop = tokenEnd(cursor);
+                String atom = decode(buf, cursor, stop - cursor);
+                cursor = stop;
+                return atom;
+            }
+            return quotedString();
+        }
+
+        /**
+         * Next token of arguments that may hold parenthesized groups, as in
+         * SEARCH: "(" and ")" come back on their own and atoms end at a
+         * parenthesis as well as at a space. Quoted strings come back
+         * unquoted with {@link #wasQuoted()} set, so a quoted "(" is not
+         * taken for a group. Null when there are no arguments left.
+         */
+        public String nextListToken() {
+            while (cursor < end && buf[cursor] == ' ') {
+                cursor++;
+            }
+            if (cursor >= end) {
+                return null;
+            }
+            byte first = buf[cursor];
+            quoted = first == '"';
+            if (quoted) {
+                return quotedString();
+            }
+            if (first == '(' || first == ')') {
+                cursor++;
+                return first == '(' ? "(" : ")";
+            }
+            int stop = cursor;
+            while (stop < end && buf[stop] != ' ' && buf[stop] != '(' && buf[stop] != ')') {
+                stop++;
+            }
+            String atom = decode(buf, cursor, stop - cursor);
+            cursor = stop;
+            return atom;
+        }
+
+        /** True if the token last returned was a quoted string. */
+        public boolean wasQuoted() {
+            return quoted;
+        }
+
+        /** Reads the quoted string starting at the cursor, undoing backslash escapes. */
+        private String quotedString() {
+            StringBuilder text = new StringBuilder();
+            int i = cursor + 1;
+            int runStart = i;
+            while (i < end && buf[i] != '"') {
+                if (buf[i] == '\\' && i + 1 < end) {
+                    text.append(decode(buf, runStart, i - runStart));
+                    i++;
+                    runStart = i;
+                }
+                i++;
+            }
+            text.append(decode(buf, runStart, i - runStart));
+            cursor = Math.min(i + 1, end);
+            return text.toString();
+        }
+    }
+
+    /**
+     * An IMAP sequence set such as "1,3:5,10:*", kept as its ranges rather
+     * than expanded into numbers, so "1:*" over a large mailbox or a wide
+     * UID range costs the same as a single number. "*" is stored as
+     * {@link #LAST} and only resolved against a mailbox by {@link UidIndex}.
+     * Reused across commands like the other parsed objects.
+     */
+    public static class MessageSet {
+        public static final long LAST = Long.MAX_VALUE;
+
+        private long[] ranges = new long[8];
+        private int count;
+
+        /** Parses a sequence set. Returns false if it is malformed. */
+        public boolean parse(String set) {
+            count = 0;
+            if (set.isEmpty()) {
+                return false;
+            }
+            int start = 0;
+            while (start <= set.length()) {
+                int comma = set.indexOf(',', start);
+                int stop = comma == -1 ? set.length() : comma;
+                int colon = set.indexOf(':', start);
+                long low;
+                long high;
+                if (colon != -1 && colon < stop) {
+                    low = number(set, start, colon);
+                    high = number(set, colon + 1, stop);
+                } else {
+                    low = number(set, start, stop);
+                    high = low;
+                }
+                if (low <= 0 || high <= 0) {
+                    return false;
+                }
+                add(Math.min(low, high), Math.max(low, high));
+                if (comma == -1) {
+                    break;
+                }
+                start = comma + 1;
+            }
+            return true;
+        }
+
+        /** A positive number, LAST for "*", or 0 when the text is not a valid number. */
+        private static long number(String set, int from, int to) {
+            if (to - from == 1 && set.charAt(from) == '*') {
+                return LAST;
+            }
+            if (from == to || to - from > 18) {
+                return 0;
+            }
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                char c = set.charAt(i);
+                if (c < '0' || c > '9') {
+                    return 0;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        private void add(long low, long high) {
+            if (count * 2 == ranges.length) {
+                ranges = java.util.Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[count * 2] = low;
+            ranges[count * 2 + 1] = high;
+            count++;
+        }
+
+        public int rangeCount() {
+            return count;
+        }
+
+        public long low(int range) {
+            return ranges[range * 2];
+        }
+
+        /** Upper bound of a range; LAST when it ends in "*". */
+        public long high(int range) {
+            return ranges[range * 2 + 1];
+        }
+    }
+
+    /**
+     * SMTP-style envelope at the start of a UDP mail packet: MAIL FROM, RCPT
+     * TO and DATA lines followed by the message itself.
+     */
+    public static class UdpEnvelope {
+        private final SmtpCommand command = new SmtpCommand();
+        private String sender;
+        private String recipient;
+        private int dataOffset;
+
+        /** Scans the envelope lines. Returns false if there is no DATA line. */
+        public boolean parse(byte[] buf, int off, int len) {
+            sender = null;
+            recipient = null;
+            dataOffset = -1;
+            int end = off + len;
+            int lineStart = off;
+            while (lineStart < end) {
+                int newline = indexOf(buf, lineStart, end, (byte) '\n');
+                int lineEnd = newline == -1 ? end : newline;
+                int lineLength = lineEnd - lineStart;
+                if (lineLength > 0 && buf[lineEnd - 1] == '\r') {
+                    lineLength--;
+                }
+                switch (command.parse(buf, lineStart, lineLength).verb()) {
+                    case MAIL:
+                        sender = command.address();
+                        break;
+                    case RCPT:
+                        recipient = command.address();
+                        break;
+                    case DATA:
+                        dataOffset = newline == -1 ? end : newline + 1;
+                        return true;
+                    default:
+                        break;
+                }
+                lineStart = lineEnd + 1;
+            }
+            return false;
+        }
+
+        public String sender() {
+            return sender;
+        }
+
+        public String recipient() {
+            return recipient;
+        }
+
+        public int dataOffset() {
+            return dataOffset;
+        }
+    }
+}
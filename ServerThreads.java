@@ -0,0 +1,45 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses how the thread-per-connection servers run their session handlers.
+ *
+ * {@code -Dserver.threads=platform} (the default) starts one OS thread per
+ * client, as before. {@code -Dserver.threads=virtual} runs each session on a
+ * virtual thread instead, so sessions blocked in readLine() or on the
+ * database unmount from their carrier thread. Virtual threads need Java 21;
+ * on older runtimes the server logs a warning and stays on platform threads.
+ */
+public class ServerThreads {
+    private static final String MODE = System.getProperty("server.threads", "platform");
+
+    private ServerThreads() {
+    }
+
+    /** Executor that runs each submitted session on its own thread of the configured kind. */
+    public static Executor sessionExecutor(String name) {
+        if (MODE.equalsIgnoreCase("virtual")) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                System.out.println(name + " sessions run on virtual threads");
+                return virtual;
+            }
+            System.err.println("Warning: virtual threads are not available on Java "
+                    + System.getProperty("java.version") + ", using platform threads for " + name);
+        }
+        System.out.println(name + " sessions run on platform threads");
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, name + "-session-" + counter.incrementAndGet()).start();
+    }
+
+    // Looked up reflectively so the project still compiles and runs on Java 17.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP protocol state for one client connection, independent of how the
+ * bytes get there. The blocking {@link SMTPServer.SessionHandler} and the
+ * selector-based {@link NioSmtpServer} both feed it one raw line at a time
+ * and write back whatever reply it produces. Commands are parsed with
+ * {@link ProtocolCodec}, and body lines go to the MessageStore as bytes.
+ *
+ * EHLO advertises PIPELINING (RFC 2920), so a client may send a whole
+ * envelope at once; the transports only flush replies when they run out of
+ * buffered input. CHUNKING (RFC 3030) lets the message arrive in BDAT chunks
+ * of a stated size instead of dot-stuffed DATA lines: while
+ * {@link #pendingChunkBytes()} is positive the transport hands over raw
+ * bytes through {@link #onChunk}. 8BITMIME bodies are stored as received.
+ *
+ * Most replies are ready immediately. The reply to the end of DATA (or the
+ * last BDAT chunk) waits for the message to be durable, so it is handed
+ * back as a future.
+ *
+ * The session itself never touches the disk, so the NIO event loops can
+ * call it directly. Body bytes are collected in blocks and handed to a
+ * {@link BodySpool}, which writes, commits and forwards them on a small pool
+ * of store threads ({@code smtp.storeThreads}). When more than
+ * {@code smtp.maxSpooledBytes} are still waiting to be written, a body line
+ * or chunk gets an unfinished future with no reply, which tells the
+ * transport to stop reading until the spool has caught up.
+ */
+public class SmtpSession {
+    private static final CompletableFuture<String> NO_REPLY = CompletableFuture.completedFuture(null);
+    // Advertised through the SIZE extension in the EHLO reply
+    static final long MAX_MESSAGE_SIZE = Long.getLong("smtp.maxMessageSize", 32L * 1024 * 1024);
+    private static final int MAX_HEADER_SIZE = Integer.getInteger("smtp.maxHeaderSize", 256 * 1024);
+    private static final int MAX_RECIPIENTS = Integer.getInteger("smtp.maxRecipients", 100);
+    private static final byte[] MESSAGE_ID = "MESSAGE-ID:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE = {'\n'};
+    private static final int SPOOL_BLOCK_SIZE = 64 * 1024;
+    private static final long MAX_SPOOLED_BYTES = Long.getLong("smtp.maxSpooledBytes", 1024 * 1024L);
+    private static final int STORE_THREADS = Integer.getInteger("smtp.storeThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService storePool = newStorePool();
+
+    private final ProtocolCodec.SmtpCommand command = new ProtocolCodec.SmtpCommand();
+
+    private String sender;
+    // Every RCPT TO of the transaction; the body is stored once for all local ones
+    private final List<String> recipients = new ArrayList<>();
+    private boolean dataMode;
+    private boolean closed;
+
+    // BDAT state. Chunk bytes are split into lines here, so chunked and DATA
+    // messages are stored the same way.
+    private boolean chunking;
+    private long chunkSize;
+    private long chunkRemaining;
+    private boolean lastChunk;
+    private String chunkError;
+    private byte[] chunkLine = new byte[256];
+    private int chunkLineLength;
+
+    // DATA state. Headers are kept in memory (bounded by MAX_HEADER_SIZE) so
+    // the Message-ID can be picked out while they arrive; the body goes
+    // straight to the MessageStore.
+    private StringBuilder headers;
+    private boolean inHeaders;
+    private String messageId;
+    private BodySpool body;
+    private long messageSize;
+    private String dataError;
+
+    public SmtpSession() {
+        this.dataMode = false;
+        this.closed = false;
+    }
+
+    private static ExecutorService newStorePool() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(STORE_THREADS, task -> {
+            Thread thread = new Thread(task, "smtp-store-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String greeting() {
+        return reply(220, SMTPServer.DOMAIN + " SMTP ready");
+    }
+
+    /** True once the client said QUIT and the connection should be closed after the last reply. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Bytes of the current BDAT chunk still to come; while positive, pass input to {@link #onChunk}. */
+    public long pendingChunkBytes() {
+        return chunkRemaining;
+    }
+
+    /** Builds a reply; with several lines, all but the last use the "code-" continuation form. */
+    private String reply(int code, String... lines) {
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            response.append(code).append(i < lines.length - 1 ? "-" : " ").append(lines[i]);
+            if (i < lines.length - 1) {
+                response.append("\r\n");
+            }
+        }
+        System.out.println("S: " + response);
+        return response.toString();
+    }
+
+    private CompletableFuture<String> replyNow(int code, String message) {
+        return CompletableFuture.completedFuture(reply(code, message));
+    }
+
+    /**
+     * Handles one line from the client (without its line terminator). The
+     * future holds the reply line, or null when the line needs no reply.
+     * The bytes are only valid for the duration of the call.
+     */
+    public CompletableFuture<String> onLine(byte[] line, int off, int len) {
+        if (dataMode) {
+            if (len == 1 && line[off] == '.') {
+                dataMode = false;
+                System.out.println("C: <" + messageSize + " bytes of message data>");
+                System.out.println("C: .");
+                return finishData();
+            }
+            if (len > 0 && line[off] == '.') {
+                off++;
+                len--;
+            }
+            appendData(line, off, len);
+            return spoolBacklog();
+        }
+
+        System.out.println("C: " + ProtocolCodec.decode(line, off, len));
+        switch (command.parse(line, off, len).verb()) {
+            case EHLO:
+                return CompletableFuture.completedFuture(
+                        reply(250, SMTPServer.DOMAIN + " Hello", "SIZE " + MAX_MESSAGE_SIZE,
+                                "8BITMIME", "PIPELINING", "CHUNKING"));
+            case HELO:
+                return replyNow(250, SMTPServer.DOMAIN + " Hello");
+            case MAIL: {
+                String address = command.address();
+                if (address == null) {
+                    return replyNow(501, "Syntax error in MAIL FROM");
+                }
+                if (command.sizeParameter() > MAX_MESSAGE_SIZE) {
+                    return replyNow(552, "Message size exceeds fixed maximum message size");
+                }
+                String bodyType = command.bodyParameter();
+                if (bodyType != null && !bodyType.equals("7BIT") && !bodyType.equals("8BITMIME")) {
+                    return replyNow(555, "BODY=" + bodyType + " not supported");
+                }
+                sender = address;
+                recipients.clear(); // MAIL starts a new transaction
+                return replyNow(250, "OK");
+            }
+            case RCPT: {
+                String address = command.address();
+                if (address == null) {
+                    return replyNow(501, "Syntax error in RCPT TO");
+                }
+                if (!recipients.contains(address)) {
+                    if (recipients.size() >= MAX_RECIPIENTS) {
+                        return replyNow(452, "Too many recipients");
+                    }
+                    recipients.add(address);
+                }
+                return replyNow(250, "OK");
+            }
+            case DATA:
+                if (sender == null || recipients.isEmpty()) {
+                    return replyNow(503, "Need MAIL FROM and RCPT TO before DATA");
+                }
+                if (chunking) {
+                    return replyNow(503, "DATA cannot follow BDAT in the same transaction");
+                }
+                startData();
+                dataMode = true;
+                return replyNow(354, "End data with <CR><LF>.<CR><LF>");
+            case BDAT: {
+                long size = command.chunkSize();
+                if (size < 0) {
+                    return replyNow(501, "Syntax error in BDAT");
+                }
+                chunkSize = size;
+                chunkRemaining = size;
+                lastChunk = command.isLastChunk();
+                if (sender == null || recipients.isEmpty()) {
+                    // The chunk still has to be read off the connection before answering
+                    chunkError = "503 Need MAIL FROM and RCPT TO before BDAT";
+                } else if (!chunking) {
+                    startData();
+                    chunking = true;
+                }
+                return chunkRemaining == 0 ? endChunk() : NO_REPLY;
+            }
+            case RSET:
+                close();
+                resetTransaction();
+                return replyNow(250, "OK");
+            case NOOP:
+                return replyNow(250, "OK");
+            case QUIT:
+                closed = true;
+                return replyNow(221, SMTPServer.DOMAIN + " closing connection");
+            default:
+                return replyNow(502, "Command not implemented");
+        }
+    }
+
+    /**
+     * Takes the next bytes of a BDAT chunk, at most {@link #pendingChunkBytes()}.
+     * The future holds the chunk's reply once it is complete, null before that.
+     */
+    public CompletableFuture<String> onChunk(byte[] data, int off, int len) {
+        chunkRemaining -= len;
+        if (chunkError == null) {
+            int end = off + len;
+            while (off < end && dataError == null) {
+                int newline = ProtocolCodec.indexOf(data, off, end, (byte) '\n');
+                int lineEnd = newline == -1 ? end : newline;
+                appendToChunkLine(data, off, lineEnd - off);
+                off = lineEnd;
+                if (newline == -1) {
+                    break;
+                }
+                off++;
+                int length = chunkLineLength;
+                if (length > 0 && chunkLine[length - 1] == '\r') {
+                    length--;
+                }
+                chunkLineLength = 0;
+                appendData(chunkLine, 0, length);
+            }
+        }
+        return chunkRemaining > 0 ? spoolBacklog() : endChunk();
+    }
+
+    private void appendToChunkLine(byte[] data, int off, int len) {
+        if (chunkLineLength + len > SMTPServer.MAX_LINE_LENGTH) {
+            rejectData("552 Line too long");
+            chunkLineLength = 0;
+            return;
+        }
+        if (chunkLineLength + len > chunkLine.length) {
+            chunkLine = Arrays.copyOf(chunkLine, Math.max(chunkLine.length * 2, chunkLineLength + len));
+        }
+        System.arraycopy(data, off, chunkLine, chunkLineLength, len);
+        chunkLineLength += len;
+    }
+
+    private CompletableFuture<String> endChunk() {
+        System.out.println("C: <" + chunkSize + " byte chunk" + (lastChunk ? ", last>" : ">"));
+        if (chunkError != null) {
+            String error = chunkError;
+            chunkError = null;
+            System.out.println("S: " + error);
+            return CompletableFuture.completedFuture(error);
+        }
+        if (dataError != null) {
+            // finishData ends the transaction, so chunks the client already pipelined get 503
+            return finishData();
+        }
+        if (!lastChunk) {
+            return replyNow(250, chunkSize + " octets received");
+        }
+        if (chunkLineLength > 0) {
+            appendData(chunkLine, 0, chunkLineLength);
+            chunkLineLength = 0;
+        }
+        chunking = false;
+        return finishData();
+    }
+
+    private void resetTransaction() {
+        sender = null;
+        recipients.clear();
+        chunking = false;
+    }
+
+    private void startData() {
+        headers = new StringBuilder();
+        inHeaders = true;
+        messageId = null;
+        body = null;
+        messageSize = 0;
+        dataError = null;
+    }
+
+    private void appendData(byte[] line, int off, int len) {
+        messageSize += len + 2;
+        if (dataError != null) {
+            return; // Already rejected, just swallow the rest until "."
+        }
+        if (messageSize > MAX_MESSAGE_SIZE) {
+            rejectData("552 Message size exceeds fixed maximum message size");
+            return;
+        }
+
+        if (inHeaders) {
+            if (len == 0) {
+                inHeaders = false;
+                return;
+            }
+            if (headers.length() + len > MAX_HEADER_SIZE) {
+                rejectData("552 Header section exceeds maximum size");
+                return;
+            }
+            String header = ProtocolCodec.decode(line, off, len);
+            if (messageId == null && ProtocolCodec.startsWithIgnoreCase(line, off, len, MESSAGE_ID)) {
+                messageId = header.substring(MESSAGE_ID.length).trim();
+            }
+            headers.append(header).append("\n");
+            return;
+        }
+
+        if (body == null) {
+            body = new BodySpool();
+        }
+        body.write(line, off, len);
+        body.write(NEWLINE, 0, 1);
+    }
+
+    /** No reply, but unfinished while the spool is too far behind, so the transport stops reading. */
+    private CompletableFuture<String> spoolBacklog() {
+        if (body == null || !body.isBacklogged()) {
+            return NO_REPLY;
+        }
+        return body.drained().handle((ignored, error) -> null);
+    }
+
+    private void rejectData(String error) {
+        dataError = error;
+        headers = null;
+        if (body != null) {
+            body.abort();
+            body = null;
+        }
+    }
+
+    /** Releases a half-received message when the connection goes away mid-DATA. */
+    public void close() {
+        if (body != null) {
+            body.abort();
+            body = null;
+        }
+        headers = null;
+        dataError = null;
+        chunkLineLength = 0;
+    }
+
+    private CompletableFuture<String> finishData() {
+        String from = sender;
+        // Local and remote recipients in one pass over the envelope
+        List<String> local = new ArrayList<>();
+        List<String> remote = new ArrayList<>();
+        for (String to : recipients) {
+            String domain = to.substring(to.indexOf('@') + 1);
+            (domain.equalsIgnoreCase(SMTPServer.DOMAIN) ? local : remote).add(to);
+        }
+        resetTransaction();
+
+        if (dataError != null) {
+            String error = dataError;
+            dataError = null;
+            System.out.println("S: " + error);
+            return CompletableFuture.completedFuture(error);
+        }
+
+        int length = headers.length();
+        String headerBlock = length > 0 && headers.charAt(length - 1) == '\n' ? headers.substring(0, length - 1) : headers.toString();
+        headers = null;
+        BodySpool spool = body;
+        body = null;
+        long bodySize = spool != null ? spool.size() : 0;
+        String id = messageId;
+        CompletableFuture<String> stored = spool != null ? spool.commit() : CompletableFuture.completedFuture(null);
+        // Forwarding and queueing for the database can block as well, so they stay on the store threads
+        return stored.thenComposeAsync(bodyPath -> deliver(from, local, remote, id, headerBlock, bodyPath, bodySize), storePool)
+                .exceptionally(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    System.err.println("Error storing message body: " + cause.getMessage());
+                    return reply(451, "Requested action aborted: local error in processing");
+                });
+    }
+
+    /** Hands a committed message to the UDP outbox and the local mailboxes. Runs on a store thread. */
+    private CompletableFuture<String> deliver(String from, List<String> local, List<String> remote, String messageId,
+                                              String headerBlock, String bodyPath, long bodySize) {
+        if (!remote.isEmpty()) {
+            // Forward via UDP, one envelope per remote recipient with the body read once. The outbox
+            // keeps each message on disk until the receiving server acknowledges it.
+            try {
+                for (String to : remote) {
+                    System.out.println("Forwarding email to external domain " + to.substring(to.indexOf('@') + 1) + " via UDP.");
+                }
+                UdpOutbox.getInstance().enqueue(from, remote, headerBlock, bodyPath);
+            } catch (IOException e) {
+                System.err.println("Error queueing message for forwarding: " + e.getMessage());
+                return replyNow(451, "Requested action aborted: local error in processing");
+            }
+            if (local.isEmpty()) {
+                // The body may be shared with another message, so the blob collector removes it
+                return replyNow(250, "Message accepted for delivery");
+            }
+        }
+
+        // Local delivery: one stored body, one mailbox row per recipient
+        String id = messageId;
+        if (id == null) {
+            // Generate a fallback message ID if none is found
+            id = UUID.randomUUID().toString() + "@" + SMTPServer.DOMAIN;
+            System.err.println("Warning: No Message-ID found. Generated a new one: " + id);
+        }
+
+        // Only answer once the group-commit batch holding this message is durable
+        CompletableFuture<Boolean> saved = bodyPath != null
+                ? EmailDatabase.getInstance().saveStreamedEmailAsync(id, from, local, headerBlock, bodyPath, bodySize)
+                : EmailDatabase.getInstance().saveEmailAsync(id, from, local, headerBlock, "");
+        return saved.thenApply(accepted -> {
+            if (accepted) {
+                System.out.println("Email from " + from + " to " + String.join(", ", local) + " saved to local database.");
+                return reply(250, "Message accepted for delivery");
+            }
+            return reply(451, "Requested action aborted: local error in processing");
+        });
+    }
+
+    /**
+     * One message body on its way into the MessageStore. The session fills
+     * a block in memory; full blocks, the commit and an abort are chained
+     * onto the store threads in order, so the writer is only ever used by
+     * one of them at a time.
+     */
+    static class BodySpool {
+        // Session side
+        private byte[] block = new byte[SPOOL_BLOCK_SIZE];
+        private int blockLength;
+        private long size;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        // Store side
+        private MessageStore.Writer writer;
+        private volatile Exception failure;
+        private final AtomicLong spooled = new AtomicLong();
+
+        void write(byte[] bytes, int off, int len) {
+            size += len;
+            if (failure != null) {
+                return; // The commit reports it
+            }
+            while (len > 0) {
+                int n = Math.min(len, block.length - blockLength);
+                System.arraycopy(bytes, off, block, blockLength, n);
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == block.length) {
+                    flush();
+                }
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        boolean isBacklogged() {
+            return spooled.get() > MAX_SPOOLED_BYTES;
+        }
+
+        /** Completes once every block handed over so far is written. */
+        CompletableFuture<Void> drained() {
+            return tail;
+        }
+
+        private void flush() {
+            if (blockLength == 0) {
+                return;
+            }
+            byte[] data = block;
+            int length = blockLength;
+            block = new byte[SPOOL_BLOCK_SIZE];
+            blockLength = 0;
+            spooled.addAndGet(length);
+            tail = tail.thenRunAsync(() -> {
+                try {
+                    if (failure == null) {
+                        if (writer == null) {
+                            writer = MessageStore.newWriter();
+                        }
+                        writer.write(data, 0, length);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    spooled.addAndGet(-length);
+                }
+            }, storePool);
+        }
+
+        /** Writes what is left and moves the body into the store; the future holds its store path. */
+        CompletableFuture<String> commit() {
+            flush();
+            return tail.thenApplyAsync(ignored -> {
+                try {
+                    if (failure == null) {
+                        return writer != null ? writer.commit() : null;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+                if (writer != null) {
+                    writer.abort();
+                }
+                throw new CompletionException(failure);
+            }, storePool);
+        }
+
+        void abort() {
+            blockLength = 0;
+            tail = tail.thenRunAsync(() -> {
+                if (writer != null) {
+                    writer.abort();
+                }
+            }, storePool);
+        }
+    }
+}
@@ -0,0 +1,808 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SQLite MailStorage: one row per message and recipient in SMTP_DB,
+ * per-user counters in MAILBOX, the SEARCH_INDEX full-text table and
+ * reference counts of stored bodies in BLOBS, all in SMTP_SERVER.db
+ * (mail.db.file). Every SQLException is passed on as an IOException.
+ */
+public class SqliteStorage implements MailStorage {
+    private static final String DB_FILE = System.getProperty("mail.db.file", "SMTP_SERVER.db");
+    private static final String DB_URL = "jdbc:sqlite:" + DB_FILE;
+    private static final int SCHEMA_VERSION = 7;
+    private static final int POOL_SIZE = Integer.getInteger("mail.db.poolSize", 8);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("mail.db.statementCacheSize", 32);
+    private static final long POOL_TIMEOUT_MS = Long.getLong("mail.db.poolTimeoutMs", 5000L);
+    private static final long VALIDATION_INTERVAL_MS = Long.getLong("mail.db.validationIntervalMs", 30000L);
+    private static final long WRITER_TIMEOUT_MS = Long.getLong("mail.db.writerTimeoutMs", 30000L);
+    private static final int INLINE_BODY_MAX = Integer.getInteger("mail.store.inlineBodyMax", 4096);
+
+    // Readers share a pool of connections and run in parallel thanks to WAL mode.
+    // All writes go through a single connection, so SQLite never sees two writers
+    // fighting over the database lock.
+    private final ConnectionPool readPool;
+    private final ConnectionPool writer;
+
+    public SqliteStorage() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            System.err.println("SQLite JDBC driver not found.");
+            e.printStackTrace();
+        }
+        writer = new ConnectionPool(DB_URL, 1, STATEMENT_CACHE_SIZE, WRITER_TIMEOUT_MS, VALIDATION_INTERVAL_MS);
+        enableWriteAheadLog();
+        readPool = new ConnectionPool(DB_URL, POOL_SIZE, STATEMENT_CACHE_SIZE, POOL_TIMEOUT_MS, VALIDATION_INTERVAL_MS);
+        createTables();
+    }
+
+    private ConnectionPool.PooledConnection connect() throws SQLException {
+        return readPool.borrow();
+    }
+
+    private ConnectionPool.PooledConnection connectWriter() throws SQLException {
+        return writer.borrow();
+    }
+
+    public ConnectionPool getReadPool() {
+        return readPool;
+    }
+
+    public ConnectionPool getWriterPool() {
+        return writer;
+    }
+
+    private void enableWriteAheadLog() {
+        // journal_mode is persistent, so this only has to succeed once per database file.
+        try (ConnectionPool.PooledConnection conn = connectWriter();
+             Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=WAL;")) {
+            if (rs.next() && !"wal".equalsIgnoreCase(rs.getString(1))) {
+                System.err.println("Warning: SQLite refused WAL mode, journal_mode is " + rs.getString(1));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error enabling WAL mode: " + e.getMessage());
+        }
+    }
+
+    private void createTables() {
+        String emailTableSql = "CREATE TABLE IF NOT EXISTS SMTP_DB ( " +
+                             " IDmail    INTEGER PRIMARY KEY AUTOINCREMENT," +
+                             " MessageID TEXT    NOT NULL UNIQUE," +
+                             " MAIL_FROM TEXT    NOT NULL, " + 
+                             " RCPT_TO   TEXT    NOT NULL, " + 
+                             " HEADERS   TEXT, " + 
+                             " BODY      TEXT, " + 
+                             " DATE      DATETIME  default current_timestamp )";
+        
+        String userTableSql = "CREATE TABLE IF NOT EXISTS USERS ( " +
+                            " IDuser    INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            " username  TEXT    NOT NULL UNIQUE," +
+                            " password  TEXT    NOT NULL )";
+
+        try (ConnectionPool.PooledConnection conn = connectWriter();
+             Statement stmt = conn.getConnection().createStatement()) {
+            stmt.execute(emailTableSql);
+            stmt.execute(userTableSql);
+        } catch (SQLException e) {
+            System.err.println("Error creating tables: " + e.getMessage());
+        }
+        migrateSchema();
+    }
+
+    /**
+     * Brings older SMTP_SERVER.db files up to the current schema. The version
+     * is tracked in SQLite's user_version, and each step runs in its own
+     * transaction so a crash never leaves a half-migrated database behind.
+     */
+    private void migrateSchema() {
+        try (ConnectionPool.PooledConnection conn = connectWriter();
+             Statement stmt = conn.getConnection().createStatement()) {
+            Connection connection = conn.getConnection();
+            int version;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA user_version;")) {
+                version = rs.next() ? rs.getInt(1) : 0;
+            }
+
+            while (version < SCHEMA_VERSION) {
+                int target = version + 1;
+                connection.setAutoCommit(false);
+                try {
+                    switch (target) {
+                        case 1:
+                            migrateToMailboxTable(stmt);
+                            break;
+                        case 2:
+                            migrateToStoredBodies(stmt);
+                            break;
+                        case 3:
+                            migrateToMessageSizes(conn, stmt);
+                            break;
+                        case 4:
+                            migrateToSearchIndex(conn, stmt);
+                            break;
+                        case 5:
+                            migrateToPerRecipientRows(stmt);
+                            break;
+                        case 6:
+                            migrateToBlobTable(conn, stmt);
+                            break;
+                        case 7:
+                            migrateToMessageFlags(stmt);
+                            break;
+                        default:
+                            throw new SQLException("No migration to schema version " + target);
+                    }
+                    stmt.executeUpdate("PRAGMA user_version = " + target + ";");
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                System.out.println("Migrated database schema to version " + target);
+                version = target;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error migrating database schema: " + e.getMessage());
+        }
+    }
+
+    // Version 1: index mail by recipient and keep per-user counters in MAILBOX,
+    // so SELECT and COUNT no longer scan the whole SMTP_DB table.
+    private void migrateToMailboxTable(Statement stmt) throws SQLException {
+        stmt.execute("CREATE INDEX IF NOT EXISTS IDX_SMTP_DB_RCPT ON SMTP_DB(RCPT_TO, IDmail);");
+        stmt.execute("CREATE TABLE IF NOT EXISTS MAILBOX ( " +
+                     " username  TEXT    PRIMARY KEY," +
+                     " MESSAGES  INTEGER NOT NULL DEFAULT 0," +
+                     " UIDNEXT   INTEGER NOT NULL DEFAULT 1 )");
+        stmt.execute("INSERT OR REPLACE INTO MAILBOX(username, MESSAGES, UIDNEXT) " +
+                     "SELECT RCPT_TO, COUNT(*), MAX(IDmail) + 1 FROM SMTP_DB GROUP BY RCPT_TO;");
+    }
+
+    // Version 2: bodies received over SMTP are streamed to the MessageStore and
+    // referenced by path. Older rows keep their body in the BODY column.
+    private void migrateToStoredBodies(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE SMTP_DB ADD COLUMN BODY_PATH TEXT;");
+    }
+
+    // Version 3: exact byte sizes of the header block and body, computed at ingest.
+    private void migrateToMessageSizes(ConnectionPool.PooledConnection conn, Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE SMTP_DB ADD COLUMN HEADER_SIZE INTEGER;");
+        stmt.execute("ALTER TABLE SMTP_DB ADD COLUMN BODY_SIZE INTEGER;");
+        stmt.execute("UPDATE SMTP_DB SET HEADER_SIZE = IFNULL(length(CAST(HEADERS AS BLOB)), 0), " +
+                     "BODY_SIZE = IFNULL(length(CAST(BODY AS BLOB)), 0);");
+
+        List<Long> ids = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT IDmail, BODY_PATH FROM SMTP_DB WHERE BODY_PATH IS NOT NULL;")) {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+                paths.add(rs.getString(2));
+            }
+        }
+        PreparedStatement update = conn.prepare("UPDATE SMTP_DB SET BODY_SIZE = ? WHERE IDmail = ?;");
+        for (int i = 0; i < ids.size(); i++) {
+            update.setLong(1, MessageStore.size(paths.get(i)));
+            update.setLong(2, ids.get(i));
+            update.executeUpdate();
+        }
+    }
+
+    // Version 4: full-text index for IMAP SEARCH, filled from the existing mail.
+    private void migrateToSearchIndex(ConnectionPool.PooledConnection conn, Statement stmt) throws SQLException {
+        stmt.execute("CREATE VIRTUAL TABLE SEARCH_INDEX USING fts3(FROM_ADDR, TO_ADDR, SUBJECT, BODY);");
+        String sql = "SELECT IDmail, MAIL_FROM, RCPT_TO, HEADERS, BODY, BODY_PATH FROM SMTP_DB;";
+        try (Statement rows = conn.getConnection().createStatement();
+             ResultSet rs = rows.executeQuery(sql)) {
+            while (rs.next()) {
+                indexMessage(conn, rs.getLong("IDmail"), rs.getString("MAIL_FROM"), rs.getString("RCPT_TO"),
+                        rs.getString("HEADERS"), rs.getString("BODY"), rs.getString("BODY_PATH"));
+            }
+        }
+    }
+
+    // Version 5: a message sent to several local users gets one row per recipient,
+    // all sharing one stored body, so Message-ID is only unique per mailbox. SQLite
+    // cannot drop a constraint, so the table is rebuilt. IDmail values (the IMAP
+    // UIDs and SEARCH_INDEX docids) and the AUTOINCREMENT counter are kept.
+    private void migrateToPerRecipientRows(Statement stmt) throws SQLException {
+        String columns = "IDmail, MessageID, MAIL_FROM, RCPT_TO, HEADERS, BODY, DATE, BODY_PATH, HEADER_SIZE, BODY_SIZE";
+        stmt.execute("CREATE TABLE SMTP_DB_V5 ( " +
+                     " IDmail      INTEGER PRIMARY KEY AUTOINCREMENT," +
+                     " MessageID   TEXT    NOT NULL," +
+                     " MAIL_FROM   TEXT    NOT NULL, " +
+                     " RCPT_TO     TEXT    NOT NULL, " +
+                     " HEADERS     TEXT, " +
+                     " BODY        TEXT, " +
+                     " DATE        DATETIME  default current_timestamp," +
+                     " BODY_PATH   TEXT," +
+                     " HEADER_SIZE INTEGER," +
+                     " BODY_SIZE   INTEGER," +
+                     " UNIQUE(MessageID, RCPT_TO) )");
+        stmt.execute("INSERT INTO SMTP_DB_V5(" + columns + ") SELECT " + columns + " FROM SMTP_DB;");
+        long sequence = 0;
+        try (ResultSet rs = stmt.executeQuery("SELECT seq FROM sqlite_sequence WHERE name = 'SMTP_DB';")) {
+            if (rs.next()) {
+                sequence = rs.getLong(1);
+            }
+        }
+        stmt.execute("DROP TABLE SMTP_DB;");
+        stmt.execute("ALTER TABLE SMTP_DB_V5 RENAME TO SMTP_DB;");
+        stmt.execute("UPDATE sqlite_sequence SET seq = MAX(seq, " + sequence + ") WHERE name = 'SMTP_DB';");
+        stmt.execute("CREATE INDEX IDX_SMTP_DB_RCPT ON SMTP_DB(RCPT_TO, IDmail);");
+    }
+
+    // Version 6: count the rows referencing each stored body in BLOBS, so a body
+    // shared by several messages is only garbage-collected once none is left.
+    // Bodies stored before this version keep their old file names.
+    private void migrateToBlobTable(ConnectionPool.PooledConnection conn, Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS BLOBS ( " +
+                     " PATH        TEXT    PRIMARY KEY," +
+                     " REFS        INTEGER NOT NULL DEFAULT 0," +
+                     " SIZE        INTEGER," +
+                     " STORED_SIZE INTEGER )");
+        stmt.execute("INSERT INTO BLOBS(PATH, REFS, SIZE) SELECT BODY_PATH, COUNT(*), MAX(BODY_SIZE) FROM SMTP_DB " +
+                     "WHERE BODY_PATH IS NOT NULL GROUP BY BODY_PATH;");
+        List<String> paths = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT PATH FROM BLOBS;")) {
+            while (rs.next()) {
+                paths.add(rs.getString(1));
+            }
+        }
+        PreparedStatement update = conn.prepare("UPDATE BLOBS SET STORED_SIZE = ? WHERE PATH = ?;");
+        for (String path : paths) {
+            update.setLong(1, MessageStore.storedSize(path));
+            update.setString(2, path);
+            update.executeUpdate();
+        }
+    }
+
+    // Version 7: IMAP flags of each message, as MailStorage.FLAG_* bits.
+    private void migrateToMessageFlags(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE SMTP_DB ADD COLUMN FLAGS INTEGER NOT NULL DEFAULT 0;");
+    }
+
+    public void deliver(List<IngestQueue.Pending> batch) throws IOException {
+        String sql = "INSERT INTO SMTP_DB(MessageID, MAIL_FROM, RCPT_TO, HEADERS, BODY, BODY_PATH, HEADER_SIZE, BODY_SIZE) VALUES(?,?,?,?,?,?,?,?);";
+        String mailboxSql = "INSERT OR IGNORE INTO MAILBOX(username) VALUES(?);";
+        // Runs right after the SMTP_DB insert, so last_insert_rowid() is the new IDmail.
+        String counterSql = "UPDATE MAILBOX SET MESSAGES = MESSAGES + 1, UIDNEXT = last_insert_rowid() + 1 WHERE username = ?;";
+        String blobSql = "INSERT OR IGNORE INTO BLOBS(PATH, REFS, SIZE, STORED_SIZE) VALUES(?,0,?,?);";
+        String refsSql = "UPDATE BLOBS SET REFS = REFS + ? WHERE PATH = ?;";
+
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                for (IngestQueue.Pending email : batch) {
+                    long headerSize = utf8Length(email.headers);
+                    long bodySize = email.bodySize >= 0 ? email.bodySize : utf8Length(email.body);
+                    String body = email.body;
+                    String bodyPath = email.bodyPath;
+                    try {
+                        if (bodyPath == null && bodySize > INLINE_BODY_MAX) {
+                            // Large bodies go to the blob store too, where identical ones are kept once
+                            bodyPath = MessageStore.store(body.getBytes(StandardCharsets.UTF_8));
+                            body = null;
+                        }
+                        if (bodyPath != null) {
+                            // The rows must never point at a body that is not on disk yet.
+                            MessageStore.sync(bodyPath);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Error syncing stored body: " + e.getMessage());
+                        email.failed = true;
+                        continue;
+                    }
+
+                    // One mailbox row per recipient, all referencing the same body
+                    int references = 0;
+                    for (int i = 0; i < email.recipients.size(); i++) {
+                        String to = email.recipients.get(i);
+                        try {
+                            PreparedStatement mailbox = conn.prepare(mailboxSql);
+                            mailbox.setString(1, to);
+                            mailbox.executeUpdate();
+
+                            PreparedStatement pstmt = conn.prepare(sql);
+                            pstmt.setString(1, email.messageId);
+                            pstmt.setString(2, email.from);
+                            pstmt.setString(3, to);
+                            pstmt.setString(4, email.headers);
+                            pstmt.setString(5, body);
+                            pstmt.setString(6, bodyPath);
+                            // Sizes are computed once here so FETCH never has to load a message to report them
+                            pstmt.setLong(7, headerSize);
+                            pstmt.setLong(8, bodySize);
+                            pstmt.executeUpdate();
+                            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                                email.mailIds[i] = keys.next() ? keys.getLong(1) : 0;
+                            }
+                            references++;
+
+                            indexMessage(conn, email.mailIds[i], email.from, to, email.headers, email.body, bodyPath);
+
+                            PreparedStatement counter = conn.prepare(counterSql);
+                            counter.setString(1, to);
+                            counter.executeUpdate();
+                        } catch (SQLException e) {
+                            // SQLite only rolls back the failed statement, the rest of the batch survives.
+                            if (isConstraintViolation(e)) {
+                                System.err.println("Attempted to save a duplicate email. Message-ID: " + email.messageId
+                                        + ", recipient: " + to);
+                            } else {
+                                System.err.println("Error saving email for " + to + ": " + e.getMessage());
+                                email.failed = true;
+                            }
+                            if (email.mailIds[i] == 0) {
+                                continue;
+                            }
+                            // The row went in but the rest of the delivery did not: the message
+                            // counts as failed, and the row stays so the body is still referenced
+                            email.failed = true;
+                        }
+                    }
+                    if (bodyPath != null && references > 0) {
+                        PreparedStatement blob = conn.prepare(blobSql);
+                        blob.setString(1, bodyPath);
+                        blob.setLong(2, bodySize);
+                        blob.setLong(3, MessageStore.storedSize(bodyPath));
+                        blob.executeUpdate();
+
+                        PreparedStatement refs = conn.prepare(refsSql);
+                        refs.setInt(1, references);
+                        refs.setString(2, bodyPath);
+                        refs.executeUpdate();
+                    }
+                    // A body nobody references is left to the blob collector: the same
+                    // content may already belong to another message.
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                for (IngestQueue.Pending email : batch) {
+                    Arrays.fill(email.mailIds, 0);
+                }
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /** Adds a message to SEARCH_INDEX; very large bodies are only indexed up to mail.search.maxIndexedBody. */
+    private void indexMessage(ConnectionPool.PooledConnection conn, long mailId, String from, String to, String headers,
+                              String body, String bodyPath) throws SQLException {
+        String sql = "INSERT INTO SEARCH_INDEX(docid, FROM_ADDR, TO_ADDR, SUBJECT, BODY) VALUES(?,?,?,?,?);";
+        String text = body;
+        if (text == null && bodyPath != null) {
+            try {
+                text = MessageStore.readBodyPrefix(bodyPath, MailSearch.MAX_INDEXED_BODY);
+            } catch (IOException e) {
+                System.err.println("Error reading stored body for indexing: " + e.getMessage());
+            }
+        } else if (text != null && text.length() > MailSearch.MAX_INDEXED_BODY) {
+            text = text.substring(0, MailSearch.MAX_INDEXED_BODY);
+        }
+
+        PreparedStatement pstmt = conn.prepare(sql);
+        pstmt.setLong(1, mailId);
+        pstmt.setString(2, MailSearch.indexed(MailSearch.Field.FROM, from, to, headers, text));
+        pstmt.setString(3, MailSearch.indexed(MailSearch.Field.TO, from, to, headers, text));
+        pstmt.setString(4, MailSearch.indexed(MailSearch.Field.SUBJECT, from, to, headers, text));
+        pstmt.setString(5, text);
+        pstmt.executeUpdate();
+    }
+
+    private static long utf8Length(String text) {
+        return text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static boolean isConstraintViolation(SQLException e) {
+        // The bundled driver reports error code 0 and puts the SQLite code in the message.
+        return e.getErrorCode() == 19 || (e.getMessage() != null && e.getMessage().contains("SQLITE_CONSTRAINT"));
+    }
+
+    public boolean createUser(String username, String credential) throws IOException {
+        String sql = "INSERT INTO USERS(username, password) VALUES(?,?)";
+
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, username);
+            pstmt.setString(2, credential);
+            pstmt.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            if (isConstraintViolation(e)) {
+                return false;
+            }
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public String credential(String username) throws IOException {
+        String sql = "SELECT password FROM USERS WHERE username = ?;";
+        
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            
+            pstmt.setString(1, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("password");
+                }
+            }
+            return null; // User not found
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public void setCredential(String username, String credential) throws IOException {
+        String sql = "UPDATE USERS SET password = ? WHERE username = ?";
+
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            pstmt.setString(1, credential);
+            pstmt.setString(2, username);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public long uidNext(String username) throws IOException {
+        String sql = "SELECT UIDNEXT FROM MAILBOX WHERE username = ?;";
+
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+
+            pstmt.setString(1, username);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong("UIDNEXT");
+                }
+            }
+            return 1;
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public Map<String, Long> uidNexts() throws IOException {
+        Map<String, Long> uidNexts = new HashMap<>();
+        String sql = "SELECT username, UIDNEXT FROM MAILBOX;";
+
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    uidNexts.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return uidNexts;
+    }
+
+    public void list(String username, long fromUid, MailboxCache.Mailbox into) throws IOException {
+        String sql = "SELECT IDmail, HEADER_SIZE, BODY_SIZE, FLAGS FROM SMTP_DB WHERE RCPT_TO = ? AND IDmail >= ? ORDER BY IDmail ASC;";
+
+        // Read before the rows, so it never runs ahead of what was loaded and a later refresh misses nothing
+        into.setUidNext(uidNext(username));
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+            
+            pstmt.setString(1, username);
+            pstmt.setLong(2, fromUid);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    into.append(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getInt(4));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A single range query over IDX_SMTP_DB_RCPT. Only the columns that
+     * were asked for are read.
+     */
+    public void fetch(String username, long firstUid, long lastUid, boolean withHeaders, boolean withBody,
+                      MessageVisitor visitor) throws IOException {
+        String sql = "SELECT IDmail, HEADER_SIZE, BODY_SIZE" +
+                     (withHeaders ? ", HEADERS" : "") +
+                     (withBody ? ", BODY, BODY_PATH" : "") +
+                     " FROM SMTP_DB WHERE RCPT_TO = ? AND IDmail BETWEEN ? AND ? ORDER BY IDmail ASC;";
+
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+
+            pstmt.setString(1, username);
+            pstmt.setLong(2, firstUid);
+            pstmt.setLong(3, lastUid);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    String body = withBody ? rs.getString("BODY") : null;
+                    visitor.accept(new StoredMessage(rs.getLong("IDmail"),
+                            withHeaders ? rs.getString("HEADERS") : null,
+                            body == null ? null : body.getBytes(StandardCharsets.UTF_8),
+                            withBody ? rs.getString("BODY_PATH") : null,
+                            rs.getLong("HEADER_SIZE"), rs.getLong("BODY_SIZE")));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public UidIndex search(String username, MailSearch.Criteria criteria) throws IOException {
+        UidIndex matches = new UidIndex();
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT IDmail FROM SMTP_DB WHERE RCPT_TO = ? AND (" + predicate(criteria, parameters)
+                + ") ORDER BY IDmail ASC;";
+
+        // Every combination of keys is a statement of its own, so it stays out of
+        // the statement cache instead of evicting the ones FETCH and SELECT reuse
+        try (ConnectionPool.PooledConnection conn = connect();
+             PreparedStatement pstmt = conn.getConnection().prepareStatement(sql)) {
+            pstmt.setString(1, username);
+            int index = 2;
+            for (Object parameter : parameters) {
+                pstmt.setObject(index++, parameter);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    matches.add(rs.getLong(1));
+                }
+            }
+            return matches;
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Compiles search criteria into an SQL predicate over SMTP_DB, adding
+     * its parameters in order. Text keys look words up in SEARCH_INDEX and
+     * dates compare DATE, which holds the delivery time in UTC.
+     */
+    private static String predicate(MailSearch.Criteria criteria, List<Object> parameters) {
+        switch (criteria.kind()) {
+            case ALL:
+                return "1";
+            case NONE:
+                return "0";
+            case AND:
+            case OR: {
+                StringBuilder sql = new StringBuilder("(");
+                for (MailSearch.Criteria child : criteria.children()) {
+                    if (sql.length() > 1) {
+                        sql.append(criteria.kind() == MailSearch.Criteria.Kind.AND ? " AND " : " OR ");
+                    }
+                    sql.append('(').append(predicate(child, parameters)).append(')');
+                }
+                return sql.append(')').toString();
+            }
+            case NOT:
+                return "NOT (" + predicate(criteria.children().get(0), parameters) + ")";
+            case TEXT:
+                return text(criteria, parameters);
+            case SINCE:
+                parameters.add(criteria.date().toString());
+                return "DATE >= ?";
+            case BEFORE:
+                parameters.add(criteria.date().toString());
+                return "DATE < ?";
+            case LARGER:
+                parameters.add(criteria.value());
+                return "(HEADER_SIZE + 4 + BODY_SIZE) > ?";
+            case SMALLER:
+                parameters.add(criteria.value());
+                return "(HEADER_SIZE + 4 + BODY_SIZE) < ?";
+            case FLAG_SET:
+                return "(FLAGS & " + criteria.value() + ") != 0";
+            case FLAG_CLEAR:
+                return "(FLAGS & " + criteria.value() + ") = 0";
+            case UID_RANGES: {
+                long[] ranges = criteria.ranges();
+                StringBuilder sql = new StringBuilder("(");
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (i > 0) {
+                        sql.append(" OR ");
+                    }
+                    sql.append("IDmail BETWEEN ? AND ?");
+                    parameters.add(ranges[i]);
+                    parameters.add(ranges[i + 1]);
+                }
+                return sql.append(")").toString();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown search criteria " + criteria.kind());
+        }
+    }
+
+    /** Word/prefix lookup in SEARCH_INDEX, or a substring scan of its text when the value has no words. */
+    private static String text(MailSearch.Criteria criteria, List<Object> parameters) {
+        String column = null;
+        String scanned = "(IFNULL(FROM_ADDR, '') || ' ' || IFNULL(TO_ADDR, '') || ' ' || IFNULL(SUBJECT, '') || ' ' || IFNULL(BODY, ''))";
+        if (criteria.field() != MailSearch.Field.TEXT) {
+            column = criteria.field() == MailSearch.Field.FROM ? "FROM_ADDR"
+                    : criteria.field() == MailSearch.Field.TO ? "TO_ADDR" : criteria.field().name();
+            scanned = "IFNULL(" + column + ", '')";
+        }
+        String value = criteria.text();
+        String match = MailSearch.matchQuery(column, value);
+        if (match == null) {
+            if (value.isEmpty()) {
+                return "1";
+            }
+            parameters.add("%" + value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+            return "IDmail IN (SELECT docid FROM SEARCH_INDEX WHERE " + scanned + " LIKE ? ESCAPE '\\')";
+        }
+        parameters.add(match);
+        return "IDmail IN (SELECT docid FROM SEARCH_INDEX WHERE SEARCH_INDEX MATCH ?)";
+    }
+
+    public Map<String, String> getEmail(long mailId) throws IOException {
+        String sql = "SELECT HEADERS, BODY, BODY_PATH FROM SMTP_DB WHERE IDmail = ?;";
+
+        try (ConnectionPool.PooledConnection conn = connect()) {
+            PreparedStatement pstmt = conn.prepare(sql);
+
+            pstmt.setLong(1, mailId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Map<String, String> email = new HashMap<>();
+                email.put("headers", rs.getString("HEADERS"));
+                String body = rs.getString("BODY");
+                String bodyPath = rs.getString("BODY_PATH");
+                email.put("body", body == null && bodyPath != null ? MessageStore.readBody(bodyPath) : body);
+                return email;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public int storeFlags(String username, long uid, int add, int remove) throws IOException {
+        String updateSql = "UPDATE SMTP_DB SET FLAGS = (FLAGS | ?) & ~? WHERE IDmail = ? AND RCPT_TO = ?;";
+        String selectSql = "SELECT FLAGS FROM SMTP_DB WHERE IDmail = ?;";
+
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            PreparedStatement update = conn.prepare(updateSql);
+            update.setInt(1, add);
+            update.setInt(2, remove);
+            update.setLong(3, uid);
+            update.setString(4, username);
+            if (update.executeUpdate() == 0) {
+                return -1;
+            }
+            PreparedStatement select = conn.prepare(selectSql);
+            select.setLong(1, uid);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the rows, their SEARCH_INDEX documents and their references
+     * to stored bodies in one transaction. The bodies themselves are left
+     * to the blob garbage collector.
+     */
+    public UidIndex expunge(String username) throws IOException {
+        String selectSql = "SELECT IDmail, BODY_PATH FROM SMTP_DB WHERE RCPT_TO = ? AND (FLAGS & " + FLAG_DELETED + ") != 0 ORDER BY IDmail ASC;";
+        String deleteSql = "DELETE FROM SMTP_DB WHERE IDmail = ?;";
+        String indexSql = "DELETE FROM SEARCH_INDEX WHERE docid = ?;";
+        String refsSql = "UPDATE BLOBS SET REFS = REFS - 1 WHERE PATH = ?;";
+        String counterSql = "UPDATE MAILBOX SET MESSAGES = MESSAGES - ? WHERE username = ?;";
+
+        UidIndex expunged = new UidIndex();
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            Connection connection = conn.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                List<String> paths = new ArrayList<>();
+                PreparedStatement select = conn.prepare(selectSql);
+                select.setString(1, username);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        expunged.add(rs.getLong(1));
+                        paths.add(rs.getString(2));
+                    }
+                }
+                for (int i = 0; i < expunged.size(); i++) {
+                    PreparedStatement delete = conn.prepare(deleteSql);
+                    delete.setLong(1, expunged.uidAt(i));
+                    delete.executeUpdate();
+
+                    PreparedStatement index = conn.prepare(indexSql);
+                    index.setLong(1, expunged.uidAt(i));
+                    index.executeUpdate();
+
+                    if (paths.get(i) != null) {
+                        PreparedStatement refs = conn.prepare(refsSql);
+                        refs.setString(1, paths.get(i));
+                        refs.executeUpdate();
+                    }
+                }
+                // UIDNEXT stays: UIDs are never reused
+                PreparedStatement counter = conn.prepare(counterSql);
+                counter.setInt(1, expunged.size());
+                counter.setString(2, username);
+                counter.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return expunged;
+    }
+
+    public Set<String> referencedBlobs() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        try (ConnectionPool.PooledConnection conn = connect();
+             Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT PATH FROM BLOBS WHERE REFS > 0;")) {
+            while (rs.next()) {
+                referenced.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return referenced;
+    }
+
+    // Goes through the writer so it cannot interleave with a batch adding a reference
+    public boolean releaseBlob(String path) throws IOException {
+        try (ConnectionPool.PooledConnection conn = connectWriter()) {
+            PreparedStatement delete = conn.prepare("DELETE FROM BLOBS WHERE PATH = ? AND REFS <= 0;");
+            delete.setString(1, path);
+            delete.executeUpdate();
+            PreparedStatement check = conn.prepare("SELECT REFS FROM BLOBS WHERE PATH = ?;");
+            check.setString(1, path);
+            try (ResultSet rs = check.executeQuery()) {
+                return !rs.next();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Any commit, from this process or another, touches the WAL or the database file
+    public long changeStamp() {
+        File db = new File(DB_FILE);
+        File wal = new File(DB_FILE + "-wal");
+        return 31 * (31 * (31 * db.lastModified() + db.length()) + wal.lastModified()) + wal.length();
+    }
+
+    public String stats() {
+        return String.format("sqlite[file=%s readers=%s writer=%s]", DB_FILE, readPool.stats(), writer.stats());
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message as FETCH serves it: the header block, a blank line, and the
+ * body. Bodies in the MessageStore are never loaded into memory; they are
+ * sent from the file to the socket when a channel is available.
+ *
+ * Sizes are exact byte counts recorded at ingest, so RFC822.SIZE and
+ * literal lengths can be answered without touching the body. A message
+ * loaded for metadata only carries no headers or body at all.
+ *
+ * Headers and inline bodies are held as buffers, which may be slices of a
+ * MessageCache entry. Direct (off-heap) buffers are written to the channel
+ * as they are, heap buffers go through the output stream.
+ */
+public class StoredMessage {
+    private static final byte[] SEPARATOR = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final long id;
+    private final ByteBuffer headers;
+    private final ByteBuffer inlineBody;
+    private final String bodyPath;
+    private final long headerSize;
+    private final long bodySize;
+
+    public StoredMessage(long id, String headers, byte[] inlineBody, String bodyPath, long headerSize, long bodySize) {
+        this(id, headers == null ? null : ByteBuffer.wrap(headers.getBytes(StandardCharsets.UTF_8)),
+                inlineBody == null ? null : ByteBuffer.wrap(inlineBody), bodyPath, headerSize, bodySize);
+    }
+
+    public StoredMessage(long id, ByteBuffer headers, ByteBuffer inlineBody, String bodyPath, long headerSize, long bodySize) {
+        this.id = id;
+        this.headers = headers;
+        this.inlineBody = inlineBody;
+        this.bodyPath = bodyPath;
+        this.headerSize = headers != null ? headers.remaining() : headerSize;
+        this.bodySize = inlineBody != null ? inlineBody.remaining() : bodySize;
+    }
+
+    /** A message known only by its sizes, enough for UID, FLAGS and RFC822.SIZE. */
+    public static StoredMessage metadata(long id, long headerSize, long bodySize) {
+        return new StoredMessage(id, (ByteBuffer) null, null, null, headerSize, bodySize);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long headerSize() {
+        return headerSize;
+    }
+
+    public long bodySize() {
+        return bodySize;
+    }
+
+    /** Size of the whole message as sent for BODY[] / RFC822. */
+    public long size() {
+        return headerSize() + SEPARATOR.length + bodySize();
+    }
+
+    /** Header block as loaded, or null for a metadata-only message. */
+    ByteBuffer headers() {
+        return headers == null ? null : headers.duplicate();
+    }
+
+    /** Inline body as loaded, or null when it lives in the MessageStore or was not loaded. */
+    ByteBuffer inlineBody() {
+        return inlineBody == null ? null : inlineBody.duplicate();
+    }
+
+    String bodyPath() {
+        return bodyPath;
+    }
+
+    public void writeHeaders(OutputStream out, WritableByteChannel channel) throws IOException {
+        if (headers != null) {
+            write(headers, out, channel);
+        }
+    }
+
+    /**
+     * Writes the body. {@code out} is flushed before anything goes to
+     * {@code channel}, which bypasses the stream; pass a null channel to
+     * always go through the stream.
+     */
+    public void writeBody(OutputStream out, WritableByteChannel channel) throws IOException {
+        if (inlineBody != null) {
+            write(inlineBody, out, channel);
+        } else if (bodyPath != null) {
+            if (channel != null) {
+                out.flush();
+                MessageStore.transferBody(bodyPath, channel);
+            } else {
+                MessageStore.copyBody(bodyPath, out);
+            }
+        }
+    }
+
+    public void writeMessage(OutputStream out, WritableByteChannel channel) throws IOException {
+        writeHeaders(out, channel);
+        out.write(SEPARATOR);
+        writeBody(out, channel);
+    }
+
+    private static void write(ByteBuffer source, OutputStream out, WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = source.duplicate();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else if (channel != null) {
+            out.flush();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+}
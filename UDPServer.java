@@ -1,83 +1,348 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Receives mail forwarded by other servers as UDP broadcasts, on udp.port
+ * (345 by default).
+ *
+ * Receiver threads read datagrams from a DatagramChannel straight into
+ * pooled direct buffers and hand them to worker threads through a bounded
+ * queue; workers drain the queue in batches. With udp.receivers above 1,
+ * each receiver binds its own channel with SO_REUSEPORT and the kernel
+ * spreads datagrams over them.
+ *
+ * When the queue is full, udp.overflow decides: {@code drop} (the default)
+ * discards the new datagram and counts it, {@code block} stalls the
+ * receiver, which leaves the kernel socket buffer to absorb or drop the
+ * excess. Memory stays bounded either way: a buffer exists for every queue
+ * slot, every datagram a worker batch can hold and every receiver,
+ * allocated on first use and reused after.
+ *
+ * Messages arrive split into fragments, small ones possibly bundled into
+ * one datagram (see {@link UdpFragments}); workers reassemble them and
+ * drop replayed broadcasts before parsing anything. Once a message for
+ * the local domain (udp.localDomain) is stored, its sender gets an ACK;
+ * a replay of it is acknowledged again. With udp.debug, every datagram
+ * handled is logged.
+ */
 public class UDPServer {
-    private static final int UDP_PORT = 345;
-    private static final String LOCAL_DOMAIN = "martinez.com";
-    private static final int THREAD_POOL_SIZE = 10;
+    private static final int UDP_PORT = Integer.getInteger("udp.port", 345);
+    private static final String LOCAL_DOMAIN = System.getProperty("udp.localDomain", "martinez.com");
+    private static final int RECEIVERS = Integer.getInteger("udp.receivers", 1);
+    private static final int WORKERS = Integer.getInteger("udp.workers", 10);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("udp.queueCapacity", 512);
+    private static final int WORKER_BATCH = Integer.getInteger("udp.workerBatch", 32);
+    // Largest possible UDP payload, so a datagram is never cut short
+    private static final int BUFFER_SIZE = Integer.getInteger("udp.bufferSize", 65507);
+    private static final int SOCKET_RECEIVE_BUFFER = Integer.getInteger("udp.socketReceiveBuffer", 4 * 1024 * 1024);
+    private static final long REASSEMBLY_BYTES = Long.getLong("udp.reassemblyBytes", 64L * 1024 * 1024);
+    private static final long REASSEMBLY_TIMEOUT_MS = Long.getLong("udp.reassemblyTimeoutMs", 30_000L);
+    private static final int MAX_MESSAGE_SIZE = Integer.getInteger("udp.maxMessageSize", 32 * 1024 * 1024);
+    private static final int DEDUP_WINDOW = Integer.getInteger("udp.dedupWindow", 4096);
+    private static final boolean BLOCK_WHEN_FULL = "block".equalsIgnoreCase(System.getProperty("udp.overflow", "drop"));
+    // Logs every datagram a worker handles; far too chatty for a busy broadcast segment
+    private static final boolean DEBUG = Boolean.getBoolean("udp.debug");
+
+    private static final BufferPool pool = new BufferPool(QUEUE_CAPACITY + WORKERS * WORKER_BATCH + RECEIVERS, BUFFER_SIZE);
+    private static final BlockingQueue<Datagram> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final UdpFragments.Reassembler reassembler =
+            new UdpFragments.Reassembler(REASSEMBLY_BYTES, MAX_MESSAGE_SIZE, REASSEMBLY_TIMEOUT_MS, DEDUP_WINDOW);
+
+    // Metrics
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong processed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong truncated = new AtomicLong();
+    private static final AtomicLong receivedBytes = new AtomicLong();
+    private static final AtomicLong batches = new AtomicLong();
+    private static final AtomicLong acks = new AtomicLong();
 
     public static void main(String[] args) {
         listen();
     }
 
+    /** A received datagram, in a pooled buffer that goes back once it was handled. */
+    private static class Datagram {
+        final ByteBuffer buffer;
+        final SocketAddress source;
+        // Where acknowledgements go out
+        final DatagramChannel channel;
+
+        Datagram(ByteBuffer buffer, SocketAddress source, DatagramChannel channel) {
+            this.buffer = buffer;
+            this.source = source;
+            this.channel = channel;
+        }
+    }
+
+    /** Direct receive buffers, allocated on first use up to a fixed number and then recycled. */
+    private static class BufferPool {
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger allocated = new AtomicInteger();
+        private final int maxBuffers;
+        private final int bufferSize;
+
+        BufferPool(int maxBuffers, int bufferSize) {
+            this.maxBuffers = maxBuffers;
+            this.bufferSize = bufferSize;
+        }
+
+        /** A cleared buffer; the pool is sized so one is always available. */
+        ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                if (allocated.incrementAndGet() > maxBuffers) {
+                    System.err.println("Warning: UDP buffer pool exceeded " + maxBuffers + " buffers");
+                }
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            free.offer(buffer);
+        }
+
+        int allocated() {
+            return allocated.get();
+        }
+    }
+
     public static void listen() {
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        try (DatagramSocket socket = new DatagramSocket(UDP_PORT, InetAddress.getByName("0.0.0.0"))) {
-            socket.setBroadcast(true);
-            System.out.println("UDP Server listening on port " + UDP_PORT);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats()), "udp-stats"));
+        for (int i = 1; i <= WORKERS; i++) {
+            Thread worker = new Thread(UDPServer::work, "udp-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
 
-            while (true) {
-                byte[] buffer = new byte[1500]; // Max UDP packet size
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                executor.submit(new PacketHandler(packet));
+        List<DatagramChannel> channels = new ArrayList<>();
+        try {
+            channels.add(openChannel(RECEIVERS > 1));
+            boolean reusePort = channels.get(0).supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (RECEIVERS > 1 && !reusePort) {
+                System.err.println("Warning: SO_REUSEPORT is not supported, " + RECEIVERS + " receivers share one socket");
+            }
+            for (int i = 1; i < RECEIVERS; i++) {
+                channels.add(reusePort ? openChannel(true) : channels.get(0));
             }
-        } catch (SocketException e) {
+        } catch (IOException e) {
             System.err.println("UDP Socket error: " + e.getMessage());
+            return;
+        }
+        System.out.println("UDP Server listening on port " + UDP_PORT + " (" + RECEIVERS + " receivers, "
+                + WORKERS + " workers, queue " + QUEUE_CAPACITY + ", overflow " + (BLOCK_WHEN_FULL ? "block" : "drop") + ")");
+
+        List<Thread> receivers = new ArrayList<>();
+        for (int i = 0; i < RECEIVERS; i++) {
+            DatagramChannel channel = channels.get(i);
+            Thread receiver = new Thread(() -> receive(channel), "udp-receiver-" + (i + 1));
+            receivers.add(receiver);
+            receiver.start();
+        }
+        for (Thread receiver : receivers) {
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static DatagramChannel openChannel(boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress("0.0.0.0", UDP_PORT));
+        return channel;
+    }
+
+    /** Receiver loop: one datagram per pooled buffer, straight into the queue. */
+    private static void receive(DatagramChannel channel) {
+        try {
+            while (true) {
+                ByteBuffer buffer = pool.acquire();
+                SocketAddress source = channel.receive(buffer);
+                received.incrementAndGet();
+                if (!buffer.hasRemaining()) {
+                    // The channel silently discards whatever did not fit
+                    truncated.incrementAndGet();
+                }
+                buffer.flip();
+                receivedBytes.addAndGet(buffer.remaining());
+                Datagram datagram = new Datagram(buffer, source, channel);
+                if (BLOCK_WHEN_FULL) {
+                    queue.put(datagram);
+                } else if (!queue.offer(datagram)) {
+                    dropped.incrementAndGet();
+                    pool.release(buffer);
+                }
+            }
         } catch (IOException e) {
             System.err.println("UDP IO error: " + e.getMessage());
-        } finally {
-            executor.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private static class PacketHandler implements Runnable {
-        private final DatagramPacket packet;
-
-        public PacketHandler(DatagramPacket packet) {
-            this.packet = packet;
+    /** Worker loop: takes whatever is queued, up to udp.workerBatch datagrams at a time. */
+    private static void work() {
+        List<Datagram> batch = new ArrayList<>(WORKER_BATCH);
+        byte[] data = new byte[BUFFER_SIZE];
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, WORKER_BATCH - 1);
+            batches.incrementAndGet();
+            for (Datagram datagram : batch) {
+                int length = datagram.buffer.remaining();
+                datagram.buffer.get(data, 0, length);
+                pool.release(datagram.buffer);
+                if (DEBUG) {
+                    System.out.println("UDP Packet Received by thread " + Thread.currentThread().getName() + ": "
+                            + length + " bytes from " + datagram.source);
+                }
+                try {
+                    handleDatagram(data, length, datagram);
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling UDP packet: " + e.getMessage());
+                }
+                processed.incrementAndGet();
+            }
+            batch.clear();
         }
+    }
 
-        @Override
-        public void run() {
-            String message = new String(packet.getData(), 0, packet.getLength());
-            System.out.println("UDP Packet Received by thread " + Thread.currentThread().getName() + ":");
-            System.out.println(message);
-            handlePacket(message);
+    /**
+     * Reassembles fragments and hands each new, complete message to
+     * handlePacket; acknowledges the message once it is stored.
+     */
+    private static void handleDatagram(byte[] data, int length, Datagram datagram) {
+        if (UdpFragments.isBundle(data, length)) {
+            // Several small fragments sent together
+            if (!UdpFragments.unbundle(data, length,
+                    (bundle, offset, fragmentLength) -> handleFragment(bundle, offset, fragmentLength, datagram))) {
+                System.err.println("Truncated UDP bundle from " + datagram.source);
+            }
+            return;
+        }
+        if (!UdpFragments.isFragment(data, 0, length)) {
+            // Unframed message from an older sender, which expects no ACK
+            if (reassembler.acceptLegacy(data, length)) {
+                handlePacket(data, 0, length);
+            } else if (DEBUG) {
+                System.out.println("Ignoring replayed UDP packet");
+            }
+            return;
         }
+        handleFragment(data, 0, length, datagram);
     }
 
-    private static void handlePacket(String message) {
-        String recipient = extractField(message, "RCPT TO:");
-        if (recipient == null || !recipient.endsWith("@" + LOCAL_DOMAIN)) {
-            System.out.println("Ignoring packet: Not for local domain " + LOCAL_DOMAIN);
+    private static void handleFragment(byte[] data, int offset, int length, Datagram datagram) {
+        long transferId = UdpFragments.transferId(data, offset);
+        byte[] message = reassembler.accept(data, offset, length);
+        if (message == null) {
+            if (reassembler.isAcknowledged(transferId)) {
+                // The sender retransmits because our ACK got lost
+                acknowledge(datagram, transferId);
+            }
             return;
         }
+        CompletableFuture<Boolean> stored = handlePacket(message, 0, message.length);
+        if (stored != null) {
+            stored.thenAccept(saved -> {
+                if (saved) {
+                    reassembler.acknowledged(transferId);
+                    acknowledge(datagram, transferId);
+                } else {
+                    reassembler.forget(transferId);
+                }
+            });
+        }
+    }
 
-        System.out.println("Packet is for local domain. Processing...");
-        String sender = extractField(message, "MAIL FROM:");
+    private static void acknowledge(Datagram datagram, long transferId) {
+        try {
+            datagram.channel.send(ByteBuffer.wrap(UdpFragments.ack(transferId)), datagram.source);
+            acks.incrementAndGet();
+        } catch (IOException e) {
+            // The sender retransmits and gets another chance
+            System.err.println("Error sending UDP ACK to " + datagram.source + ": " + e.getMessage());
+        }
+    }
 
-        // --- Start of new, more robust parsing ---
-        String normalizedMessage = message.replace("\r\n", "\n");
-        String[] lines = normalizedMessage.split("\n");
+    public static long getReceivedCount() { return received.get(); }
+    public static long getProcessedCount() { return processed.get(); }
+    public static long getDroppedCount() { return dropped.get(); }
+    public static long getTruncatedCount() { return truncated.get(); }
+    public static long getReceivedBytes() { return receivedBytes.get(); }
+    public static long getAckCount() { return acks.get(); }
+    public static int getQueueDepth() { return queue.size(); }
+    public static int getBuffersAllocated() { return pool.allocated(); }
 
-        boolean inDataSection = false;
-        StringBuilder dataContentBuilder = new StringBuilder();
+    public static String stats() {
+        long batchCount = batches.get();
+        return String.format("udp[received=%d processed=%d dropped=%d truncated=%d bytes=%dKB queued=%d avgBatch=%.1f buffers=%d acks=%d]",
+                getReceivedCount(), getProcessedCount(), getDroppedCount(), getTruncatedCount(),
+                getReceivedBytes() / 1024, getQueueDepth(),
+                batchCount == 0 ? 0.0 : getProcessedCount() / (double) batchCount, getBuffersAllocated(), getAckCount())
+                + " " + reassembler.stats();
+    }
 
-        for (String line : lines) {
-            if (inDataSection) {
+    /**
+     * Stores a message meant for the local domain. Returns a future that
+     * completes with true once it is stored, or null if the message is not
+     * for this server or cannot be parsed.
+     */
+    private static CompletableFuture<Boolean> handlePacket(byte[] data, int offset, int length) {
+        // Only the envelope lines are looked at until we know the packet is ours
+        ProtocolCodec.UdpEnvelope envelope = new ProtocolCodec.UdpEnvelope();
+        boolean hasData = envelope.parse(data, offset, length);
+        String recipient = envelope.recipient();
+        if (recipient == null || !recipient.endsWith("@" + LOCAL_DOMAIN)) {
+            if (DEBUG) {
+                System.out.println("Ignoring packet: Not for local domain " + LOCAL_DOMAIN);
+            }
+            return null;
+        }
+
+        if (DEBUG) {
+            System.out.println("Packet is for local domain. Processing...");
+        }
+        String sender = envelope.sender();
+
+        StringBuilder dataContentBuilder = new StringBuilder();
+        if (hasData) {
+            int dataStart = envelope.dataOffset();
+            String normalizedData = ProtocolCodec.decode(data, dataStart, offset + length - dataStart).replace("\r\n", "\n");
+            for (String line : normalizedData.split("\n")) {
                 // The SMTP data section ends with a line containing only a period.
                 if (line.equals(".")) {
-                    break; 
+                    break;
                 }
                 dataContentBuilder.append(line).append("\n");
-            } else if (line.toUpperCase().equals("DATA")) {
-                inDataSection = true;
             }
         }
 
@@ -102,10 +367,17 @@ public class UDPServer {
                 messageId = java.util.UUID.randomUUID().toString() + "@" + LOCAL_DOMAIN;
             }
             
-            EmailDatabase.getInstance().saveEmail(messageId, sender, recipient, headers, body);
-            System.out.println("Email from " + sender + " to " + recipient + " saved via UDP.");
+            // Nobody waits for an answer on UDP, so let the packet thread go while the batch commits.
+            CompletableFuture<Boolean> stored = EmailDatabase.getInstance().saveEmailAsync(messageId, sender, recipient, headers, body);
+            stored.thenAccept(saved -> {
+                if (saved) {
+                    System.out.println("Email from " + sender + " to " + recipient + " saved via UDP.");
+                }
+            });
+            return stored;
         } else {
             System.out.println("Could not parse email content correctly from UDP packet. Discarding.");
+            return null;
         }
     }
 
@@ -119,22 +391,4 @@ public class UDPServer {
         }
         return null;
     }
-
-    private static String extractField(String message, String field) {
-        int fieldIndex = message.toUpperCase().indexOf(field.toUpperCase());
-        if (fieldIndex == -1) {
-            return null;
-        }
-        int lineEndIndex = message.indexOf('\n', fieldIndex);
-        if (lineEndIndex == -1) {
-            lineEndIndex = message.length();
-        }
-        String line = message.substring(fieldIndex, lineEndIndex);
-        int start = line.indexOf('<');
-        int end = line.indexOf('>');
-        if (start != -1 && end != -1 && end > start) {
-            return line.substring(start + 1, end).trim();
-        }
-        return null;
-    }
-}
+}
\ No newline at end of file
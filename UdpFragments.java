@@ -0,0 +1,349 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Framing for mail forwarded over UDP in more than one datagram.
+ *
+ * The sender gives every forwarded message a random 64-bit transfer ID and
+ * cuts it into fragments that fit udp.maxDatagram bytes. Each fragment is
+ * sent as
+ *
+ *   "UMF1" | long transferId | int sequence | int count | int totalLength | int offset | payload
+ *
+ * The receiver puts fragments back together in any order. Partial messages
+ * are bounded in number of bytes (udp.reassemblyBytes) and dropped when
+ * they stay incomplete for udp.reassemblyTimeoutMs. The IDs of recently
+ * completed transfers are remembered, so a replayed broadcast is dropped
+ * at its first fragment, before it gets anywhere near the database.
+ * Unframed datagrams from older senders are still accepted; they are
+ * deduplicated by a hash of their content.
+ *
+ * Fragments that are much smaller than a datagram, such as the single
+ * fragment of a short message, may be sent together as a bundle:
+ *
+ *   "UMB1" | (unsigned short length | fragment)...
+ *
+ * A receiver that stored a message answers its sender with
+ *
+ *   "UMA1" | long transferId
+ *
+ * and answers again to every replayed fragment, in case the first ACK was
+ * lost (see {@link UdpOutbox}).
+ */
+public class UdpFragments {
+    private static final byte[] MAGIC = "UMF1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACK_MAGIC = "UMA1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUNDLE_MAGIC = "UMB1".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = MAGIC.length + Long.BYTES + 4 * Integer.BYTES;
+    static final int ACK_SIZE = ACK_MAGIC.length + Long.BYTES;
+    static final int MAX_DATAGRAM = Integer.getInteger("udp.maxDatagram", 1400);
+
+    /** Receives the fragments of a bundle one at a time, in the order they were packed. */
+    public interface FragmentSink {
+        void fragment(byte[] data, int offset, int length);
+    }
+
+    private UdpFragments() {
+    }
+
+    public static long newTransferId() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /** Cuts a message into framed datagrams of at most udp.maxDatagram bytes. */
+    public static List<byte[]> split(long transferId, byte[] message) {
+        int chunk = MAX_DATAGRAM - HEADER_SIZE;
+        int count = Math.max(1, (message.length + chunk - 1) / chunk);
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int sequence = 0; sequence < count; sequence++) {
+            int offset = sequence * chunk;
+            int length = Math.min(chunk, message.length - offset);
+            ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + length);
+            fragment.put(MAGIC).putLong(transferId).putInt(sequence).putInt(count)
+                    .putInt(message.length).putInt(offset).put(message, offset, length);
+            fragments.add(fragment.array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Packs fragments into as few datagrams of at most udp.maxDatagram
+     * bytes as possible, keeping their order. A fragment that does not
+     * share a datagram with another one is sent as it is.
+     */
+    public static List<byte[]> coalesce(List<byte[]> fragments) {
+        List<byte[]> datagrams = new ArrayList<>();
+        ByteBuffer bundle = ByteBuffer.allocate(MAX_DATAGRAM);
+        List<byte[]> pending = new ArrayList<>();
+        for (byte[] fragment : fragments) {
+            if (!pending.isEmpty() && bundle.remaining() < 2 + fragment.length) {
+                flush(pending, bundle, datagrams);
+            }
+            if (BUNDLE_MAGIC.length + 2 + fragment.length > MAX_DATAGRAM) {
+                datagrams.add(fragment);
+                continue;
+            }
+            if (pending.isEmpty()) {
+                bundle.put(BUNDLE_MAGIC);
+            }
+            bundle.putShort((short) fragment.length).put(fragment);
+            pending.add(fragment);
+        }
+        flush(pending, bundle, datagrams);
+        return datagrams;
+    }
+
+    private static void flush(List<byte[]> pending, ByteBuffer bundle, List<byte[]> datagrams) {
+        if (pending.size() == 1) {
+            datagrams.add(pending.get(0));
+        } else if (pending.size() > 1) {
+            byte[] datagram = new byte[bundle.position()];
+            System.arraycopy(bundle.array(), 0, datagram, 0, datagram.length);
+            datagrams.add(datagram);
+        }
+        pending.clear();
+        bundle.clear();
+    }
+
+    /** True if a datagram is a fragment rather than an unframed legacy message. */
+    public static boolean isFragment(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && startsWith(data, offset, MAGIC);
+    }
+
+    public static boolean isBundle(byte[] data, int length) {
+        return length >= BUNDLE_MAGIC.length && startsWith(data, 0, BUNDLE_MAGIC);
+    }
+
+    /**
+     * Hands every fragment of a bundle to the sink, skipping entries that
+     * are not fragments. Returns false if the bundle was cut short; the
+     * fragments before the cut have been handed on by then.
+     */
+    public static boolean unbundle(byte[] data, int length, FragmentSink sink) {
+        int offset = BUNDLE_MAGIC.length;
+        while (offset + 2 <= length) {
+            int fragmentLength = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+            offset += 2;
+            if (fragmentLength > length - offset) {
+                return false;
+            }
+            if (isFragment(data, offset, fragmentLength)) {
+                sink.fragment(data, offset, fragmentLength);
+            }
+            offset += fragmentLength;
+        }
+        return offset == length;
+    }
+
+    /** Transfer ID of a fragment. */
+    public static long transferId(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset + MAGIC.length, Long.BYTES).getLong();
+    }
+
+    public static byte[] ack(long transferId) {
+        return ByteBuffer.allocate(ACK_SIZE).put(ACK_MAGIC).putLong(transferId).array();
+    }
+
+    public static boolean isAck(byte[] data, int length) {
+        return length == ACK_SIZE && startsWith(data, 0, ACK_MAGIC);
+    }
+
+    /** Transfer ID an ACK acknowledges. */
+    public static long ackedTransfer(byte[] ack) {
+        return ByteBuffer.wrap(ack, ACK_MAGIC.length, Long.BYTES).getLong();
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 64-bit FNV-1a of a datagram, to recognise replayed legacy messages. */
+    static long hash(byte[] data, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Puts fragments back together. Safe to call from several workers; all
+     * state is guarded by this.
+     */
+    public static class Reassembler {
+
+        private static class Partial {
+            final byte[] data;
+            final boolean[] received;
+            final long firstSeen;
+            int missing;
+
+            Partial(int totalLength, int count, long now) {
+                this.data = new byte[totalLength];
+                this.received = new boolean[count];
+                this.firstSeen = now;
+                this.missing = count;
+            }
+        }
+
+        private final long maxBytes;
+        private final int maxMessageBytes;
+        private final long timeoutMillis;
+        private final int recentCapacity;
+        // In order of first fragment, so expired entries are always at the head
+        private final LinkedHashMap<Long, Partial> partials = new LinkedHashMap<>();
+        private long partialBytes;
+        // Recently completed transfers (and legacy message hashes), oldest first, mapped to whether they were acknowledged
+        private final LinkedHashMap<Long, Boolean> recent = new LinkedHashMap<Long, Boolean>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > recentCapacity;
+            }
+        };
+
+        // Metrics
+        private final AtomicLong fragments = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        public Reassembler(long maxBytes, int maxMessageBytes, long timeoutMillis, int recentCapacity) {
+            this.maxBytes = maxBytes;
+            this.maxMessageBytes = maxMessageBytes;
+            this.timeoutMillis = timeoutMillis;
+            this.recentCapacity = recentCapacity;
+        }
+
+        /**
+         * Adds a fragment. Returns the whole message once its last missing
+         * fragment arrived, null otherwise: still incomplete, a duplicate,
+         * malformed, or over the memory limits.
+         */
+        public byte[] accept(byte[] data, int start, int length) {
+            fragments.incrementAndGet();
+            ByteBuffer header = ByteBuffer.wrap(data, start + MAGIC.length, HEADER_SIZE - MAGIC.length);
+            long transferId = header.getLong();
+            int sequence = header.getInt();
+            int count = header.getInt();
+            int totalLength = header.getInt();
+            int offset = header.getInt();
+            int payload = length - HEADER_SIZE;
+            if (count <= 0 || sequence < 0 || sequence >= count || totalLength < 0 || totalLength > maxMessageBytes
+                    || offset < 0 || payload > totalLength - offset || count > totalLength + 1) {
+                rejected.incrementAndGet();
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                expire(now);
+                if (recent.containsKey(transferId)) {
+                    duplicates.incrementAndGet();
+                    return null;
+                }
+                if (count == 1) {
+                    recent.put(transferId, Boolean.FALSE);
+                    completed.incrementAndGet();
+                    byte[] message = new byte[payload];
+                    System.arraycopy(data, start + HEADER_SIZE, message, 0, payload);
+                    return message;
+                }
+
+                Partial partial = partials.get(transferId);
+                if (partial == null) {
+                    if (partialBytes + totalLength > maxBytes) {
+                        rejected.incrementAndGet();
+                        return null;
+                    }
+                    partial = new Partial(totalLength, count, now);
+                    partials.put(transferId, partial);
+                    partialBytes += totalLength;
+                } else if (partial.received.length != count || partial.data.length != totalLength) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                if (partial.received[sequence]) {
+                    duplicates.incrementAndGet();
+                    return null;
+                }
+                System.arraycopy(data, start + HEADER_SIZE, partial.data, offset, payload);
+                partial.received[sequence] = true;
+                if (--partial.missing > 0) {
+                    return null;
+                }
+                partials.remove(transferId);
+                partialBytes -= totalLength;
+                recent.put(transferId, Boolean.FALSE);
+                completed.incrementAndGet();
+                return partial.data;
+            }
+        }
+
+        /** Remembers an unframed datagram; returns false if the same one was seen recently. */
+        public synchronized boolean acceptLegacy(byte[] data, int length) {
+            long hash = hash(data, length);
+            if (recent.containsKey(hash)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            recent.put(hash, Boolean.FALSE);
+            return true;
+        }
+
+        /** Records that a completed transfer was stored and acknowledged, so replays of it are acknowledged too. */
+        public synchronized void acknowledged(long transferId) {
+            recent.replace(transferId, Boolean.TRUE);
+        }
+
+        public synchronized boolean isAcknowledged(long transferId) {
+            return Boolean.TRUE.equals(recent.get(transferId));
+        }
+
+        /** Forgets a completed transfer that could not be stored, so a retransmission is handled afresh. */
+        public synchronized void forget(long transferId) {
+            recent.remove(transferId);
+        }
+
+        /** Drops partial messages whose first fragment is older than the timeout. Caller holds the lock. */
+        private void expire(long now) {
+            Iterator<Partial> it = partials.values().iterator();
+            while (it.hasNext()) {
+                Partial partial = it.next();
+                if (now - partial.firstSeen < timeoutMillis) {
+                    break;
+                }
+                partialBytes -= partial.data.length;
+                it.remove();
+                expired.incrementAndGet();
+            }
+        }
+
+        public synchronized int getPartialCount() { return partials.size(); }
+        public synchronized long getPartialBytes() { return partialBytes; }
+        public long getFragmentCount() { return fragments.get(); }
+        public long getCompletedCount() { return completed.get(); }
+        public long getDuplicateCount() { return duplicates.get(); }
+        public long getExpiredCount() { return expired.get(); }
+        public long getRejectedCount() { return rejected.get(); }
+
+        public String stats() {
+            return String.format("reassembly[fragments=%d completed=%d partial=%d partialBytes=%dKB duplicates=%d expired=%d rejected=%d]",
+                    getFragmentCount(), getCompletedCount(), getPartialCount(), getPartialBytes() / 1024,
+                    getDuplicateCount(), getExpiredCount(), getRejectedCount());
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound queue for mail forwarded to other servers over UDP.
+ *
+ * A forwarded message is written to its own file in udp.outbox.dir and
+ * synced before SMTP answers 250, so accepted mail survives a restart; the
+ * file is named after the message's transfer ID. A sender thread keeps up
+ * to udp.window messages in flight and sends their fragments (see
+ * {@link UdpFragments}) to udp.forwardAddress, by default the broadcast
+ * address. The UDPServer that owns the recipient's domain answers with an
+ * ACK once the message is stored; the file is deleted then and the next
+ * queued message takes the slot. Messages not acknowledged are sent again
+ * with exponential backoff, from udp.retryInitialMs up to udp.retryMaxMs,
+ * and set aside as {@code .failed} after udp.maxAttempts sends.
+ *
+ * Everything that is due when the sender thread wakes up goes out in one
+ * pass, so under a burst several messages share a pass; with udp.coalesce
+ * (on by default) their small fragments also share datagrams. Messages
+ * are written to the outbox as UTF-8 bytes once and sent from those.
+ *
+ * Retransmissions reuse the transfer ID, so the receiver fills in missing
+ * fragments of a partly received message and acknowledges a message it
+ * already stored again without storing it twice.
+ */
+public class UdpOutbox {
+    private static final String DIR = System.getProperty("udp.outbox.dir", "udp_outbox");
+    private static final String FORWARD_ADDRESS = System.getProperty("udp.forwardAddress", "255.255.255.255");
+    private static final int FORWARD_PORT = Integer.getInteger("udp.forwardPort", SMTPServer.UDP_PORT);
+    private static final int WINDOW = Integer.getInteger("udp.window", 8);
+    private static final long RETRY_INITIAL_MS = Long.getLong("udp.retryInitialMs", 500L);
+    private static final long RETRY_MAX_MS = Long.getLong("udp.retryMaxMs", 30_000L);
+    private static final int MAX_ATTEMPTS = Integer.getInteger("udp.maxAttempts", 12);
+    private static final boolean COALESCE = Boolean.parseBoolean(System.getProperty("udp.coalesce", "true"));
+    private static final byte[] HEADER_SEPARATOR = "\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final String QUEUED = ".msg";
+    private static final String FAILED = ".failed";
+
+    /** A message that was sent at least once and waits for its ACK. */
+    private static class Flight {
+        final long transferId;
+        final Path file;
+        final List<byte[]> fragments;
+        int attempts;
+        long nextSend;
+
+        Flight(long transferId, Path file, List<byte[]> fragments) {
+            this.transferId = transferId;
+            this.file = file;
+            this.fragments = fragments;
+        }
+    }
+
+    private final Path dir;
+    private final InetSocketAddress target;
+    private final DatagramSocket socket;
+    // Both guarded by this
+    private final ArrayDeque<Path> waiting = new ArrayDeque<>();
+    private final Map<Long, Flight> inFlight = new HashMap<>();
+
+    // Metrics
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong fragmentsSent = new AtomicLong();
+    private final AtomicLong datagramsSent = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong staleAcks = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private static class Holder {
+        private static final UdpOutbox INSTANCE = new UdpOutbox();
+    }
+
+    public static UdpOutbox getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /** Starts the outbox at server start if messages from an earlier run are still queued. */
+    public static void resumePending() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(DIR), "*" + QUEUED)) {
+            if (files.iterator().hasNext()) {
+                getInstance();
+            }
+        } catch (IOException e) {
+            // No outbox yet: nothing was ever queued
+        }
+    }
+
+    private UdpOutbox() {
+        this.dir = Paths.get(DIR);
+        this.target = new InetSocketAddress(FORWARD_ADDRESS, FORWARD_PORT);
+        try {
+            Files.createDirectories(dir);
+            this.socket = new DatagramSocket();
+            socket.setBroadcast(true);
+            recover();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open UDP outbox " + dir + ": " + e.getMessage(), e);
+        }
+
+        System.out.println("UDP outbox " + dir + " forwarding to " + target + " (window " + WINDOW + ", "
+                + waiting.size() + " messages queued)");
+        Thread sender = new Thread(this::sendLoop, "udp-outbox-sender");
+        sender.setDaemon(true);
+        sender.start();
+        Thread acks = new Thread(this::ackLoop, "udp-outbox-acks");
+        acks.setDaemon(true);
+        acks.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats()), "udp-outbox-stats"));
+    }
+
+    /** Picks up messages queued before a restart, oldest first, and clears half-written files. */
+    private void recover() throws IOException {
+        List<Path> queued = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(QUEUED)) {
+                    queued.add(file);
+                } else if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : queued) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        queued.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+        waiting.addAll(queued);
+    }
+
+    /**
+     * Queues a message for each remote recipient, with its body read from
+     * the MessageStore once. Returns once every copy is on disk; sending
+     * happens in the background.
+     */
+    public void enqueue(String from, List<String> recipients, String headers, String bodyPath) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(headers.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer body = ByteBuffer.wrap(bodyPath != null ? MessageStore.readBodyBytes(bodyPath) : new byte[0]);
+        List<Path> queued = new ArrayList<>(recipients.size());
+        for (String to : recipients) {
+            byte[] envelope = ("MAIL FROM:<" + from + ">\n" +
+                               "RCPT TO:<" + to + ">\n" +
+                               "DATA\n").getBytes(StandardCharsets.UTF_8);
+            queued.add(write(new ByteBuffer[] {ByteBuffer.wrap(envelope), header.duplicate(),
+                    ByteBuffer.wrap(HEADER_SEPARATOR), body.duplicate()}));
+        }
+        enqueued.addAndGet(queued.size());
+        synchronized (this) {
+            waiting.addAll(queued);
+            notifyAll();
+        }
+    }
+
+    /** Writes and syncs one message file under a new transfer ID. */
+    private Path write(ByteBuffer[] message) throws IOException {
+        long transferId = UdpFragments.newTransferId();
+        Path file = dir.resolve(String.format("%016x", transferId) + QUEUED);
+        Path temp = dir.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = 0;
+            for (ByteBuffer part : message) {
+                remaining += part.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(message);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /** Sender loop: fills the window from the queue and sends whatever is due in one pass. */
+    private void sendLoop() {
+        List<Path> next = new ArrayList<>();
+        List<Flight> due = new ArrayList<>();
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (true) {
+                        long now = System.currentTimeMillis();
+                        while (inFlight.size() + next.size() < WINDOW && !waiting.isEmpty()) {
+                            next.add(waiting.poll());
+                        }
+                        if (!next.isEmpty()) {
+                            // Loaded outside the lock; the new messages are due on the next round
+                            break;
+                        }
+                        long wakeUp = Long.MAX_VALUE;
+                        for (Flight flight : new ArrayList<>(inFlight.values())) {
+                            if (flight.nextSend > now) {
+                                wakeUp = Math.min(wakeUp, flight.nextSend);
+                            } else if (flight.attempts >= MAX_ATTEMPTS) {
+                                inFlight.remove(flight.transferId);
+                                giveUp(flight);
+                            } else {
+                                flight.attempts++;
+                                flight.nextSend = now + backoff(flight.attempts);
+                                due.add(flight);
+                            }
+                        }
+                        if (!due.isEmpty()) {
+                            break;
+                        }
+                        if (wakeUp == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, wakeUp - now));
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (Path file : next) {
+                load(file);
+            }
+            next.clear();
+            if (!due.isEmpty()) {
+                send(due);
+                due.clear();
+            }
+        }
+    }
+
+    /** Reads a queued message into the window; it is sent on the next pass. */
+    private void load(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            long transferId = Long.parseUnsignedLong(name.substring(0, name.length() - QUEUED.length()), 16);
+            Flight flight = new Flight(transferId, file, UdpFragments.split(transferId, Files.readAllBytes(file)));
+            synchronized (this) {
+                inFlight.put(transferId, flight);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Cannot read queued UDP message " + file + ": " + e.getMessage());
+            setAside(file);
+        }
+    }
+
+    private void send(List<Flight> due) {
+        List<byte[]> fragments = new ArrayList<>();
+        for (Flight flight : due) {
+            if (flight.attempts == 1) {
+                sent.incrementAndGet();
+            } else {
+                retransmits.incrementAndGet();
+            }
+            fragments.addAll(flight.fragments);
+        }
+        passes.incrementAndGet();
+        fragmentsSent.addAndGet(fragments.size());
+        List<byte[]> datagrams = COALESCE ? UdpFragments.coalesce(fragments) : fragments;
+        for (byte[] datagram : datagrams) {
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, target));
+                datagramsSent.incrementAndGet();
+            } catch (IOException e) {
+                // Treated like a lost datagram: the retry timer sends it again
+                System.err.println("Error sending UDP datagram to " + target + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Delay before the next send, doubled per attempt, capped, with up to 25% jitter so retries spread out. */
+    private static long backoff(int attempts) {
+        long delay = RETRY_INITIAL_MS << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > RETRY_MAX_MS) {
+            delay = RETRY_MAX_MS;
+        }
+        return delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+    }
+
+    private void giveUp(Flight flight) {
+        failed.incrementAndGet();
+        System.err.println("Giving up on UDP message " + flight.file.getFileName() + " after " + flight.attempts
+                + " attempts");
+        setAside(flight.file);
+    }
+
+    /** Keeps an undeliverable message for inspection instead of retrying it forever. */
+    private void setAside(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            Files.move(file, file.resolveSibling(name.substring(0, name.length() - QUEUED.length()) + FAILED),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Cannot set aside " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** ACK loop: completes the message each acknowledgement names. */
+    private void ackLoop() {
+        byte[] buffer = new byte[UdpFragments.ACK_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                System.err.println("UDP outbox receive error: " + e.getMessage());
+                return;
+            }
+            if (!UdpFragments.isAck(buffer, packet.getLength())) {
+                continue;
+            }
+            long transferId = UdpFragments.ackedTransfer(buffer);
+            Flight flight;
+            synchronized (this) {
+                flight = inFlight.remove(transferId);
+                if (flight != null) {
+                    notifyAll();
+                }
+            }
+            if (flight == null) {
+                // Acknowledgement of a retransmission, or of a message already given up on
+                staleAcks.incrementAndGet();
+                continue;
+            }
+            acked.incrementAndGet();
+            try {
+                Files.deleteIfExists(flight.file);
+            } catch (IOException e) {
+                System.err.println("Cannot remove delivered UDP message " + flight.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized int getQueueDepth() { return waiting.size() + inFlight.size(); }
+    public synchronized int getInFlightCount() { return inFlight.size(); }
+    public long getEnqueuedCount() { return enqueued.get(); }
+    public long getSentCount() { return sent.get(); }
+    public long getRetransmitCount() { return retransmits.get(); }
+    public long getFragmentsSent() { return fragmentsSent.get(); }
+    public long getDatagramsSent() { return datagramsSent.get(); }
+    public long getAckedCount() { return acked.get(); }
+    public long getStaleAckCount() { return staleAcks.get(); }
+    public long getFailedCount() { return failed.get(); }
+
+    public String stats() {
+        long passCount = passes.get();
+        return String.format("udp-outbox[queued=%d inFlight=%d enqueued=%d sent=%d retransmits=%d fragments=%d datagrams=%d avgPass=%.1f acked=%d staleAcks=%d failed=%d]",
+                getQueueDepth(), getInFlightCount(), getEnqueuedCount(), getSentCount(), getRetransmitCount(),
+                getFragmentsSent(), getDatagramsSent(),
+                passCount == 0 ? 0.0 : (getSentCount() + getRetransmitCount()) / (double) passCount,
+                getAckedCount(), getStaleAckCount(), getFailedCount());
+    }
+}
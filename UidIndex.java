@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * UIDs of the selected mailbox, sorted ascending in a primitive array.
+ *
+ * The message with sequence number n sits at index n - 1, and because
+ * IDmail doubles as the UID and only ever grows, a UID maps back to its
+ * sequence number by binary search. Message sets are resolved range by
+ * range into runs of indexes, so neither side ever expands a set into
+ * individual numbers.
+ */
+public class UidIndex {
+    private long[] uids;
+    private int size;
+    // True while the array is shared with the MailboxCache; copied before the first add
+    private boolean shared;
+
+    public UidIndex() {
+        this(new long[16], 0);
+    }
+
+    /** Takes ownership of the first {@code size} entries of {@code uids}, which must be sorted. */
+    public UidIndex(long[] uids, int size) {
+        this.uids = uids;
+        this.size = size;
+    }
+
+    /** A view of the first {@code size} entries of an array someone else keeps appending to; {@link #add} copies it first. */
+    public static UidIndex view(long[] uids, int size) {
+        UidIndex index = new UidIndex(uids, size);
+        index.shared = true;
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** UID of the message at a zero-based index (sequence number - 1). */
+    public long uidAt(int index) {
+        return uids[index];
+    }
+
+    /** Zero-based index of a UID, or -1 if the mailbox does not hold it. */
+    public int indexOf(long uid) {
+        int index = Arrays.binarySearch(uids, 0, size, uid);
+        return index >= 0 ? index : -1;
+    }
+
+    /** Appends a UID, which must be larger than every UID already held. */
+    public void add(long uid) {
+        if (size == uids.length || shared) {
+            uids = Arrays.copyOf(uids, Math.max(16, size * 2));
+            shared = false;
+        }
+        uids[size++] = uid;
+    }
+
+    /** Index of the first UID that is >= uid (size when there is none). */
+    private int lowerBound(long uid) {
+        int index = Arrays.binarySearch(uids, 0, size, uid);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Resolves a message set against this mailbox. Returns the matching
+     * messages as sorted, non-overlapping {first, last} index runs, in
+     * O(ranges log ranges) regardless of how many messages they cover.
+     * Numbers that name no message are dropped, as RFC 3501 asks for UIDs.
+     */
+    public List<int[]> resolve(ProtocolCodec.MessageSet set, boolean uid) {
+        List<int[]> runs = new ArrayList<>();
+        if (size == 0) {
+            return runs;
+        }
+        long last = uid ? uids[size - 1] : size;
+        for (int i = 0; i < set.rangeCount(); i++) {
+            long low = set.low(i) == ProtocolCodec.MessageSet.LAST ? last : set.low(i);
+            long high = set.high(i) == ProtocolCodec.MessageSet.LAST ? last : set.high(i);
+            if (low > high) {
+                long swap = low;
+                low = high;
+                high = swap;
+            }
+            int first;
+            int end;
+            if (uid) {
+                first = lowerBound(low);
+                end = high >= uids[size - 1] ? size : lowerBound(high + 1);
+            } else {
+                first = (int) Math.min(low - 1, size);
+                end = (int) Math.min(high, size);
+            }
+            if (first < end) {
+                runs.add(new int[] {first, end - 1});
+            }
+        }
+
+        // Sort and merge, so every message is answered once and in mailbox order
+        runs.sort((a, b) -> Integer.compare(a[0], b[0]));
+        List<int[]> merged = new ArrayList<>(runs.size());
+        for (int[] run : runs) {
+            int[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && run[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], run[1]);
+            } else {
+                merged.add(run);
+            }
+        }
+        return merged;
+    }
+}
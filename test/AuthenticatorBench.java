@@ -0,0 +1,128 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Login throughput with the verified-login cache on (auth.cacheTtlMs as
+ * configured, 60 s by default) and off (0): bench.threads clients each log
+ * in as their own user over and over for bench.seconds, the way mail
+ * clients do on every reconnect. The cache settings are read once per
+ * process, so each mode runs in a JVM of its own. Run with
+ * {@code make bench}.
+ */
+public class AuthenticatorBench {
+    private static final int THREADS = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+    private static final int SECONDS = Integer.getInteger("bench.seconds", 5);
+    private static final String PASSWORD = "correct horse battery staple";
+    private static final String RESULT = "result ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("run")) {
+            run();
+            return;
+        }
+        double on = mode("cache on", null);
+        double off = mode("cache off", "0");
+        System.out.printf("cache on %.0f logins/s, cache off %.1f logins/s: %.0fx%n", on, off, on / off);
+    }
+
+    /** Runs one mode in a child JVM and returns its logins per second. */
+    private static double mode(String name, String cacheTtlMs) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        // Hands our bench and auth settings on, except the one this mode decides
+        for (String property : System.getProperties().stringPropertyNames()) {
+            if ((property.startsWith("bench.") || property.startsWith("auth.")) && !property.equals("auth.cacheTtlMs")) {
+                command.add("-D" + property + "=" + System.getProperty(property));
+            }
+        }
+        String ttl = cacheTtlMs != null ? cacheTtlMs : System.getProperty("auth.cacheTtlMs");
+        if (ttl != null) {
+            command.add("-Dauth.cacheTtlMs=" + ttl);
+        }
+        command.add("AuthenticatorBench");
+        command.add("run");
+        Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        double rate = 0;
+        BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.startsWith(RESULT)) {
+                rate = Double.parseDouble(line.substring(RESULT.length()));
+            } else {
+                System.out.println(name + ": " + line);
+            }
+        }
+        if (child.waitFor() != 0) {
+            throw new IllegalStateException(name + " run failed");
+        }
+        return rate;
+    }
+
+    /** Child side: the login loop against credentials kept in memory. */
+    private static void run() throws InterruptedException {
+        Map<String, String> stored = new ConcurrentHashMap<>();
+        // One hash serves every user; hashing each would only slow the setup down
+        String hash = Authenticator.hash(PASSWORD);
+        for (int t = 0; t < THREADS; t++) {
+            stored.put(user(t), hash);
+        }
+        Authenticator authenticator = new Authenticator(new Authenticator.Credentials() {
+            public String credential(String username) {
+                return stored.get(username);
+            }
+
+            public void update(String username, String credential) {
+                stored.put(username, credential);
+            }
+        });
+
+        AtomicLong logins = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + SECONDS * 1_000_000_000L;
+        Thread[] clients = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            String username = user(t);
+            String address = "10.0.0." + t;
+            clients[t] = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        if (authenticator.authenticate(username, PASSWORD, address)) {
+                            logins.incrementAndGet();
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }, "client-" + t);
+            clients[t].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = logins.get() / seconds;
+        System.out.printf("%d threads, %d logins in %.1f s: %.1f logins/s, %.3f ms each, %d refused%n",
+                THREADS, logins.get(), seconds, rate, logins.get() == 0 ? 0.0 : seconds * 1000 * THREADS / logins.get(),
+                refused.get());
+        System.out.println(authenticator.stats());
+        System.out.println(RESULT + rate);
+    }
+
+    private static String user(int thread) {
+        return "bench" + thread + "@martinez.com";
+    }
+}
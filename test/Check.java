@@ -0,0 +1,31 @@
+/**
+ * Assertions for the tests under test/. They are plain programs, one JVM
+ * each (see the test target in the Makefile), run in an empty scratch
+ * directory so every database and store starts fresh.
+ */
+final class Check {
+    private static int checks;
+    private static int failures;
+
+    private Check() {
+    }
+
+    static void that(boolean condition, String what) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.err.println("FAIL: " + what);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        that(expected == null ? actual == null : expected.equals(actual),
+                what + ": expected " + expected + ", got " + actual);
+    }
+
+    /** Prints the result and exits, non-zero if anything failed. */
+    static void done(String test) {
+        System.out.println(test + ": " + (checks - failures) + "/" + checks + " checks passed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
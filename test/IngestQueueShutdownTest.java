@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Every message submitted to the IngestQueue gets an answer, including
+ * those racing with shutdown(): stored if it was queued in time, false if
+ * it came too late, but never a future that stays incomplete.
+ */
+public class IngestQueueShutdownTest {
+    private static final int ROUNDS = 60;
+    private static final int SUBMITTERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        long pendingForever = 0;
+        long stored = 0;
+        long refused = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            // Odd rounds: a small queue and a slow writer keep submitters blocked in put() while shutdown
+            // starts. Even rounds: a fast writer that empties the queue the moment running is cleared,
+            // while submitters are between checking running and queueing.
+            IngestQueue queue = round % 2 == 1
+                    ? new IngestQueue(batch -> sleep(1), 16, 8, 1)
+                    : new IngestQueue(batch -> { }, 100_000, 256, 0);
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            CountDownLatch started = new CountDownLatch(SUBMITTERS);
+            List<Thread> submitters = new ArrayList<>();
+            for (int s = 0; s < SUBMITTERS; s++) {
+                Thread submitter = new Thread(() -> {
+                    started.countDown();
+                    for (int i = 0; i < 2000; i++) {
+                        CompletableFuture<Boolean> result = queue.submit("<id-" + i + ">", "a@b.com", "c@d.com",
+                                "Subject: x", "body", null, -1);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    }
+                });
+                submitter.start();
+                submitters.add(submitter);
+            }
+            started.await();
+            sleep(round % 3);
+            queue.shutdown();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            for (CompletableFuture<Boolean> result : results) {
+                try {
+                    if (result.get(pendingForever == 0 ? 2 : 0, TimeUnit.SECONDS)) {
+                        stored++;
+                    } else {
+                        refused++;
+                    }
+                } catch (TimeoutException e) {
+                    pendingForever++;
+                }
+            }
+            Check.equal(queue.getSubmittedCount(), queue.getStoredCount() + queue.getFailedCount(),
+                    "round " + round + ": every queued message was answered");
+        }
+        Check.equal(0L, pendingForever, "futures left incomplete after shutdown");
+        Check.that(stored > 0 && refused > 0, "shutdown raced with submissions (stored=" + stored + ", refused=" + refused + ")");
+
+        IngestQueue closed = new IngestQueue(batch -> { }, 4, 4, 1);
+        closed.shutdown();
+        Check.equal(Boolean.FALSE, closed.submit("<late>", "a@b.com", "c@d.com", "", "", null, -1).get(1, TimeUnit.SECONDS),
+                "submit after shutdown");
+        Check.done("IngestQueueShutdownTest");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SEARCH over a large mailbox (bench.messages, 100k by default): the
+ * SEARCH_INDEX lookups SqliteStorage answers text keys with, against a
+ * substring scan of every row, which is what searching costs without the
+ * index. Prints the median time of each query both ways and how many
+ * messages matched; run with {@code make bench}. Needs the default sqlite
+ * mail.storage, since the scan is plain SQL.
+ */
+public class MailSearchBench {
+    private static final String USER = "bench@martinez.com";
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 100_000);
+    private static final int RUNS = Integer.getInteger("bench.runs", 5);
+    private static final int VOCABULARY = 5000;
+
+    /** One way of answering a query; returns the number of matches. */
+    private interface Search {
+        int run() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        EmailDatabase db = EmailDatabase.getInstance();
+        long start = System.nanoTime();
+        fill(db);
+        System.out.printf("stored %d messages in %.1f s%n", MESSAGES, (System.nanoTime() - start) / 1e9);
+        UidIndex uids = db.getMailbox(USER).uids();
+
+        System.out.printf("%-28s %10s %10s %8s %8s%n", "query", "index ms", "scan ms", "matches", "speedup");
+        query(db, uids, "BODY", "w17", "IFNULL(BODY, '')");
+        query(db, uids, "BODY", "w4321", "IFNULL(BODY, '')");
+        query(db, uids, "BODY", "needle", "IFNULL(BODY, '')");
+        query(db, uids, "SUBJECT", "w99", "IFNULL(HEADERS, '')");
+        query(db, uids, "FROM", "sender42", "(MAIL_FROM || ' ' || IFNULL(HEADERS, ''))");
+    }
+
+    /** Messages of 20-60 words from a Zipf-like vocabulary; one in a thousand holds "needle". */
+    private static void fill(EmailDatabase db) {
+        Random random = new Random(42);
+        List<String> to = Collections.singletonList(USER);
+        List<CompletableFuture<Boolean>> saved = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            String from = "sender" + random.nextInt(500) + "@example.com";
+            String headers = "From: " + from + "\nSubject: " + words(random, 3 + random.nextInt(5)) + "\nMessage-ID: <b" + i + "@bench>";
+            StringBuilder body = new StringBuilder(words(random, 20 + random.nextInt(40)));
+            if (i % 1000 == 0) {
+                body.append(" needle");
+            }
+            saved.add(db.saveEmailAsync("<b" + i + "@bench>", from, to, headers, body.toString()));
+        }
+        for (CompletableFuture<Boolean> result : saved) {
+            result.join();
+        }
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            // Squaring skews the choice towards low-numbered, i.e. common, words
+            double skew = random.nextDouble();
+            text.append('w').append((int) (skew * skew * VOCABULARY)).append(' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Every word here starts with a letter followed by digits, so the index's
+     * word-prefix match and a substring match find the same messages.
+     */
+    private static void query(EmailDatabase db, UidIndex uids, String key, String word, String scanExpression) {
+        String criteria = key + " " + word;
+        MailSearch.Criteria indexed = compile(criteria, uids);
+        String scan = "SELECT COUNT(*) FROM SMTP_DB WHERE RCPT_TO = ? AND " + scanExpression + " LIKE ?;";
+        ConnectionPool pool = ((SqliteStorage) db.getStorage()).getReadPool();
+        double[] indexTimes = time(() -> db.search(USER, indexed).size());
+        double[] scanTimes = time(() -> {
+            try (ConnectionPool.PooledConnection conn = pool.borrow()) {
+                PreparedStatement statement = conn.prepare(scan);
+                statement.setString(1, USER);
+                statement.setString(2, "%" + word + "%");
+                try (ResultSet rs = statement.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        });
+        System.out.printf("%-28s %10.2f %10.2f %8d %7.0fx%n", criteria, indexTimes[0], scanTimes[0], (long) indexTimes[1],
+                scanTimes[0] / indexTimes[0]);
+        if (indexTimes[1] != scanTimes[1]) {
+            System.out.printf("  the scan matched %d instead%n", (long) scanTimes[1]);
+        }
+    }
+
+    private static MailSearch.Criteria compile(String criteria, UidIndex uids) {
+        byte[] line = ("b1 SEARCH " + criteria).getBytes(StandardCharsets.UTF_8);
+        ProtocolCodec.ImapCommand command = new ProtocolCodec.ImapCommand();
+        command.parse(line, 0, line.length);
+        try {
+            return MailSearch.parse(command, uids, new ProtocolCodec.MessageSet());
+        } catch (MailSearch.SyntaxException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /** Median milliseconds over the runs after one warm-up, and the number of matches. */
+    private static double[] time(Search search) {
+        double[] millis = new double[RUNS];
+        int matches;
+        try {
+            matches = search.run();
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                matches = search.run();
+                millis[run] = (System.nanoTime() - start) / 1e6;
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        Arrays.sort(millis);
+        return new double[] {millis[RUNS / 2], matches};
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SEARCH criteria end to end: parsing, including parenthesized groups,
+ * and matching against stored messages and their flags. Every check runs
+ * against both MailStorage implementations, which must answer alike.
+ */
+public class MailSearchTest {
+    private static final String USER = "search@martinez.com";
+    private static final DateTimeFormatter IMAP_DATE = DateTimeFormatter.ofPattern("d-MMM-yyyy", Locale.ENGLISH);
+
+    private static String backend;
+    private static MailStorage storage;
+    private static UidIndex uids;
+
+    public static void main(String[] args) throws Exception {
+        // One stored body for both, as the ingest path would leave it
+        byte[] streamed = ("meeting notes " + "padding ".repeat(600) + "agenda").getBytes(StandardCharsets.UTF_8);
+        MessageStore.Writer writer = MessageStore.newWriter();
+        writer.write(streamed, 0, streamed.length);
+        String bodyPath = writer.commit();
+
+        check("sqlite", new SqliteStorage(), bodyPath, streamed.length);
+        check("log", new LogStorage(), bodyPath, streamed.length);
+        Check.done("MailSearchTest");
+    }
+
+    private static void check(String name, MailStorage mailStorage, String bodyPath, long bodySize) throws IOException {
+        backend = name;
+        storage = mailStorage;
+        List<IngestQueue.Pending> batch = new ArrayList<>();
+        List<String> to = Collections.singletonList(USER);
+        batch.add(new IngestQueue.Pending("<s1@test>", "alice@example.com", to,
+                "From: Alice <alice@example.com>\nSubject: Quarterly report", "numbers attached", null, -1));
+        batch.add(new IngestQueue.Pending("<s2@test>", "bob@example.com", to,
+                "From: Bob <bob@example.com>\nSubject: Lunch plans!!", "pizza or sushi", null, -1));
+        batch.add(new IngestQueue.Pending("<s3@test>", "alice@example.com", to,
+                "From: Alice <alice@example.com>\nCc: Carol <carol@example.com>\nSubject: Lunch (friday)",
+                "see the report", null, -1));
+        batch.add(new IngestQueue.Pending("<s4@test>", "dave@example.com", to,
+                "From: Dave <dave@example.com>\nSubject: Minutes", null, bodyPath, bodySize));
+        storage.deliver(batch);
+        uids = new UidIndex();
+        for (IngestQueue.Pending pending : batch) {
+            Check.that(pending.mailIds[0] > 0, name + ": " + pending.messageId + " stored");
+            uids.add(pending.mailIds[0]);
+        }
+
+        storage.storeFlags(USER, uids.uidAt(0), MailStorage.FLAG_SEEN, 0);
+        storage.storeFlags(USER, uids.uidAt(2), MailStorage.FLAG_SEEN | MailStorage.FLAG_FLAGGED, 0);
+        storage.storeFlags(USER, uids.uidAt(3), MailStorage.FLAG_SEEN, 0);
+
+        equal("1 2 3 4", "ALL");
+        equal("1 3", "FROM alice");
+        equal("1 3", "FROM \"Alice <alice\"");
+        equal("3", "TO carol");
+        equal("1 2 3 4", "TO search@martinez");
+        equal("2 3", "SUBJECT lunch");
+        equal("1", "SUBJECT quart");
+        equal("", "SUBJECT port");
+        equal("2", "SUBJECT \"!!\"");
+        equal("1 3", "OR BODY report BODY numbers");
+        equal("1 3", "TEXT report");
+        equal("4", "BODY agenda");
+        equal("4", "TEXT \"notes meeting\"");
+        equal("4", "FROM dave BODY meet");
+        equal("3", "(FROM alice SUBJECT lunch)");
+        equal("1 2", "OR (FROM bob) (SUBJECT quarterly)");
+        equal("2 4", "NOT (FROM alice)");
+        equal("2 3", "((SUBJECT lunch))");
+        equal("3", "SUBJECT \"(friday)\"");
+        equal("3", "2:3 (SEEN)");
+        equal("2 4", "UID " + uids.uidAt(1) + "," + uids.uidAt(3));
+        equal("", "UID " + (uids.uidAt(3) + 1) + ":" + (uids.uidAt(3) + 5));
+
+        equal("1 3 4", "SEEN");
+        equal("2", "UNSEEN");
+        equal("3", "FLAGGED");
+        equal("1 2 4", "UNFLAGGED");
+        equal("2 3", "OR FLAGGED UNSEEN");
+        equal("", "ANSWERED");
+        equal("1 2 3 4", "UNDELETED");
+        equal("", "NEW");
+        equal("1 2 3 4", "OLD");
+
+        equal("4", "LARGER 4000");
+        equal("1 2 3", "SMALLER 4000");
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        equal("1 2 3 4", "SINCE " + IMAP_DATE.format(today));
+        equal("1 2 3 4", "ON " + IMAP_DATE.format(today));
+        equal("", "BEFORE " + IMAP_DATE.format(today));
+        equal("", "SINCE " + IMAP_DATE.format(today.plusDays(1)));
+        equal("1 2 3 4", "BEFORE " + IMAP_DATE.format(today.plusDays(1)));
+
+        storage.storeFlags(USER, uids.uidAt(0), 0, MailStorage.FLAG_SEEN);
+        equal("2", "UNSEEN NOT FLAGGED FROM bob");
+        equal("1 2", "UNSEEN");
+
+        equal("BAD", "(FROM alice");
+        equal("BAD", "FROM alice)");
+        equal("BAD", "()");
+        equal("BAD", "(FROM)");
+    }
+
+    private static void equal(String expected, String criteria) throws IOException {
+        Check.equal(expected, search(criteria), backend + ": " + criteria);
+    }
+
+    /** Sequence numbers matching the criteria, space-separated, or "BAD" if they do not parse. */
+    private static String search(String criteria) throws IOException {
+        byte[] line = ("a1 SEARCH " + criteria).getBytes(StandardCharsets.UTF_8);
+        ProtocolCodec.ImapCommand command = new ProtocolCodec.ImapCommand();
+        command.parse(line, 0, line.length);
+        MailSearch.Criteria parsed;
+        try {
+            parsed = MailSearch.parse(command, uids, new ProtocolCodec.MessageSet());
+        } catch (MailSearch.SyntaxException e) {
+            return "BAD";
+        }
+        UidIndex matches = storage.search(USER, parsed);
+        StringBuilder numbers = new StringBuilder();
+        for (int i = 0; i < matches.size(); i++) {
+            if (numbers.length() > 0) {
+                numbers.append(' ');
+            }
+            numbers.append(uids.indexOf(matches.uidAt(i)) + 1);
+        }
+        return numbers.toString();
+    }
+}
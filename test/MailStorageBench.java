@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Delivery throughput of SqliteStorage against LogStorage: bench.messages
+ * messages of bench.bodyBytes each, spread over bench.users mailboxes and
+ * handed to deliver() in batches of bench.batch, the way the ingest
+ * writer groups them. Each backend first takes a warm-up round into
+ * mailboxes of its own. Run with {@code make bench}.
+ */
+public class MailStorageBench {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 20000);
+    private static final int BATCH = Integer.getInteger("bench.batch", 64);
+    private static final int USERS = Integer.getInteger("bench.users", 50);
+    private static final int BODY_BYTES = Integer.getInteger("bench.bodyBytes", 2000);
+
+    public static void main(String[] args) throws IOException {
+        double sqlite = run("sqlite", new SqliteStorage());
+        double log = run("log", new LogStorage());
+        System.out.printf("sqlite %.0f msgs/s, log %.0f msgs/s: %.1fx%n", sqlite, log, log / sqlite);
+    }
+
+    /** Delivers the messages and returns how many were stored per second. */
+    private static double run(String name, MailStorage storage) throws IOException {
+        String body = "x".repeat(BODY_BYTES);
+        deliver(storage, "warmup", Math.min(MESSAGES, 10 * BATCH), body);
+        long start = System.nanoTime();
+        deliver(storage, "bench", MESSAGES, body);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = MESSAGES / seconds;
+        System.out.printf("%s: %d messages in batches of %d in %.2f s: %.0f msgs/s, %.3f ms per batch%n",
+                name, MESSAGES, BATCH, seconds, rate, seconds * 1000 * BATCH / MESSAGES);
+        System.out.println(name + ": " + storage.stats());
+        return rate;
+    }
+
+    private static void deliver(MailStorage storage, String prefix, int count, String body) throws IOException {
+        for (int i = 0; i < count; i += BATCH) {
+            List<IngestQueue.Pending> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(count, i + BATCH); j++) {
+                String user = prefix + (j % USERS) + "@martinez.com";
+                batch.add(new IngestQueue.Pending("<" + prefix + j + "@bench>", "sender@example.com",
+                        Collections.singletonList(user), "Subject: message " + j, body, null, -1));
+            }
+            storage.deliver(batch);
+            for (IngestQueue.Pending pending : batch) {
+                if (pending.failed || pending.mailIds[0] == 0) {
+                    throw new IllegalStateException(pending.messageId + " not stored");
+                }
+            }
+        }
+    }
+}
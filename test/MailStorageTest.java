@@ -0,0 +1,265 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The MailStorage contract, checked the same way against SqliteStorage and
+ * LogStorage: delivery with duplicates and several recipients, list,
+ * fetch, users, flags, expunge, blob references and reopening. A second
+ * process delivers into the same storage alongside this one, and the log
+ * is reopened after a torn write.
+ */
+public class MailStorageTest {
+    private static final String ALICE = "alice@martinez.com";
+    private static final String BOB = "bob@martinez.com";
+    private static final String SHARED = "shared@martinez.com";
+    private static final int CONCURRENT = 40;
+    private static final String UID = "uid ";
+
+    private static String backend;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child(args[1], Long.parseLong(args[2]));
+            return;
+        }
+        byte[] streamed = "a body kept in the message store\r\n".getBytes(StandardCharsets.UTF_8);
+        MessageStore.Writer writer = MessageStore.newWriter();
+        writer.write(streamed, 0, streamed.length);
+        String bodyPath = writer.commit();
+
+        contract("sqlite", bodyPath, streamed.length);
+        contract("log", bodyPath, streamed.length);
+        tornTail();
+        Check.done("MailStorageTest");
+    }
+
+    private static MailStorage open(String name) {
+        return name.equals("log") ? new LogStorage() : new SqliteStorage();
+    }
+
+    private static IngestQueue.Pending pending(String messageId, List<String> to, String body, String bodyPath,
+                                               long bodySize) {
+        return new IngestQueue.Pending(messageId, "sender@example.com", to, "Subject: " + messageId, body, bodyPath,
+                bodySize);
+    }
+
+    private static void contract(String name, String bodyPath, long bodySize) throws Exception {
+        backend = name;
+        MailStorage storage = open(name);
+
+        // Delivery: UIDs are global and ascending, duplicates get 0
+        List<IngestQueue.Pending> batch = new ArrayList<>();
+        batch.add(pending("<m1@test>", Collections.singletonList(ALICE), "first", null, -1));
+        batch.add(pending("<m2@test>", Arrays.asList(ALICE, BOB), null, bodyPath, bodySize));
+        batch.add(pending("<m1@test>", Collections.singletonList(ALICE), "first again", null, -1));
+        batch.add(pending("<m3@test>", Collections.singletonList(BOB), "third", null, -1));
+        storage.deliver(batch);
+        long m1 = batch.get(0).mailIds[0];
+        long m2Alice = batch.get(1).mailIds[0];
+        long m2Bob = batch.get(1).mailIds[1];
+        long m3 = batch.get(3).mailIds[0];
+        check(m1 > 0 && m1 < m2Alice && m2Alice < m2Bob && m2Bob < m3, "UIDs ascend across mailboxes");
+        equal(0L, batch.get(2).mailIds[0], "duplicate Message-ID in a batch");
+        List<IngestQueue.Pending> duplicate = new ArrayList<>(Collections.singletonList(
+                pending("<m1@test>", Collections.singletonList(ALICE), "later", null, -1)));
+        storage.deliver(duplicate);
+        equal(0L, duplicate.get(0).mailIds[0], "duplicate Message-ID across batches");
+        equal(m2Alice + 1, storage.uidNext(ALICE), "uidNext of alice");
+        equal(m3 + 1, storage.uidNext(BOB), "uidNext of bob");
+        equal(1L, storage.uidNext("nobody@martinez.com"), "uidNext of an empty mailbox");
+        Map<String, Long> uidNexts = storage.uidNexts();
+        equal(m2Alice + 1, uidNexts.get(ALICE), "uidNexts of alice");
+        equal(m3 + 1, uidNexts.get(BOB), "uidNexts of bob");
+
+        // List and fetch
+        MailboxCache.Snapshot alice = list(storage, ALICE);
+        equal(2, alice.size(), "alice's messages");
+        equal(m1, alice.uids().uidAt(0), "first listed UID");
+        List<String> fetched = fetch(storage, ALICE, m1, m2Alice);
+        equal("Subject: <m1@test>\r\n\r\nfirst", fetched.get(0), "fetched inline body");
+        equal("Subject: <m2@test>\r\n\r\na body kept in the message store\r\n", fetched.get(1), "fetched stored body");
+        equal((long) fetched.get(0).length(), alice.metadata(0).size(), "listed size");
+        equal(bodySize, alice.metadata(1).bodySize(), "listed size of a stored body");
+        equal(1, fetch(storage, BOB, m3, m3).size(), "fetch of a single UID");
+        equal("third", storage.getEmail(m3).get("body"), "getEmail body");
+        check(storage.getEmail(m3 + 1000) == null, "getEmail of an unknown ID");
+
+        // Users
+        check(storage.createUser(ALICE, "hash-1"), "user created");
+        check(!storage.createUser(ALICE, "hash-2"), "existing user not replaced");
+        equal("hash-1", storage.credential(ALICE), "stored credential");
+        storage.setCredential(ALICE, "hash-3");
+        equal("hash-3", storage.credential(ALICE), "replaced credential");
+        check(storage.credential("nobody@martinez.com") == null, "credential of an unknown user");
+
+        // Flags
+        equal(MailStorage.FLAG_SEEN | MailStorage.FLAG_FLAGGED,
+                storage.storeFlags(ALICE, m1, MailStorage.FLAG_SEEN | MailStorage.FLAG_FLAGGED, 0), "flags added");
+        equal(MailStorage.FLAG_FLAGGED, storage.storeFlags(ALICE, m1, 0, MailStorage.FLAG_SEEN), "flag removed");
+        equal(-1, storage.storeFlags(ALICE, m3, MailStorage.FLAG_SEEN, 0), "flags of another mailbox's message");
+        equal(MailStorage.FLAG_FLAGGED, list(storage, ALICE).flags(0), "listed flags");
+
+        // Blobs and expunge
+        check(storage.referencedBlobs().contains(bodyPath), "stored body referenced");
+        check(!storage.releaseBlob(bodyPath), "referenced body kept");
+        storage.storeFlags(ALICE, m2Alice, MailStorage.FLAG_DELETED, 0);
+        UidIndex expunged = storage.expunge(ALICE);
+        equal(1, expunged.size(), "one message expunged");
+        equal(m2Alice, expunged.uidAt(0), "expunged UID");
+        equal(0, storage.expunge(BOB).size(), "nothing flagged in bob's mailbox");
+        equal(1, list(storage, ALICE).size(), "alice's messages after expunge");
+        equal(m2Alice + 1, storage.uidNext(ALICE), "uidNext survives expunge");
+        check(storage.referencedBlobs().contains(bodyPath), "body still referenced by bob's copy");
+        storage.storeFlags(BOB, m2Bob, MailStorage.FLAG_DELETED, 0);
+        storage.expunge(BOB);
+        check(!storage.referencedBlobs().contains(bodyPath), "body unreferenced after the last copy");
+        check(storage.releaseBlob(bodyPath), "unreferenced body released");
+        List<IngestQueue.Pending> again = new ArrayList<>(Collections.singletonList(
+                pending("<m2@test>", Collections.singletonList(ALICE), "back", null, -1)));
+        storage.deliver(again);
+        check(again.get(0).mailIds[0] > m3, "an expunged Message-ID may be delivered again");
+
+        // Another instance reads the same state back
+        MailStorage reopened = open(name);
+        MailboxCache.Snapshot afterReopen = list(reopened, ALICE);
+        equal(2, afterReopen.size(), "messages after reopening");
+        equal(MailStorage.FLAG_FLAGGED, afterReopen.flags(0), "flags after reopening");
+        equal("hash-3", reopened.credential(ALICE), "credential after reopening");
+        equal("third", reopened.getEmail(m3).get("body"), "body after reopening");
+
+        concurrentProcess(storage, m1);
+    }
+
+    /**
+     * A child process delivers into the same storage while this one does,
+     * and sets a flag and adds a user on the way; each side then sees the
+     * other's writes, and no UID is handed out twice.
+     */
+    private static void concurrentProcess(MailStorage storage, long flagUid) throws Exception {
+        Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "MailStorageTest", "child", backend, Long.toString(flagUid))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT; i += 4) {
+            List<IngestQueue.Pending> batch = new ArrayList<>();
+            for (int j = i; j < i + 4; j++) {
+                batch.add(pending("<p" + j + "@parent>", Collections.singletonList(SHARED), "parent " + j, null, -1));
+            }
+            storage.deliver(batch);
+            for (IngestQueue.Pending pending : batch) {
+                uids.add(pending.mailIds[0]);
+            }
+        }
+        BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = fromChild.readLine()) != null) {
+            if (line.startsWith(UID)) {
+                uids.add(Long.parseLong(line.substring(UID.length())));
+            }
+        }
+        equal(0, child.waitFor(), "child exit status");
+
+        equal(2 * CONCURRENT, uids.size(), "UIDs handed out to both processes");
+        equal(2 * CONCURRENT, (int) uids.stream().distinct().count(), "no UID handed out twice");
+        check(!uids.contains(0L), "every concurrent message stored");
+        MailboxCache.Snapshot shared = list(storage, SHARED);
+        equal(2 * CONCURRENT, shared.size(), "both processes' messages listed");
+        equal(shared.uids().uidAt(shared.size() - 1) + 1, storage.uidNext(SHARED), "uidNext after both");
+        equal("child@martinez.com-hash", storage.credential("child@martinez.com"), "user the child added");
+        equal(MailStorage.FLAG_FLAGGED | MailStorage.FLAG_ANSWERED, list(storage, ALICE).flags(0), "flag the child set");
+    }
+
+    /** Child side of {@link #concurrentProcess}: prints the UID of every message it delivered. */
+    private static void child(String name, long flagUid) throws IOException {
+        MailStorage storage = open(name);
+        for (int i = 0; i < CONCURRENT; i += 4) {
+            List<IngestQueue.Pending> batch = new ArrayList<>();
+            for (int j = i; j < i + 4; j++) {
+                batch.add(pending("<c" + j + "@child>", Collections.singletonList(SHARED), "child " + j, null, -1));
+            }
+            storage.deliver(batch);
+            for (IngestQueue.Pending pending : batch) {
+                System.out.println(UID + pending.mailIds[0]);
+            }
+        }
+        storage.createUser("child@martinez.com", "child@martinez.com-hash");
+        storage.storeFlags(ALICE, flagUid, MailStorage.FLAG_ANSWERED, 0);
+    }
+
+    /**
+     * A crash in the middle of an append leaves part of a record at the end
+     * of the last segment. Opening the log drops it, and appends carry on
+     * from where the good records end.
+     */
+    private static void tornTail() throws IOException {
+        backend = "log torn tail";
+        File[] segments = new File("mail_log").listFiles((dir, file) -> file.startsWith("segment-"));
+        check(segments != null && segments.length > 0, "log segments exist");
+        Arrays.sort(segments);
+        File last = segments[segments.length - 1];
+        long goodLength = last.length();
+        long uidNext = new LogStorage().uidNext(ALICE);
+        try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+            file.seek(goodLength);
+            // A frame header promising 500 bytes, followed by only a few of them
+            file.writeInt(500);
+            file.writeInt(0);
+            file.write(new byte[] {2, 0, 0, 0, 0, 0, 0, 0});
+        }
+
+        LogStorage reopened = new LogStorage();
+        equal(goodLength, last.length(), "torn record truncated away");
+        equal(1L, reopened.getTornWriteCount(), "torn write counted");
+        equal(uidNext, reopened.uidNext(ALICE), "records before the tear kept");
+        List<IngestQueue.Pending> batch = new ArrayList<>(Collections.singletonList(
+                pending("<after-tear@test>", Collections.singletonList(ALICE), "after the tear", null, -1)));
+        reopened.deliver(batch);
+        check(batch.get(0).mailIds[0] > 0, "append after the tear");
+        LogStorage again = new LogStorage();
+        equal(0L, again.getTornWriteCount(), "log is clean after the append");
+        equal("after the tear", again.getEmail(batch.get(0).mailIds[0]).get("body"), "appended record readable");
+    }
+
+    private static MailboxCache.Snapshot list(MailStorage storage, String username) {
+        MailboxCache cache = new MailboxCache(new MailboxCache.Loader() {
+            public long uidNext(String user) throws IOException {
+                return storage.uidNext(user);
+            }
+
+            public void load(String user, long fromUid, MailboxCache.Mailbox into) throws IOException {
+                storage.list(user, fromUid, into);
+            }
+        }, 1, Long.MAX_VALUE);
+        return cache.get(username);
+    }
+
+    /** Whole messages as FETCH BODY[] would send them. */
+    private static List<String> fetch(MailStorage storage, String username, long firstUid, long lastUid) throws IOException {
+        List<String> messages = new ArrayList<>();
+        storage.fetch(username, firstUid, lastUid, true, true, message -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeMessage(out, null);
+            messages.add(out.toString(StandardCharsets.UTF_8));
+        });
+        return messages;
+    }
+
+    private static void check(boolean condition, String what) {
+        Check.that(condition, backend + ": " + what);
+    }
+
+    private static void equal(Object expected, Object actual, String what) {
+        Check.equal(expected, actual, backend + ": " + what);
+    }
+}
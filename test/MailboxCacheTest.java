@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flags in the mailbox cache: loaded with the messages, changed in place
+ * by onFlags and seen by snapshots taken before the change, including
+ * after the entry grew past the arrays a snapshot shares.
+ */
+public class MailboxCacheTest {
+    private static final String USER = "cache@martinez.com";
+
+    public static void main(String[] args) {
+        List<long[]> stored = new ArrayList<>();
+        stored.add(new long[] {10, MailStorage.FLAG_SEEN});
+        stored.add(new long[] {11, 0});
+        stored.add(new long[] {12, MailStorage.FLAG_FLAGGED});
+        MailboxCache cache = new MailboxCache(new MailboxCache.Loader() {
+            public long uidNext(String username) {
+                return stored.get(stored.size() - 1)[0] + 1;
+            }
+
+            public void load(String username, long fromUid, MailboxCache.Mailbox into) {
+                for (long[] message : stored) {
+                    if (message[0] >= fromUid) {
+                        into.append(message[0], 100, 200, (int) message[1]);
+                    }
+                }
+            }
+        }, 10, 1000);
+
+        MailboxCache.Snapshot first = cache.get(USER);
+        Check.equal(3, first.size(), "messages loaded");
+        Check.equal(MailStorage.FLAG_SEEN, first.flags(0), "loaded \\Seen");
+        Check.equal(0, first.flags(1), "loaded no flags");
+        Check.equal(MailStorage.FLAG_FLAGGED, first.flags(2), "loaded \\Flagged");
+
+        cache.onFlags(USER, 11, MailStorage.FLAG_SEEN | MailStorage.FLAG_ANSWERED);
+        Check.equal(MailStorage.FLAG_SEEN | MailStorage.FLAG_ANSWERED, first.flags(1), "older snapshot sees the change");
+
+        // Past the initial capacity of 16, so the entry's arrays are copied
+        for (long uid = 13; uid < 40; uid++) {
+            cache.onDelivered(USER, uid, 100, 200);
+        }
+        cache.onFlags(USER, 10, 0);
+        Check.equal(0, first.flags(0), "change seen after the entry grew");
+        MailboxCache.Snapshot second = cache.get(USER);
+        Check.equal(30, second.size(), "deliveries appended");
+        Check.equal(0, second.flags(29), "delivered without flags");
+        cache.onFlags(USER, 39, MailStorage.FLAG_DELETED);
+        Check.equal(MailStorage.FLAG_DELETED, second.flags(29), "flags of a delivered message");
+        cache.onFlags(USER, 99, MailStorage.FLAG_SEEN);
+        Check.equal(30, cache.get(USER).size(), "unknown UID ignored");
+
+        cache.invalidate(USER);
+        stored.get(2)[1] = MailStorage.FLAG_DRAFT;
+        Check.equal(MailStorage.FLAG_DRAFT, cache.get(USER).flags(2), "reloaded flags after invalidate");
+        Check.done("MailboxCacheTest");
+    }
+}
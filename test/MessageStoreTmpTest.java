@@ -0,0 +1,69 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Starting another process on the same store must not delete a body that
+ * a running process is still streaming, while the temp files of a process
+ * that died are cleared.
+ */
+public class MessageStoreTmpTest {
+    private static final byte[] BODY = "a body still arriving\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("writer")) {
+            writer();
+            return;
+        }
+
+        // What a crashed process leaves behind: its directory and an unlocked lock file
+        File tmp = new File("mail_store/tmp");
+        File dead = new File(tmp, "999999999");
+        Check.that(dead.mkdirs(), "dead process directory created");
+        Files.write(new File(dead, "lost.body").toPath(), BODY);
+        Check.that(new File(tmp, "999999999.lock").createNewFile(), "dead process lock file created");
+
+        Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "MessageStoreTmpTest", "writer")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter toChild = new PrintWriter(child.getOutputStream(), true);
+        Check.equal("writing", fromChild.readLine(), "child started a body");
+
+        // Loading MessageStore here is what used to wipe the child's temp file
+        Check.that(MessageStore.stats() != null, "store loaded in the parent");
+        Check.that(!dead.exists(), "dead process directory cleared");
+        File childTmp = new File(tmp, Long.toString(child.pid()));
+        String[] inFlight = childTmp.list();
+        Check.that(inFlight != null && inFlight.length == 1, "child's temp file survived");
+
+        toChild.println("commit");
+        String path = fromChild.readLine();
+        Check.that(path != null && !path.startsWith("error"), "child committed its body: " + path);
+        Check.equal(0, child.waitFor(), "child exit status");
+        if (path != null && !path.startsWith("error")) {
+            Check.that(new File("mail_store", path).isFile(), "committed body is in the store");
+        }
+        Check.done("MessageStoreTmpTest");
+    }
+
+    /** Child side: starts a body, waits for the parent, then commits it. */
+    private static void writer() throws Exception {
+        MessageStore.Writer writer = MessageStore.newWriter();
+        writer.write(BODY, 0, BODY.length);
+        System.out.println("writing");
+        System.out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        in.readLine();
+        writer.write(BODY, 0, BODY.length);
+        try {
+            System.out.println(writer.commit());
+        } catch (Exception e) {
+            System.out.println("error " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Command parsing with {@link ProtocolCodec} against the String-based
+ * parsing it replaced (decode the line, toUpperCase, split, replaceAll),
+ * for SMTP command lines, IMAP command lines and the envelope of a UDP
+ * packet. Prints time and heap allocation per parsed line; run with
+ * {@code make bench}.
+ */
+public class ProtocolCodecBench {
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 5);
+    private static final int LINES_PER_ROUND = Integer.getInteger("bench.lines", 500_000);
+
+    private static final byte[][] SMTP_LINES = lines(
+            "EHLO client.example.com",
+            "MAIL FROM:<alice@example.com> SIZE=2048 BODY=8BITMIME",
+            "RCPT TO:<christian@martinez.com>",
+            "DATA",
+            "BDAT 4096 LAST",
+            "RSET",
+            "QUIT");
+    private static final byte[][] IMAP_LINES = lines(
+            "a001 LOGIN \"christian@martinez.com\" \"secret\"",
+            "a002 SELECT INBOX",
+            "a003 UID FETCH 1:* (UID FLAGS RFC822.SIZE)",
+            "a004 FETCH 12 (BODY[])",
+            "a005 NOOP",
+            "a006 LOGOUT");
+    private static final byte[][] UDP_PACKETS = lines(
+            "MAIL FROM:<alice@example.com>\r\nRCPT TO:<christian@martinez.com>\r\nDATA\r\n"
+                    + "Subject: hello\r\n\r\nA short message body.\r\n.\r\n");
+
+    // Keeps the JIT from dropping the work
+    private static long sink;
+
+    private interface Parser {
+        void parse(byte[] line);
+    }
+
+    public static void main(String[] args) {
+        ProtocolCodec.SmtpCommand smtp = new ProtocolCodec.SmtpCommand();
+        ProtocolCodec.ImapCommand imap = new ProtocolCodec.ImapCommand();
+        ProtocolCodec.UdpEnvelope udp = new ProtocolCodec.UdpEnvelope();
+
+        run("smtp", SMTP_LINES, ProtocolCodecBench::legacySmtp, line -> {
+            ProtocolCodec.SmtpCommand command = smtp.parse(line, 0, line.length);
+            sink += command.verb().ordinal();
+            if (command.verb() == ProtocolCodec.SmtpCommand.Verb.MAIL || command.verb() == ProtocolCodec.SmtpCommand.Verb.RCPT) {
+                sink += command.address().length();
+            }
+        });
+        run("imap", IMAP_LINES, ProtocolCodecBench::legacyImap, line -> {
+            if (imap.parse(line, 0, line.length)) {
+                sink += imap.verb().ordinal() + imap.tag().length();
+            }
+        });
+        run("udp", UDP_PACKETS, ProtocolCodecBench::legacyUdp, packet -> {
+            if (udp.parse(packet, 0, packet.length)) {
+                sink += udp.sender().length() + udp.recipient().length() + udp.dataOffset();
+            }
+        });
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void run(String name, byte[][] lines, Parser legacy, Parser codec) {
+        double[] legacyResult = measure(lines, legacy);
+        double[] codecResult = measure(lines, codec);
+        System.out.printf("%-5s legacy %7.1f ns/line %7.1f B/line | codec %7.1f ns/line %7.1f B/line | %.1fx faster%n",
+                name, legacyResult[0], legacyResult[1], codecResult[0], codecResult[1], legacyResult[0] / codecResult[0]);
+    }
+
+    /** Best time and allocation per line over the rounds; the first round only warms up. */
+    private static double[] measure(byte[][] lines, Parser parser) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        double bestNanos = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < LINES_PER_ROUND; i++) {
+                parser.parse(lines[i % lines.length]);
+            }
+            long nanos = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            if (round > 0) {
+                bestNanos = Math.min(bestNanos, nanos / (double) LINES_PER_ROUND);
+                bestBytes = Math.min(bestBytes, allocated / (double) LINES_PER_ROUND);
+            }
+        }
+        return new double[] {bestNanos, bestBytes};
+    }
+
+    // The parsing the servers did before ProtocolCodec, starting from the bytes a reader produced
+
+    private static void legacySmtp(byte[] bytes) {
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        String upper = line.toUpperCase();
+        if (upper.startsWith("HELO") || upper.startsWith("EHLO")) {
+            sink += 1;
+        } else if (upper.startsWith("MAIL FROM:") || upper.startsWith("RCPT TO:")) {
+            String address = extractEmail(line);
+            sink += address == null ? 0 : address.length();
+        } else if (upper.equals("DATA") || upper.equals("QUIT")) {
+            sink += 2;
+        } else if (upper.startsWith("BDAT ")) {
+            sink += Long.parseLong(line.split(" ")[1]);
+        } else {
+            sink += 3;
+        }
+    }
+
+    private static void legacyImap(byte[] bytes) {
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        String[] parts = line.split(" ");
+        String tag = parts[0];
+        String command = parts[1].toUpperCase();
+        if (command.equals("LOGIN") && parts.length >= 4) {
+            sink += parts[2].replaceAll("\"", "").length() + parts[3].replaceAll("\"", "").length();
+        } else if (command.equals("UID")) {
+            sink += line.toUpperCase().indexOf("FETCH");
+        }
+        sink += tag.length() + command.length();
+    }
+
+    private static void legacyUdp(byte[] bytes) {
+        String message = new String(bytes, StandardCharsets.UTF_8);
+        String recipient = extractField(message, "RCPT TO:");
+        String sender = extractField(message, "MAIL FROM:");
+        String[] lines = message.replace("\r\n", "\n").split("\n");
+        sink += recipient.length() + sender.length() + lines.length;
+    }
+
+    private static String extractEmail(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>');
+        if (start != -1 && end != -1 && end > start) {
+            return line.substring(start + 1, end).trim();
+        }
+        return null;
+    }
+
+    private static String extractField(String message, String field) {
+        int fieldIndex = message.toUpperCase().indexOf(field.toUpperCase());
+        if (fieldIndex == -1) {
+            return null;
+        }
+        int lineEndIndex = message.indexOf('\n', fieldIndex);
+        if (lineEndIndex == -1) {
+            lineEndIndex = message.length();
+        }
+        return extractEmail(message.substring(fieldIndex, lineEndIndex));
+    }
+
+    private static byte[][] lines(String... lines) {
+        byte[][] bytes = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            bytes[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,273 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reassembly of forwarded mail: fragments in any order, duplicates,
+ * fragments that contradict the transfer they claim to belong to, the
+ * udp.reassemblyBytes cap, expiry of incomplete transfers, replays of
+ * completed ones, and forget() letting a transfer whose store failed in
+ * again. Then the way there: fragments packed by coalesce() come out of
+ * unbundle() as they went in, whatever their sizes, and a bundle cut
+ * short is noticed.
+ */
+public class UdpFragmentsTest {
+    // Where split() puts the count and total length of a fragment
+    private static final int COUNT_AT = 16;
+    private static final int TOTAL_LENGTH_AT = 20;
+
+    public static void main(String[] args) throws Exception {
+        outOfOrder();
+        mismatched();
+        memoryCap();
+        expiry();
+        replays();
+        roundTrip();
+        edgeSizes();
+        truncatedBundle();
+        Check.done("UdpFragmentsTest");
+    }
+
+    private static void outOfOrder() {
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(1 << 20, 1 << 20, 60_000, 16);
+        byte[] message = message(5000);
+        List<byte[]> fragments = UdpFragments.split(1, message);
+        Check.equal(4, fragments.size(), "fragments of a 5000 byte message");
+        Check.that(reassembler.accept(fragments.get(2), 0, fragments.get(2).length) == null, "third fragment first");
+        Check.that(reassembler.accept(fragments.get(0), 0, fragments.get(0).length) == null, "then the first");
+        Check.equal(1, reassembler.getPartialCount(), "one transfer in progress");
+        Check.equal(5000L, reassembler.getPartialBytes(), "its whole length held");
+        Check.that(reassembler.accept(fragments.get(0), 0, fragments.get(0).length) == null, "first fragment again");
+        Check.equal(1L, reassembler.getDuplicateCount(), "duplicate fragment counted");
+        Check.that(reassembler.accept(fragments.get(3), 0, fragments.get(3).length) == null, "then the last");
+
+        // The missing fragment inside a bundle-like buffer, at an offset
+        byte[] padded = new byte[fragments.get(1).length + 7];
+        System.arraycopy(fragments.get(1), 0, padded, 7, fragments.get(1).length);
+        byte[] whole = reassembler.accept(padded, 7, fragments.get(1).length);
+        Check.that(Arrays.equals(message, whole), "message put back together out of order");
+        Check.equal(0, reassembler.getPartialCount(), "nothing left in progress");
+        Check.equal(0L, reassembler.getPartialBytes(), "no bytes held");
+        Check.equal(1L, reassembler.getCompletedCount(), "completed transfers");
+    }
+
+    private static void mismatched() {
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(1 << 20, 1 << 20, 60_000, 16);
+        List<byte[]> fragments = UdpFragments.split(2, message(3000));
+        reassembler.accept(fragments.get(0), 0, fragments.get(0).length);
+
+        byte[] otherCount = fragments.get(1).clone();
+        ByteBuffer.wrap(otherCount).putInt(COUNT_AT, 5);
+        Check.that(reassembler.accept(otherCount, 0, otherCount.length) == null, "fragment with another count");
+        byte[] otherLength = fragments.get(1).clone();
+        ByteBuffer.wrap(otherLength).putInt(TOTAL_LENGTH_AT, 4000);
+        Check.that(reassembler.accept(otherLength, 0, otherLength.length) == null, "fragment with another total length");
+        Check.equal(2L, reassembler.getRejectedCount(), "contradicting fragments rejected");
+
+        byte[] tooLong = fragments.get(1).clone();
+        ByteBuffer.wrap(tooLong).putInt(TOTAL_LENGTH_AT, 10);
+        Check.that(reassembler.accept(tooLong, 0, tooLong.length) == null, "payload past the total length");
+        byte[] badSequence = fragments.get(1).clone();
+        ByteBuffer.wrap(badSequence).putInt(COUNT_AT - 4, 3);
+        Check.that(reassembler.accept(badSequence, 0, badSequence.length) == null, "sequence past the count");
+        Check.equal(4L, reassembler.getRejectedCount(), "malformed fragments rejected");
+
+        // None of that disturbed the real transfer
+        byte[] whole = complete(reassembler, fragments.subList(1, fragments.size()));
+        Check.that(whole != null && whole.length == 3000, "transfer completes after the rejects");
+    }
+
+    private static void memoryCap() {
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(8000, 1 << 20, 60_000, 16);
+        List<byte[]> first = UdpFragments.split(3, message(5000));
+        List<byte[]> second = UdpFragments.split(4, message(5000));
+        reassembler.accept(first.get(0), 0, first.get(0).length);
+        Check.that(reassembler.accept(second.get(0), 0, second.get(0).length) == null, "second transfer over the cap");
+        Check.equal(1L, reassembler.getRejectedCount(), "transfer over the cap rejected");
+        Check.equal(5000L, reassembler.getPartialBytes(), "only the first transfer held");
+
+        // A single-fragment message needs no reassembly memory
+        List<byte[]> small = UdpFragments.split(5, message(100));
+        Check.that(reassembler.accept(small.get(0), 0, small.get(0).length) != null, "small message under a full cap");
+
+        complete(reassembler, first.subList(1, first.size()));
+        Check.equal(0L, reassembler.getPartialBytes(), "memory freed once the first completes");
+        byte[] whole = complete(reassembler, second);
+        Check.that(whole != null && whole.length == 5000, "second transfer fits now");
+
+        UdpFragments.Reassembler strict = new UdpFragments.Reassembler(1 << 20, 4000, 60_000, 16);
+        Check.that(strict.accept(first.get(0), 0, first.get(0).length) == null, "message over udp.maxMessageSize");
+        Check.equal(1L, strict.getRejectedCount(), "oversized message rejected");
+    }
+
+    private static void expiry() throws InterruptedException {
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(1 << 20, 1 << 20, 100, 16);
+        List<byte[]> stale = UdpFragments.split(6, message(3000));
+        reassembler.accept(stale.get(0), 0, stale.get(0).length);
+        Thread.sleep(150);
+        List<byte[]> fresh = UdpFragments.split(7, message(3000));
+        reassembler.accept(fresh.get(0), 0, fresh.get(0).length);
+        Check.equal(1L, reassembler.getExpiredCount(), "incomplete transfer expired");
+        Check.equal(1, reassembler.getPartialCount(), "only the fresh transfer left");
+        Check.equal(3000L, reassembler.getPartialBytes(), "expired bytes released");
+        // The rest of the expired transfer starts it over instead of completing it
+        Check.that(reassembler.accept(stale.get(1), 0, stale.get(1).length) == null, "late fragment of an expired transfer");
+        Check.equal(2, reassembler.getPartialCount(), "expired transfer started over");
+    }
+
+    private static void replays() {
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(1 << 20, 1 << 20, 60_000, 2);
+        List<byte[]> fragments = UdpFragments.split(8, message(3000));
+        complete(reassembler, fragments);
+        long duplicates = reassembler.getDuplicateCount();
+        Check.that(reassembler.accept(fragments.get(1), 0, fragments.get(1).length) == null, "replayed fragment dropped");
+        Check.equal(duplicates + 1, reassembler.getDuplicateCount(), "replay counted as a duplicate");
+        Check.equal(0, reassembler.getPartialCount(), "replay starts no new transfer");
+
+        Check.that(!reassembler.isAcknowledged(8), "not acknowledged before the store");
+        reassembler.acknowledged(8);
+        Check.that(reassembler.isAcknowledged(8), "acknowledged after the store");
+
+        // The store failed: the retransmission must go through again
+        List<byte[]> failed = UdpFragments.split(9, message(3000));
+        complete(reassembler, failed);
+        Check.that(reassembler.accept(failed.get(0), 0, failed.get(0).length) == null, "replay before forget dropped");
+        reassembler.forget(9);
+        Check.that(complete(reassembler, failed) != null, "transfer let in again after forget");
+        Check.that(!reassembler.isAcknowledged(9), "forgotten transfer not acknowledged");
+
+        // Only udp.dedupWindow transfers are remembered
+        complete(reassembler, UdpFragments.split(10, message(100)));
+        Check.that(complete(reassembler, fragments) != null, "transfer past the window accepted again");
+
+        byte[] legacy = message(200);
+        Check.that(reassembler.acceptLegacy(legacy, legacy.length), "unframed message accepted");
+        Check.that(!reassembler.acceptLegacy(legacy, legacy.length), "replayed unframed message dropped");
+    }
+
+    private static void roundTrip() {
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> fragments = new ArrayList<>();
+        // Short messages that share datagrams, with a long one in between that does not
+        int[] lengths = {10, 200, 3000, 40, 500, 1};
+        for (int i = 0; i < lengths.length; i++) {
+            messages.add(message(lengths[i]));
+            fragments.addAll(UdpFragments.split(100 + i, messages.get(i)));
+        }
+        List<byte[]> datagrams = UdpFragments.coalesce(fragments);
+        Check.that(datagrams.size() < fragments.size(), "small fragments share datagrams");
+        List<byte[]> unpacked = unpack(datagrams);
+        Check.equal(fragments.size(), unpacked.size(), "every fragment unpacked");
+        boolean same = true;
+        for (int i = 0; i < Math.min(fragments.size(), unpacked.size()); i++) {
+            same &= Arrays.equals(fragments.get(i), unpacked.get(i));
+        }
+        Check.that(same, "fragments unpacked unchanged and in order");
+
+        UdpFragments.Reassembler reassembler = new UdpFragments.Reassembler(1 << 20, 1 << 20, 60_000, 16);
+        List<byte[]> received = new ArrayList<>();
+        for (byte[] fragment : unpacked) {
+            byte[] whole = reassembler.accept(fragment, 0, fragment.length);
+            if (whole != null) {
+                received.add(whole);
+            }
+        }
+        Check.equal(messages.size(), received.size(), "every message reassembled");
+        same = received.size() == messages.size();
+        for (int i = 0; same && i < messages.size(); i++) {
+            same = Arrays.equals(messages.get(i), received.get(i));
+        }
+        Check.that(same, "messages reassembled unchanged");
+    }
+
+    private static void edgeSizes() {
+        int max = UdpFragments.MAX_DATAGRAM;
+        // The largest fragment that still fits a bundle: magic, length, fragment
+        byte[] largest = fragment(200, max - 6);
+        List<byte[]> alone = UdpFragments.coalesce(List.of(largest));
+        Check.equal(1, alone.size(), "largest bundleable fragment alone");
+        Check.that(alone.get(0) == largest, "single fragment sent unbundled");
+        List<byte[]> between = UdpFragments.coalesce(List.of(fragment(201, 40), largest, fragment(202, 40)));
+        Check.equal(3, between.size(), "largest bundleable fragment shares with nothing");
+        Check.that(!UdpFragments.isBundle(between.get(1), between.get(1).length), "it goes out unbundled");
+        Check.equal(3, unpack(between).size(), "fragments around it unpacked");
+
+        byte[] tooLarge = fragment(203, max - 5);
+        Check.that(UdpFragments.coalesce(List.of(fragment(204, 40), tooLarge)).get(1) == tooLarge,
+                "fragment too large for a bundle sent as it is");
+
+        // Two fragments that fill a bundle to the last byte
+        byte[] first = fragment(205, 100);
+        byte[] second = fragment(206, max - 8 - 100);
+        List<byte[]> full = UdpFragments.coalesce(List.of(first, second));
+        Check.equal(1, full.size(), "two fragments filling a datagram share it");
+        Check.equal(max, full.get(0).length, "bundle exactly udp.maxDatagram bytes");
+        List<byte[]> unpacked = unpack(full);
+        Check.that(unpacked.size() == 2 && Arrays.equals(first, unpacked.get(0)) && Arrays.equals(second, unpacked.get(1)),
+                "full bundle unpacked");
+        List<byte[]> overfull = UdpFragments.coalesce(List.of(first, fragment(207, max - 8 - 99)));
+        Check.equal(2, overfull.size(), "one byte more takes two datagrams");
+    }
+
+    private static void truncatedBundle() {
+        List<byte[]> fragments = List.of(fragment(300, 60), fragment(301, 60), fragment(302, 60));
+        byte[] bundle = UdpFragments.coalesce(fragments).get(0);
+        Check.that(UdpFragments.isBundle(bundle, bundle.length), "small fragments bundled");
+        List<byte[]> unpacked = new ArrayList<>();
+        Check.that(UdpFragments.unbundle(bundle, bundle.length, (data, offset, length) ->
+                unpacked.add(Arrays.copyOfRange(data, offset, offset + length))), "whole bundle read to the end");
+        Check.equal(3, unpacked.size(), "fragments in a whole bundle");
+
+        unpacked.clear();
+        Check.that(!UdpFragments.unbundle(bundle, bundle.length - 10, (data, offset, length) ->
+                unpacked.add(Arrays.copyOfRange(data, offset, offset + length))), "bundle cut inside a fragment");
+        Check.equal(2, unpacked.size(), "fragments before the cut handed on");
+        Check.that(Arrays.equals(fragments.get(1), unpacked.get(1)), "last whole fragment intact");
+
+        unpacked.clear();
+        int insideLength = 4 + 2 * (2 + 60) + 1;
+        Check.that(!UdpFragments.unbundle(bundle, insideLength, (data, offset, length) ->
+                unpacked.add(Arrays.copyOfRange(data, offset, offset + length))), "bundle cut inside a length");
+        Check.equal(2, unpacked.size(), "fragments before the cut length handed on");
+    }
+
+    /** What a receiver gets out of the datagrams, fragment by fragment; checks none is too large. */
+    private static List<byte[]> unpack(List<byte[]> datagrams) {
+        List<byte[]> fragments = new ArrayList<>();
+        for (byte[] datagram : datagrams) {
+            Check.that(datagram.length <= UdpFragments.MAX_DATAGRAM, "datagram within udp.maxDatagram");
+            if (UdpFragments.isBundle(datagram, datagram.length)) {
+                Check.that(UdpFragments.unbundle(datagram, datagram.length, (data, offset, length) ->
+                        fragments.add(Arrays.copyOfRange(data, offset, offset + length))), "bundle read to the end");
+            } else if (UdpFragments.isFragment(datagram, 0, datagram.length)) {
+                fragments.add(datagram);
+            }
+        }
+        return fragments;
+    }
+
+    /** A single fragment of exactly the given size. */
+    private static byte[] fragment(long transferId, int size) {
+        List<byte[]> fragments = UdpFragments.split(transferId, message(size - UdpFragments.HEADER_SIZE));
+        Check.equal(1, fragments.size(), "one fragment of " + size + " bytes");
+        return fragments.get(0);
+    }
+
+    /** Feeds every fragment and returns what the last one completed. */
+    private static byte[] complete(UdpFragments.Reassembler reassembler, List<byte[]> fragments) {
+        byte[] whole = null;
+        for (byte[] fragment : fragments) {
+            whole = reassembler.accept(fragment, 0, fragment.length);
+        }
+        return whole;
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) ('a' + i % 26);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * UdpOutbox forwarding to a UDPServer over loopback, through a relay that
+ * can lose datagrams on the way: the queued file is deleted once the ACK
+ * arrives, a lost ACK makes the outbox send again without the server
+ * storing the message twice, a message nobody answers is set aside as
+ * {@code .failed}, and messages left queued by a process that died are
+ * sent by the next one.
+ */
+public class UdpOutboxTest {
+    private static final String DOMAIN = "@martinez.com";
+    private static final long TIMEOUT_MS = 10_000;
+
+    private static final AtomicInteger acksToDrop = new AtomicInteger();
+    private static final AtomicInteger acksDropped = new AtomicInteger();
+    private static volatile boolean blackHole;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child();
+            return;
+        }
+        int serverPort = freePort();
+        DatagramSocket relay = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        // Read once by the classes below, and handed on to the child
+        System.setProperty("udp.port", Integer.toString(serverPort));
+        System.setProperty("udp.forwardAddress", "127.0.0.1");
+        System.setProperty("udp.forwardPort", Integer.toString(relay.getLocalPort()));
+        System.setProperty("udp.retryInitialMs", "300");
+        System.setProperty("udp.retryMaxMs", "600");
+        System.setProperty("udp.maxAttempts", "3");
+
+        // Opened up front, so the first store is not slower than a retry
+        EmailDatabase db = EmailDatabase.getInstance();
+        Thread server = new Thread(UDPServer::listen, "udp-server");
+        server.setDaemon(true);
+        server.start();
+        Thread relayer = new Thread(() -> relay(relay, new InetSocketAddress("127.0.0.1", serverPort)), "relay");
+        relayer.setDaemon(true);
+        relayer.start();
+
+        recoverAfterCrash(db);
+        UdpOutbox outbox = UdpOutbox.getInstance();
+
+        // Acknowledged on the first send
+        outbox.enqueue("sender@example.com", Collections.singletonList("acked" + DOMAIN), "Subject: acked", null);
+        waitFor(() -> files(".msg").isEmpty(), "acknowledged message removed from the outbox");
+        Check.equal(1, db.getEmailCountForUser("acked" + DOMAIN), "acknowledged message stored");
+        Check.equal(3L, outbox.getAckedCount(), "ACKs so far");
+
+        // The first ACK is lost; the retransmission is acknowledged again but not stored again.
+        // Without a Message-ID the server makes one up, so a second store would show as a second message.
+        long retransmits = outbox.getRetransmitCount();
+        acksToDrop.set(1);
+        outbox.enqueue("sender@example.com", Collections.singletonList("lost-ack" + DOMAIN), "Subject: lost ack", null);
+        waitFor(() -> files(".msg").isEmpty(), "message removed after the repeated ACK");
+        Check.equal(1, acksDropped.get(), "ACK dropped by the relay");
+        Check.that(outbox.getRetransmitCount() > retransmits, "message sent again after the lost ACK");
+        Check.equal(4L, outbox.getAckedCount(), "ACKs after the lost one");
+        Check.equal(1, db.getEmailCountForUser("lost-ack" + DOMAIN), "message stored once");
+
+        // Nobody answers: set aside after udp.maxAttempts sends
+        blackHole = true;
+        outbox.enqueue("sender@example.com", Collections.singletonList("unreachable" + DOMAIN), "Subject: lost", null);
+        waitFor(() -> files(".msg").isEmpty(), "unanswered message no longer queued");
+        Check.equal(1, files(".failed").size(), "unanswered message set aside");
+        Check.equal(1L, outbox.getFailedCount(), "give-up counted");
+        Check.equal(0, outbox.getQueueDepth(), "outbox empty");
+        Check.equal(0, db.getEmailCountForUser("unreachable" + DOMAIN), "unanswered message not stored");
+        Check.done("UdpOutboxTest");
+    }
+
+    /**
+     * A child process queues two messages while nothing answers and is
+     * killed; the outbox of this process finds and sends them on start.
+     */
+    private static void recoverAfterCrash(EmailDatabase db) throws Exception {
+        blackHole = true;
+        List<String> command = new ArrayList<>(Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path")));
+        for (String property : System.getProperties().stringPropertyNames()) {
+            if (property.startsWith("udp.")) {
+                command.add("-D" + property + "=" + System.getProperty(property));
+            }
+        }
+        command.add("UdpOutboxTest");
+        command.add("child");
+        Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null && !line.equals("queued")) {
+            // Outbox start-up messages
+        }
+        child.destroyForcibly().waitFor();
+        Check.equal(2, files(".msg").size(), "messages queued by the killed process");
+
+        blackHole = false;
+        UdpOutbox.resumePending();
+        waitFor(() -> files(".msg").isEmpty(), "recovered messages sent and acknowledged");
+        Check.equal(2L, UdpOutbox.getInstance().getAckedCount(), "recovered messages acknowledged");
+        Check.equal(1, db.getEmailCountForUser("recovered1" + DOMAIN), "first recovered message stored");
+        Check.equal(1, db.getEmailCountForUser("recovered2" + DOMAIN), "second recovered message stored");
+    }
+
+    private static void child() throws IOException, InterruptedException {
+        UdpOutbox.getInstance().enqueue("sender@example.com", Arrays.asList("recovered1" + DOMAIN, "recovered2" + DOMAIN),
+                "Subject: recovered", null);
+        System.out.println("queued");
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Passes fragments from the outbox to the server and ACKs back, except
+     * for everything while blackHole is set and the ACKs acksToDrop asks for.
+     */
+    private static void relay(DatagramSocket relay, InetSocketAddress server) {
+        byte[] buffer = new byte[65507];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        SocketAddress outbox = null;
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                relay.receive(packet);
+                DatagramPacket forward;
+                if (packet.getPort() == server.getPort()) {
+                    if (outbox == null || acksToDrop.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                        acksDropped.incrementAndGet();
+                        continue;
+                    }
+                    forward = new DatagramPacket(buffer, packet.getLength(), outbox);
+                } else {
+                    outbox = packet.getSocketAddress();
+                    if (blackHole) {
+                        continue;
+                    }
+                    forward = new DatagramPacket(buffer, packet.getLength(), server);
+                }
+                relay.send(forward);
+            }
+        } catch (IOException e) {
+            System.err.println("Relay stopped: " + e.getMessage());
+        }
+    }
+
+    private static List<String> files(String suffix) {
+        List<String> names = new ArrayList<>();
+        String[] all = new File("udp_outbox").list();
+        for (String name : all == null ? new String[0] : all) {
+            if (name.endsWith(suffix)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Check.that(condition.getAsBoolean(), what);
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * UDPServer's receive side under overflow: with no workers draining the
+ * queue, {@code drop} keeps receiving and counts what did not fit, while
+ * {@code block} stalls the receiver once the queue is full and leaves the
+ * rest in the socket buffer. With workers and room in the queue, every
+ * datagram is processed, and only logged one by one with udp.debug. The
+ * settings are read once per process, so each mode runs in a JVM of its
+ * own.
+ */
+public class UdpReceiveTest {
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int DATAGRAMS = 10;
+    private static final String LISTENING = "UDP Server listening";
+    private static final String RESULT = "result ";
+    private static final String DEBUG_LINE = "UDP Packet Received";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child();
+            return;
+        }
+        long[] drop = mode("drop", "drop", QUEUE_CAPACITY, 0, false);
+        Check.equal(DATAGRAMS, (int) drop[0], "drop: every datagram received");
+        Check.equal(DATAGRAMS - QUEUE_CAPACITY, (int) drop[1], "drop: overflow dropped");
+        Check.equal(QUEUE_CAPACITY, (int) drop[2], "drop: queue full");
+        Check.equal(0, (int) drop[3], "drop: nothing processed");
+        Check.that(drop[4] <= QUEUE_CAPACITY + 1, "drop: buffers bounded by the queue, got " + drop[4]);
+
+        long[] block = mode("block", "block", QUEUE_CAPACITY, 0, false);
+        Check.equal(QUEUE_CAPACITY + 1, (int) block[0], "block: receiver stalls once the queue is full");
+        Check.equal(0, (int) block[1], "block: nothing dropped");
+        Check.equal(QUEUE_CAPACITY, (int) block[2], "block: queue full");
+        Check.equal(QUEUE_CAPACITY + 1, (int) block[4], "block: a buffer per queue slot and one held by the receiver");
+
+        long[] workers = mode("workers", "drop", DATAGRAMS, 2, false);
+        Check.equal(DATAGRAMS, (int) workers[0], "workers: every datagram received");
+        Check.equal(0, (int) workers[1], "workers: nothing dropped");
+        Check.equal(DATAGRAMS, (int) workers[3], "workers: every datagram processed");
+        Check.equal(0, (int) workers[2], "workers: queue drained");
+        Check.equal(0, (int) workers[5], "workers: no per-datagram log by default");
+
+        long[] debug = mode("debug", "drop", DATAGRAMS, 2, true);
+        Check.equal(DATAGRAMS, (int) debug[3], "debug: every datagram processed");
+        Check.equal(DATAGRAMS, (int) debug[5], "debug: every datagram logged");
+        Check.done("UdpReceiveTest");
+    }
+
+    /**
+     * Starts a UDPServer in a child JVM, sends it DATAGRAMS unframed messages
+     * for another domain and returns its received, dropped, queued,
+     * processed and buffer counts once they settled, followed by the
+     * number of per-datagram log lines it printed.
+     */
+    private static long[] mode(String name, String overflow, int queueCapacity, int workers, boolean debug)
+            throws IOException, InterruptedException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        List<String> command = new ArrayList<>(Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                "-Dudp.port=" + port, "-Dudp.overflow=" + overflow, "-Dudp.workers=" + workers,
+                "-Dudp.queueCapacity=" + queueCapacity, "-Dudp.debug=" + debug, "UdpReceiveTest", "child"));
+        Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        Writer input = new OutputStreamWriter(child.getOutputStream(), StandardCharsets.UTF_8);
+
+        long[] result = new long[6];
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.startsWith(LISTENING)) {
+                send(port);
+                input.write("report\n");
+                input.flush();
+            } else if (line.startsWith(RESULT)) {
+                String[] counts = line.substring(RESULT.length()).split(" ");
+                for (int i = 0; i < counts.length; i++) {
+                    result[i] = Long.parseLong(counts[i]);
+                }
+                input.close();
+            } else if (line.startsWith(DEBUG_LINE)) {
+                result[5]++;
+            } else if (!line.startsWith("udp[")) {
+                System.out.println(name + ": " + line);
+            }
+        }
+        Check.equal(0, child.waitFor(), name + ": child exit status");
+        return result;
+    }
+
+    private static void send(int port) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (int i = 0; i < DATAGRAMS; i++) {
+                byte[] message = ("MAIL FROM:<sender@example.com>\nRCPT TO:<someone@elsewhere.org>\nDATA\nSubject: "
+                        + i + "\n\nbody\n.\n").getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(message, message.length, InetAddress.getLoopbackAddress(), port));
+            }
+        }
+    }
+
+    /** Child side: runs the server and reports its counters once they stop changing. */
+    private static void child() throws IOException, InterruptedException {
+        Thread server = new Thread(UDPServer::listen, "udp-server");
+        server.setDaemon(true);
+        server.start();
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (commands.readLine() != null) {
+            long deadline = System.currentTimeMillis() + 5000;
+            String last = "";
+            String current = counters();
+            // Settled once received is up and nothing moved for 300 ms
+            while (UDPServer.getReceivedCount() == 0 || !current.equals(last)) {
+                if (System.currentTimeMillis() > deadline) {
+                    break;
+                }
+                Thread.sleep(300);
+                last = current;
+                current = counters();
+            }
+            System.out.println(RESULT + current);
+        }
+        System.exit(0);
+    }
+
+    private static String counters() {
+        return UDPServer.getReceivedCount() + " " + UDPServer.getDroppedCount() + " " + UDPServer.getQueueDepth() + " "
+                + UDPServer.getProcessedCount() + " " + UDPServer.getBuffersAllocated();
+    }
+}
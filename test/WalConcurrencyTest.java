@@ -0,0 +1,103 @@
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SQLite runs in WAL mode with one writer connection: readers keep
+ * working while a steady stream of deliveries commits, and never see a
+ * half-written batch or a locked database.
+ */
+public class WalConcurrencyTest {
+    private static final int SENDERS = 4;
+    private static final int MESSAGES_PER_SENDER = 250;
+    private static final int READERS = 8;
+
+    public static void main(String[] args) throws Exception {
+        EmailDatabase db = EmailDatabase.getInstance();
+        SqliteStorage storage = (SqliteStorage) db.getStorage();
+
+        try (ConnectionPool.PooledConnection conn = storage.getReadPool().borrow();
+             Statement stmt = conn.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA journal_mode;")) {
+            Check.that(rs.next(), "journal_mode is readable");
+            Check.equal("wal", rs.getString(1).toLowerCase(), "journal mode");
+        }
+        Check.equal(1, storage.getWriterPool().getMaxSize(), "writer connections");
+
+        AtomicBoolean sending = new AtomicBoolean(true);
+        AtomicLong readErrors = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong shrank = new AtomicLong();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            Thread reader = new Thread(() -> {
+                int lastSize = 0;
+                while (sending.get()) {
+                    try {
+                        MailboxCache.Mailbox mailbox = new MailboxCache.Mailbox();
+                        storage.list("wal@martinez.com", 1, mailbox);
+                        int size = mailbox.size();
+                        if (size < lastSize) {
+                            shrank.incrementAndGet();
+                        }
+                        lastSize = size;
+                        storage.uidNext("wal@martinez.com");
+                        reads.incrementAndGet();
+                    } catch (Exception e) {
+                        readErrors.incrementAndGet();
+                        System.err.println("Read failed: " + e.getMessage());
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        List<Thread> senders = new ArrayList<>();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int s = 0; s < SENDERS; s++) {
+            int sender = s;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+                    CompletableFuture<Boolean> saved = db.saveEmailAsync("<wal-" + sender + "-" + i + "@test>",
+                            "a@b.com", "wal@martinez.com", "Subject: wal " + i, "body " + i);
+                    synchronized (results) {
+                        results.add(saved);
+                    }
+                }
+            });
+            thread.start();
+            senders.add(thread);
+        }
+        for (Thread thread : senders) {
+            thread.join();
+        }
+        int stored = 0;
+        for (CompletableFuture<Boolean> saved : results) {
+            if (saved.join()) {
+                stored++;
+            }
+        }
+        sending.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Check.equal(SENDERS * MESSAGES_PER_SENDER, stored, "messages stored");
+        Check.equal(0L, readErrors.get(), "failed reads during writes");
+        Check.equal(0L, shrank.get(), "reads that saw fewer messages than before");
+        Check.that(reads.get() > 0, "readers made progress while writing");
+
+        MailboxCache.Mailbox mailbox = new MailboxCache.Mailbox();
+        storage.list("wal@martinez.com", 1, mailbox);
+        Check.equal(SENDERS * MESSAGES_PER_SENDER, mailbox.size(), "messages listed");
+        Check.that(db.getIngestQueue().getBatchCount() < stored, "deliveries share commits");
+        Check.equal(0L, storage.getReadPool().getTimeoutCount(), "read pool timeouts");
+        System.out.println(db.getIngestQueue().stats() + " reads=" + reads.get());
+        Check.done("WalConcurrencyTest");
+    }
+}